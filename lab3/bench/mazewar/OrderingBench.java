@@ -0,0 +1,337 @@
+package mazewar;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
+import com.google.common.io.Files;
+import mazewar.server.MazePacket;
+import org.apache.commons.lang.ArrayUtils;
+import org.apache.commons.lang.SerializationUtils;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.zeromq.ZMQ;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static mazewar.server.MazePacket.ClientAction;
+import static mazewar.server.MazePacket.PacketType;
+
+/**
+ * Action-to-apply latency of each {@link Sequencer}: peers in this JVM, each with its own
+ * ZeroMQ publisher and subscriber on loopback and its own ZooKeeper session to an embedded
+ * server, send actions every interval ms like robots do. Reported is the time from sending
+ * an action until the sender applies it (what a player sees after a keypress), and until
+ * each peer applies it, how many packets were published, and whether every peer applied
+ * the same order.
+ *
+ * Needs the jzmq native library on java.library.path, unless the peers are meshed in memory
+ * instead: every packet is handed to every peer's queue, in the same order for all of them,
+ * which leaves out the network but keeps what the sequencers themselves cost.
+ *
+ * Usage: OrderingBench [peers] [actions per peer] [interval ms] [zookeeper|lamport|lockstep|all] [zmq|memory]
+ */
+public class OrderingBench {
+
+    private static final int ZK_PORT = 21820;
+    private static final int BASE_PORT = 24000;
+    private static final int ZK_TIMEOUT = 5000;
+    private static final int RECV_TIMEOUT = 100;
+    private static final int APPLY_TIMEOUT = 60000;
+    private static final String GAME = "/ordering-bench";
+
+    public static void main(String[] args) throws Exception {
+        int peers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int actions = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int interval = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        List<String> modes = args.length > 3 && !args[3].equals("all")
+            ? Arrays.asList(args[3]) : Arrays.asList("zookeeper", "lamport", "lockstep");
+        boolean memory = args.length > 4 && args[4].equals("memory");
+
+        File zkDir = Files.createTempDir();
+        ServerCnxnFactory zkFactory = ServerCnxnFactory.createFactory(ZK_PORT, 1000);
+        zkFactory.startup(new ZooKeeperServer(zkDir, zkDir, 2000));
+
+        try {
+            int run = 0;
+            for(String mode : modes) {
+                System.setProperty("mazewar.ordering", mode);
+                Run result = new Run(peers, actions, interval, memory, BASE_PORT + 10 * peers * run++).start();
+                result.report(mode + (memory ? " (in memory)" : ""));
+            }
+        } finally {
+            zkFactory.shutdown();
+        }
+    }
+
+    /**
+     * One measurement: peers sending actions until every peer applied all of them.
+     */
+    private static class Run {
+        private final int actions;
+        private final int interval;
+        private final boolean memory;
+        private final List<Peer> peers = new ArrayList<Peer>();
+        private ZMQ.Context context = null;
+        private CountDownLatch applied;
+
+        private Run(int numPeers, int actions, int interval, boolean memory, int basePort) throws Exception {
+            this.actions = actions;
+            this.interval = interval;
+            this.memory = memory;
+            if(!memory) {
+                context = ZMQ.context(1);
+            }
+            applied = new CountDownLatch(numPeers);
+
+            ZooKeeper zooKeeper = connect();
+            if(zooKeeper.exists(GAME, false) == null) {
+                zooKeeper.create(GAME, "1989".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            }
+            zooKeeper.close();
+
+            List<String> names = new ArrayList<String>();
+            for(int i = 0; i < numPeers; i++) {
+                names.add("peer" + i);
+            }
+            for(int i = 0; i < numPeers; i++) {
+                peers.add(new Peer(names.get(i), basePort + i));
+            }
+            for(Peer peer : peers) {
+                for(int i = 0; i < numPeers && !memory; i++) {
+                    peer.subscriber.connect("tcp://127.0.0.1:" + (basePort + i));
+                }
+                peer.sequencer = Sequencer.create(peer.name, names, peer, peer.zooKeeper, GAME, "1989".getBytes());
+            }
+        }
+
+        private Run start() throws Exception {
+            /* Let subscriptions settle, ZeroMQ drops what is published before */
+            if(!memory) {
+                Thread.sleep(500);
+            }
+
+            List<Thread> threads = new ArrayList<Thread>();
+            for(final Peer peer : peers) {
+                threads.add(new Thread(peer.receiver()));
+                threads.add(new Thread(peer.sender()));
+            }
+            for(Thread thread : threads) {
+                thread.start();
+            }
+
+            boolean done = applied.await(APPLY_TIMEOUT, TimeUnit.MILLISECONDS);
+            if(!done) {
+                System.err.println("Timed out waiting for all actions to be applied");
+            }
+            for(Peer peer : peers) {
+                peer.running = false;
+            }
+            for(Thread thread : threads) {
+                thread.join();
+            }
+            for(Peer peer : peers) {
+                peer.close();
+            }
+            if(context != null) {
+                context.term();
+            }
+            return this;
+        }
+
+        private void report(String mode) {
+            List<Long> local = new ArrayList<Long>();
+            List<Long> everywhere = new ArrayList<Long>();
+            int applies = 0;
+            int published = 0;
+            boolean sameOrder = true;
+            for(Peer peer : peers) {
+                published += peer.published;
+                local.addAll(peer.localLatency);
+                everywhere.addAll(peer.latency);
+                applies += peer.order.size();
+                sameOrder &= peer.order.equals(peers.get(0).order);
+            }
+            System.out.println(Joiner.on(' ').join(
+                mode, peers.size() + " peers,", actions + " actions each every " + interval + " ms,",
+                applies + " applied,", published + " packets published,", sameOrder ? "same order" : "ORDER DIFFERS"));
+            System.out.println("  at sender:    " + percentiles(local));
+            System.out.println("  at each peer: " + percentiles(everywhere));
+        }
+
+        private static String percentiles(List<Long> nanos) {
+            if(nanos.isEmpty()) {
+                return "none";
+            }
+            Collections.sort(nanos);
+            StringBuilder sb = new StringBuilder();
+            for(double p : new double[]{0.5, 0.9, 0.99, 1.0}) {
+                long value = nanos.get((int) Math.min(nanos.size() - 1, Math.floor(p * nanos.size())));
+                sb.append(p == 1.0 ? "max" : "p" + (int) (p * 100)).append(' ')
+                    .append(String.format("%.2f ms  ", value / 1e6));
+            }
+            return sb.toString();
+        }
+
+        private ZooKeeper connect() throws Exception {
+            final CountDownLatch connected = new CountDownLatch(1);
+            ZooKeeper zooKeeper = new ZooKeeper("127.0.0.1:" + ZK_PORT, ZK_TIMEOUT, new Watcher() {
+                @Override
+                public void process(WatchedEvent event) {
+                    if(event.getState() == Event.KeeperState.SyncConnected) {
+                        connected.countDown();
+                    }
+                }
+            });
+            connected.await();
+            return zooKeeper;
+        }
+
+        /**
+         * A client without the game: a publisher, a subscriber (or a queue when in memory)
+         * and a sequencer.
+         */
+        private class Peer implements Sequencer.Publisher {
+            private final String name;
+            private final ZooKeeper zooKeeper;
+            private ZMQ.Socket publisher = null;
+            private ZMQ.Socket subscriber = null;
+            private final LinkedBlockingQueue<byte[]> inbox = new LinkedBlockingQueue<byte[]>();
+            private Sequencer sequencer;
+            private volatile boolean running = true;
+            private int published = 0;
+
+            /* Send times of this peer's actions, in the order sent */
+            private final List<Long> sent = Collections.synchronizedList(new ArrayList<Long>());
+            private final List<Long> localLatency = new ArrayList<Long>();
+            private final List<Long> latency = new ArrayList<Long>();
+            private final List<String> order = new ArrayList<String>();
+
+            private Peer(String name, int port) throws Exception {
+                this.name = name;
+                zooKeeper = connect();
+                if(memory) {
+                    return;
+                }
+                publisher = context.socket(ZMQ.PUB);
+                publisher.setLinger(0);
+                publisher.bind("tcp://127.0.0.1:" + port);
+                subscriber = context.socket(ZMQ.SUB);
+                subscriber.setLinger(0);
+                subscriber.setReceiveTimeOut(RECV_TIMEOUT);
+                subscriber.subscribe(ArrayUtils.EMPTY_BYTE_ARRAY);
+            }
+
+            @Override
+            public void publish(MazePacket packet) throws Exception {
+                if(memory) {
+                    byte[] bytes = SerializationUtils.serialize(packet);
+                    /* One at a time, so every peer queues the packets of all senders in the same order */
+                    synchronized (peers) {
+                        for(Peer peer : peers) {
+                            peer.inbox.add(bytes);
+                        }
+                        published++;
+                    }
+                    return;
+                }
+                synchronized (publisher) {
+                    publisher.send(SerializationUtils.serialize(packet), 0);
+                    published++;
+                }
+            }
+
+            private byte[] poll() throws Exception {
+                return memory ? inbox.poll() : subscriber.recv(ZMQ.NOBLOCK);
+            }
+
+            private byte[] take() throws Exception {
+                return memory ? inbox.poll(RECV_TIMEOUT, TimeUnit.MILLISECONDS) : subscriber.recv(0);
+            }
+
+            private Runnable sender() {
+                return new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            for(int i = 0; i < actions && running; i++) {
+                                MazePacket packet = new MazePacket();
+                                packet.type = PacketType.ACTION;
+                                packet.clientId = Optional.of(name);
+                                packet.action = Optional.of(ClientAction.FORWARD);
+                                sent.add(System.nanoTime());
+                                sequencer.send(packet);
+                                Thread.sleep(interval);
+                            }
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
+                    }
+                };
+            }
+
+            /* Each sender's actions are applied in the order it sent them, so the k-th
+               applied from a peer is the k-th it sent */
+            private Runnable receiver() {
+                return new Runnable() {
+                    @Override
+                    public void run() {
+                        int[] appliedFrom = new int[peers.size()];
+                        int total = 0;
+                        try {
+                            while(running) {
+                                byte[] bytes = poll();
+                                if(bytes == null) {
+                                    sequencer.idle();
+                                    bytes = take();
+                                }
+                                if(bytes == null) {
+                                    continue;
+                                }
+                                for(MazePacket action : sequencer.receive((MazePacket) SerializationUtils.deserialize(bytes))) {
+                                    if(action.type != PacketType.ACTION) {
+                                        continue;
+                                    }
+                                    long now = System.nanoTime();
+                                    String from = action.clientId.get();
+                                    int index = Integer.parseInt(from.substring("peer".length()));
+                                    Peer sender = peers.get(index);
+                                    long nanos = now - sender.sent.get(appliedFrom[index]++);
+                                    latency.add(nanos);
+                                    if(sender == Peer.this) {
+                                        localLatency.add(nanos);
+                                    }
+                                    order.add(from);
+                                    if(++total == actions * peers.size()) {
+                                        applied.countDown();
+                                    }
+                                }
+                            }
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
+                    }
+                };
+            }
+
+            private void close() throws Exception {
+                sequencer.close();
+                if(!memory) {
+                    publisher.close();
+                    subscriber.close();
+                }
+                zooKeeper.close();
+            }
+        }
+    }
+}
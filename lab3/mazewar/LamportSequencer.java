@@ -0,0 +1,213 @@
+package mazewar;
+
+import com.google.common.base.Optional;
+import mazewar.server.MazePacket;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import static mazewar.server.MazePacket.PacketType;
+
+/**
+ * Total-order multicast between the clients themselves, leaving ZooKeeper to membership.
+ * Every packet carries its sender's Lamport timestamp, and actions are ordered by timestamp
+ * and then client name. Every client, the sender included, acknowledges the actions it
+ * reads with an ACK stamped after them. Each publisher's packets arrive in the order it
+ * sent them, so once every client has been heard from with a later timestamp than the first
+ * held-back action, nothing can still arrive ahead of it and it is applied.
+ *
+ * An ACK only has to be stamped later than the actions it covers, so one ACK when the
+ * dispatcher runs dry (or every MAX_UNACKED actions, if it never does) covers a whole
+ * burst of them, and none is owed for an action stamped
+ * before something this client already published, its own actions included. Otherwise
+ * every action would cost an ACK from every client.
+ *
+ * An action takes one hop out and one hop of acks before it is applied, instead of a
+ * ZooKeeper write before it is even sent.
+ *
+ * A client quitting publishes a DISCONNECT stamped after everything it sent, its last
+ * timestamp, and waits up to LEAVE_TIMEOUT for every client to acknowledge it before its
+ * znode goes. A client is only dropped once it has been heard from up to its last timestamp,
+ * so none of its actions can still be on the way and be applied out of order. One that
+ * left without a DISCONNECT (it crashed) is dropped when ZooKeeper says it is gone, long
+ * after anything it sent has arrived.
+ */
+public class LamportSequencer extends Sequencer {
+    private final int QUEUE_SIZE = 1000;
+    private final int MAX_UNACKED = 16;
+    private final int LEAVE_TIMEOUT = 1000;
+
+    private final String clientId;
+    private final Publisher publisher;
+
+    private int clock = 0;
+    /* Timestamp of the last packet published */
+    private int published = 0;
+    /* Actions read that no packet published since covers */
+    private int unacked = 0;
+    private PriorityQueue<MazePacket> holdBackQueue;
+
+    /* Clients in the game, and the latest timestamp heard from each client */
+    private Set<String> clients;
+    private Map<String, Integer> heard;
+    /* Last timestamp of clients that published their DISCONNECT, until they are dropped */
+    private Map<String, Integer> leaving;
+    /* Clients dropped, anything still arriving from them is ignored */
+    private Set<String> gone;
+    private boolean left = false;
+
+    public LamportSequencer(String clientId, List<String> clients, Publisher publisher) {
+        this.clientId = clientId;
+        this.publisher = publisher;
+        this.clients = new HashSet<String>(clients);
+        this.heard = new HashMap<String, Integer>();
+        this.leaving = new HashMap<String, Integer>();
+        this.gone = new HashSet<String>();
+
+        holdBackQueue = new PriorityQueue<MazePacket>(QUEUE_SIZE, new Comparator<MazePacket>() {
+            @Override
+            public int compare(MazePacket o1, MazePacket o2) {
+                int c = o1.timestamp.compareTo(o2.timestamp);
+                return c != 0 ? c : o1.clientId.get().compareTo(o2.clientId.get());
+            }
+        });
+    }
+
+    /* Stamping and publishing happen under the same lock as acks, so nothing stamped
+       later can leave this client ahead of the action */
+    @Override
+    public synchronized void send(MazePacket packet) throws Exception {
+        if(left) {
+            return;
+        }
+        packet.timestamp = ++clock;
+        publisher.publish(packet);
+        published = clock;
+        unacked = 0;
+    }
+
+    @Override
+    public synchronized List<MazePacket> receive(MazePacket packet) throws Exception {
+        String sender = packet.clientId.get();
+        if(gone.contains(sender)) {
+            return new ArrayList<MazePacket>();
+        }
+
+        switch (packet.type) {
+            case CONNECT:
+                clients.add(sender);
+                break;
+
+            case DISCONNECT:
+                if(packet.timestamp != null) {
+                    /* Its own, the last packet it publishes, acknowledged like an action */
+                    clock = Math.max(clock, packet.timestamp) + 1;
+                    heard.put(sender, packet.timestamp);
+                    leaving.put(sender, packet.timestamp);
+                    if(packet.timestamp >= published) {
+                        unacked++;
+                    }
+                } else if(!leaving.containsKey(sender)) {
+                    /* From ZooKeeper without a DISCONNECT of its own, it crashed */
+                    drop(sender);
+                }
+                break;
+
+            case ACTION:
+                clock = Math.max(clock, packet.timestamp) + 1;
+                heard.put(sender, packet.timestamp);
+                holdBackQueue.add(packet);
+                if(packet.timestamp >= published && ++unacked >= MAX_UNACKED) {
+                    ack();
+                }
+                break;
+
+            case ACK:
+                clock = Math.max(clock, packet.timestamp) + 1;
+                heard.put(sender, packet.timestamp);
+                break;
+        }
+
+        /* It no longer holds anything back once all it sent is in */
+        for(Map.Entry<String, Integer> last : new ArrayList<Map.Entry<String, Integer>>(leaving.entrySet())) {
+            Integer timestamp = heard.get(last.getKey());
+            if(timestamp != null && timestamp >= last.getValue()) {
+                drop(last.getKey());
+            }
+        }
+
+        List<MazePacket> ready = new ArrayList<MazePacket>();
+        while(!holdBackQueue.isEmpty() && isStable(holdBackQueue.peek())) {
+            ready.add(holdBackQueue.poll());
+        }
+        if(left) {
+            /* Wake leave() to check the acks */
+            notifyAll();
+        }
+        return ready;
+    }
+
+    @Override
+    public synchronized void idle() throws Exception {
+        if(unacked > 0 && !left) {
+            ack();
+        }
+    }
+
+    @Override
+    public synchronized void leave() throws Exception {
+        MazePacket bye = new MazePacket();
+        bye.type = PacketType.DISCONNECT;
+        bye.clientId = Optional.of(clientId);
+        bye.timestamp = ++clock;
+        publisher.publish(bye);
+        published = clock;
+        left = true;
+
+        /* Every other client has it once it has been heard from after it */
+        long deadline = System.currentTimeMillis() + LEAVE_TIMEOUT;
+        long wait;
+        while(!isAcked(bye) && (wait = deadline - System.currentTimeMillis()) > 0) {
+            wait(wait);
+        }
+    }
+
+    private void drop(String client) {
+        clients.remove(client);
+        heard.remove(client);
+        leaving.remove(client);
+        gone.add(client);
+    }
+
+    private void ack() throws Exception {
+        MazePacket ack = new MazePacket();
+        ack.type = PacketType.ACK;
+        ack.clientId = Optional.of(clientId);
+        ack.timestamp = ++clock;
+        publisher.publish(ack);
+        published = clock;
+        unacked = 0;
+    }
+
+    /* Heard from every client after the action */
+    private boolean isStable(MazePacket action) {
+        return isAcked(action);
+    }
+
+    /* Heard from every client after the packet */
+    private boolean isAcked(MazePacket packet) {
+        for(String client : clients) {
+            Integer timestamp = heard.get(client);
+            if(timestamp == null || timestamp <= packet.timestamp) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,237 @@
+package mazewar;
+
+import com.google.common.base.Optional;
+import mazewar.server.MazePacket;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import static mazewar.server.MazePacket.ClientAction;
+import static mazewar.server.MazePacket.PacketType;
+
+/**
+ * Lockstep: every client collects its actions into ticks of TICK_MS and publishes one
+ * FRAME per tick, empty or not. Tick N is applied once every client's frame for N is in,
+ * each client's actions in turn in order of client name, followed by a TICK so the game
+ * can move projectiles in step too. That is one packet per client per tick however many
+ * actions there are, and no sequencer anywhere.
+ *
+ * Ticks start with the game, at the first action anyone sends, so every client counts
+ * from the same tick. Who is in the game is taken from the frames themselves: each client's
+ * frame for tick 0 lists the clients it knew of when the game started, and tick 0 is applied
+ * once those of every client it knew of are in, with the clients on all of their lists. A
+ * client joining just as the game starts may be known to some clients and not to others,
+ * and ends up on some lists only, so every client drops it alike; a client that finds itself
+ * dropped gives up rather than play a game nobody applies its actions in, and so does one whose
+ * first frame from some client is past tick 0: it joined after the game started.
+ *
+ * A client quitting publishes a DISCONNECT naming the last tick it published a frame for, and
+ * publishes no more. Every client waits for its frames up to that tick and applies the ticks
+ * after it without it, so it leaves at the same tick everywhere. One that left without a
+ * DISCONNECT (it crashed) is taken to have left after the last frame received from it, by the
+ * time ZooKeeper says it is gone all it published has arrived. No client publishes
+ * more than MAX_AHEAD ticks past the last one it applied, which keeps fast clients in step
+ * with the slowest one.
+ */
+public class LockstepSequencer extends Sequencer implements Runnable {
+    public static final int TICK_MS = 50;
+    private final int MAX_AHEAD = 2;
+
+    private final String clientId;
+    private final Publisher publisher;
+
+    /* Clients in the game, in the order their actions are applied */
+    private SortedSet<String> clients;
+
+    private boolean started = false;
+    private volatile boolean running = true;
+    /* Next tick to publish and next tick to apply */
+    private int nextTick = 0;
+    private int applyTick = 0;
+    private List<ClientAction> pending = new ArrayList<ClientAction>();
+    private Map<Integer, Map<String, MazePacket>> frames = new HashMap<Integer, Map<String, MazePacket>>();
+    /* Latest tick of a frame from each client, and the last tick of clients that left */
+    private Map<String, Integer> lastFrame = new HashMap<String, Integer>();
+    private Map<String, Integer> leaving = new HashMap<String, Integer>();
+
+    public LockstepSequencer(String clientId, List<String> clients, Publisher publisher) {
+        this.clientId = clientId;
+        this.publisher = publisher;
+        this.clients = new TreeSet<String>(clients);
+    }
+
+    /* Actions wait for the next frame */
+    @Override
+    public synchronized void send(MazePacket packet) throws Exception {
+        pending.add(packet.action.get());
+        started = true;
+    }
+
+    @Override
+    public synchronized List<MazePacket> receive(MazePacket packet) throws Exception {
+        String sender = packet.clientId.get();
+
+        switch (packet.type) {
+            case CONNECT:
+                if(!started) {
+                    clients.add(sender);
+                }
+                break;
+
+            case DISCONNECT:
+                if(packet.tick != null) {
+                    /* Its own, naming its last frame */
+                    leaving.put(sender, packet.tick);
+                } else if(!leaving.containsKey(sender)) {
+                    /* From ZooKeeper without a DISCONNECT of its own, it crashed */
+                    Integer last = lastFrame.get(sender);
+                    leaving.put(sender, last == null ? -1 : last);
+                }
+                break;
+
+            case FRAME:
+                if(applyTick == 0 && packet.tick > 0 && (frames.get(0) == null || !frames.get(0).containsKey(sender))) {
+                    refuse("missed the frame of tick 0 from " + sender);
+                }
+                started = true;
+                Integer last = lastFrame.get(sender);
+                lastFrame.put(sender, last == null ? packet.tick : Math.max(last, packet.tick));
+                if(packet.tick >= applyTick) {
+                    Map<String, MazePacket> tick = frames.get(packet.tick);
+                    if(tick == null) {
+                        tick = new HashMap<String, MazePacket>();
+                        frames.put(packet.tick, tick);
+                    }
+                    tick.put(sender, packet);
+                }
+                break;
+        }
+
+        List<MazePacket> ready = new ArrayList<MazePacket>();
+        Map<String, MazePacket> tick;
+        dropLeft();
+        while((tick = frames.get(applyTick)) != null && tick.keySet().containsAll(clients)) {
+            if(applyTick == 0) {
+                agreeClients(tick);
+            }
+            for(String client : clients) {
+                for(ClientAction action : tick.get(client).actions.get()) {
+                    MazePacket actionPacket = new MazePacket();
+                    actionPacket.type = PacketType.ACTION;
+                    actionPacket.clientId = Optional.of(client);
+                    actionPacket.action = Optional.of(action);
+                    ready.add(actionPacket);
+                }
+            }
+
+            MazePacket tickPacket = new MazePacket();
+            tickPacket.type = PacketType.TICK;
+            tickPacket.tick = applyTick;
+            ready.add(tickPacket);
+
+            frames.remove(applyTick++);
+            dropLeft();
+        }
+        if(!ready.isEmpty()) {
+            /* Wake the ticker if it was held back */
+            notifyAll();
+        }
+        return ready;
+    }
+
+    /* Keep the clients every frame of tick 0 lists */
+    private void agreeClients(Map<String, MazePacket> tick) {
+        for(String client : new ArrayList<String>(clients)) {
+            clients.retainAll(Arrays.asList(tick.get(client).clients.get()));
+        }
+        if(!clients.contains(clientId)) {
+            refuse("was not known to every client at tick 0");
+        }
+    }
+
+    /* Stop waiting for clients whose last frame is applied */
+    private void dropLeft() {
+        for(Map.Entry<String, Integer> last : new ArrayList<Map.Entry<String, Integer>>(leaving.entrySet())) {
+            if(last.getValue() < applyTick) {
+                clients.remove(last.getKey());
+                leaving.remove(last.getKey());
+            }
+        }
+    }
+
+    private void refuse(String reason) {
+        running = false;
+        notifyAll();
+        System.err.println("Game started without " + clientId + ", it " + reason);
+        throw new IllegalStateException("Game started without " + clientId + ", it can no longer be joined");
+    }
+
+    /**
+     * Publish a frame every tick once the game has started.
+     */
+    @Override
+    public void run() {
+        long next = System.nanoTime();
+        try {
+            while(running) {
+                next += TICK_MS * 1000000L;
+                long wait = (next - System.nanoTime()) / 1000000L;
+                if(wait > 0) {
+                    Thread.sleep(wait);
+                }
+                synchronized (this) {
+                    while(running && started && nextTick - applyTick >= MAX_AHEAD) {
+                        wait(TICK_MS);
+                    }
+                    if(running && started) {
+                        publishFrame();
+                    }
+                }
+                /* Don't try to catch up on ticks spent waiting */
+                next = Math.max(next, System.nanoTime() - TICK_MS * 1000000L);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private void publishFrame() throws Exception {
+        MazePacket frame = new MazePacket();
+        frame.type = PacketType.FRAME;
+        frame.clientId = Optional.of(clientId);
+        frame.tick = nextTick++;
+        if(frame.tick == 0) {
+            frame.clients = Optional.of(clients.toArray(new String[clients.size()]));
+        }
+        frame.actions = Optional.of(pending.toArray(new ClientAction[pending.size()]));
+        pending.clear();
+        publisher.publish(frame);
+    }
+
+    /* A last frame with the actions not yet published, and none after it */
+    @Override
+    public synchronized void leave() throws Exception {
+        running = false;
+        notifyAll();
+        if(started) {
+            publishFrame();
+        }
+        MazePacket bye = new MazePacket();
+        bye.type = PacketType.DISCONNECT;
+        bye.clientId = Optional.of(clientId);
+        bye.tick = nextTick - 1;
+        publisher.publish(bye);
+    }
+
+    @Override
+    public synchronized void close() {
+        running = false;
+        notifyAll();
+    }
+}
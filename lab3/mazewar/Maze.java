@@ -73,6 +73,11 @@ public abstract class Maze {
      */
     public abstract boolean clientFire(Client client);
 
+    /**
+     * Move every {@link Projectile} in the {@link Maze} one step.
+     */
+    public abstract void moveProjectiles();
+
     /**
      * Remove the specified {@link Client} from the {@link Maze}
      *
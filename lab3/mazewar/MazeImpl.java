@@ -36,6 +36,7 @@ import java.util.Iterator;
 import java.util.Collection;
 import java.util.LinkedList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 
 /**
  * A concrete implementation of a {@link Maze}.
@@ -46,6 +47,11 @@ import java.util.HashMap;
 
 public class MazeImpl extends Maze implements Serializable, ClientListener, Runnable {
 
+    /**
+     * Milliseconds between {@link Projectile} moves.
+     */
+    public static final int PROJECTILE_PERIOD = 200;
+
     /**
      * Create a {@link Maze}.
      *
@@ -54,6 +60,19 @@ public class MazeImpl extends Maze implements Serializable, ClientListener, Runn
      * @param seed  Initial seed for the random number generator.
      */
     public MazeImpl(Point point, long seed) {
+        this(point, seed, false);
+    }
+
+    /**
+     * Create a {@link Maze}.
+     *
+     * @param point  Treat the {@link Point} as a magintude specifying the
+     *               size of the maze.
+     * @param seed   Initial seed for the random number generator.
+     * @param ticked <code>true</code> if {@link #moveProjectiles} is driven
+     *               by the caller instead of a thread of the maze's own.
+     */
+    public MazeImpl(Point point, long seed, boolean ticked) {
         maxX = point.getX();
         assert (maxX > 0);
         maxY = point.getY();
@@ -71,7 +90,7 @@ public class MazeImpl extends Maze implements Serializable, ClientListener, Runn
             mazeVector.insertElementAt(colVector, i);
         }
 
-        thread = new Thread(this);
+        thread = ticked ? null : new Thread(this);
 
         // Initialized the random number generator
         randomGen = new Random(seed);
@@ -79,7 +98,9 @@ public class MazeImpl extends Maze implements Serializable, ClientListener, Runn
         // Build the maze starting at the corner
         buildMaze(new Point(0, 0));
 
-        thread.start();
+        if (thread != null) {
+            thread.start();
+        }
     }
 
     /**
@@ -333,33 +354,36 @@ public class MazeImpl extends Maze implements Serializable, ClientListener, Runn
         }
     }
 
+    public void moveProjectiles() {
+        Collection deadPrj = new HashSet();
+        if (!projectileMap.isEmpty()) {
+            Iterator it = projectileMap.keySet().iterator();
+            synchronized (projectileMap) {
+                while (it.hasNext()) {
+                    Object o = it.next();
+                    assert (o instanceof Projectile);
+                    deadPrj.addAll(moveProjectile((Projectile) o));
+                }
+                it = deadPrj.iterator();
+                while (it.hasNext()) {
+                    Object o = it.next();
+                    assert (o instanceof Projectile);
+                    Projectile prj = (Projectile) o;
+                    projectileMap.remove(prj);
+                    clientFired.remove(prj.getOwner());
+                }
+            }
+        }
+    }
+
     /**
-     * Control loop for {@link Projectile}s.
+     * Control loop for {@link Projectile}s, unless they are ticked.
      */
     public void run() {
-        Collection deadPrj = new HashSet();
         while (true) {
-            if (!projectileMap.isEmpty()) {
-                Iterator it = projectileMap.keySet().iterator();
-                synchronized (projectileMap) {
-                    while (it.hasNext()) {
-                        Object o = it.next();
-                        assert (o instanceof Projectile);
-                        deadPrj.addAll(moveProjectile((Projectile) o));
-                    }
-                    it = deadPrj.iterator();
-                    while (it.hasNext()) {
-                        Object o = it.next();
-                        assert (o instanceof Projectile);
-                        Projectile prj = (Projectile) o;
-                        projectileMap.remove(prj);
-                        clientFired.remove(prj.getOwner());
-                    }
-                    deadPrj.clear();
-                }
-            }
+            moveProjectiles();
             try {
-                thread.sleep(200);
+                thread.sleep(PROJECTILE_PERIOD);
             } catch (Exception e) {
                 // shouldn't happen
             }
@@ -584,9 +608,10 @@ public class MazeImpl extends Maze implements Serializable, ClientListener, Runn
     private final Set listenerSet = new HashSet();
 
     /**
-     * Mapping from {@link Projectile}s to {@link DirectedPoint}s.
+     * Mapping from {@link Projectile}s to {@link DirectedPoint}s, in the
+     * order they were fired so every client moves them in the same order.
      */
-    private final Map projectileMap = new HashMap();
+    private final Map projectileMap = new LinkedHashMap();
 
     /**
      * The set of {@link Client}s that have {@link Projectile}s in
@@ -595,7 +620,8 @@ public class MazeImpl extends Maze implements Serializable, ClientListener, Runn
     private final Set clientFired = new HashSet();
 
     /**
-     * The thread used to manage {@link Projectile}s.
+     * The thread used to manage {@link Projectile}s, <code>null</code> if
+     * they are ticked.
      */
     private final Thread thread;
 
@@ -48,13 +48,10 @@ import java.net.InetAddress;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.PriorityBlockingQueue;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -160,7 +157,6 @@ public class Mazewar extends JFrame implements Runnable {
     private Socket mazeSocket;
     private ObjectOutputStream toServer;
     private ObjectInputStream fromServer;
-    private AtomicInteger sequenceNumber;
 
     /* Client details */
     private String clientId;
@@ -170,7 +166,10 @@ public class Mazewar extends JFrame implements Runnable {
     /* Runnables for additional tasks */
     private final int QUEUE_SIZE = 1000;
     private ArrayBlockingQueue<MazePacket> packetQueue;
-    private PriorityBlockingQueue<MazePacket> sequencedQueue;
+
+    /* Total order of actions */
+    private Sequencer sequencer;
+    private static final int PROJECTILE_TICKS = MazeImpl.PROJECTILE_PERIOD / LockstepSequencer.TICK_MS;
 
     /* ZooKeeper Connection */
     private static String ZK_PARENT = "/";
@@ -183,6 +182,7 @@ public class Mazewar extends JFrame implements Runnable {
     /* ZeroMQ PubSub */
     private ZMQ.Context context;
     private ZMQ.Socket publisher;
+    private final Object publisherLock = new Object();
     private ZMQ.Socket subscriber;
 
     /**
@@ -235,9 +235,6 @@ public class Mazewar extends JFrame implements Runnable {
             /* Get Seed from Parent */
             mazeSeed = Long.parseLong(new String(zooKeeper.getData(ZK_PARENT, false, null)));
 
-            /* Initialize Sequence Number */
-            sequenceNumber = new AtomicInteger(zooKeeper.exists(ZK_PARENT, false).getVersion());
-
             /* Get list of nodes */
             nodeList = ClientNode.sortList(zooKeeper.getChildren(ZK_PARENT, false));
         } catch (Exception e) {
@@ -246,7 +243,7 @@ public class Mazewar extends JFrame implements Runnable {
         }
 
         // Create the maze
-        maze = new MazeImpl(new Point(mazeWidth, mazeHeight), mazeSeed);
+        maze = new MazeImpl(new Point(mazeWidth, mazeHeight), mazeSeed, Sequencer.ordering().equals("lockstep"));
         assert (maze != null);
 
         // Have the ScoreTableModel listen to the maze to find
@@ -257,12 +254,6 @@ public class Mazewar extends JFrame implements Runnable {
 
         /* Initialize packet queue */
         packetQueue = new ArrayBlockingQueue<MazePacket>(QUEUE_SIZE);
-        sequencedQueue = new PriorityBlockingQueue<MazePacket>(QUEUE_SIZE, new Comparator<MazePacket>() {
-            @Override
-            public int compare(MazePacket o1, MazePacket o2) {
-                return o1.sequenceNumber.compareTo(o2.sequenceNumber);
-            }
-        });
 
         /* Inject Event Bus into Client */
         Client.setEventBus(eventBus);
@@ -305,6 +296,23 @@ public class Mazewar extends JFrame implements Runnable {
 
         checkNotNull(guiClient, "Should have received our clientId in CLIENTS list!");
 
+        /* Set up ordering of actions */
+        try {
+            sequencer = Sequencer.create(clientId, new ArrayList<String>(clients.keySet()),
+                new Sequencer.Publisher() {
+                    @Override
+                    public void publish(MazePacket packet) throws Exception {
+                        /* ZeroMQ sockets are not thread safe */
+                        synchronized (publisherLock) {
+                            publisher.send(SerializationUtils.serialize(packet), 0);
+                        }
+                    }
+                }, zooKeeper, ZK_PARENT, mazeSeed.toString().getBytes());
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
         // Create the GUIClient and connect it to the KeyListener queue
         this.addKeyListener(guiClient);
         this.isRobot = robot;
@@ -378,10 +386,6 @@ public class Mazewar extends JFrame implements Runnable {
         this.requestFocusInWindow();
     }
 
-    public int getSequenceNumber() throws Exception {
-        return zooKeeper.setData(ZK_PARENT, mazeSeed.toString().getBytes(), -1).getVersion();
-    }
-
     private void addRemoteClient(ClientNode client) throws Exception {
         RemoteClient remoteClient = new RemoteClient(client.getName());
         clients.put(client.getName(), remoteClient);
@@ -422,7 +426,6 @@ public class Mazewar extends JFrame implements Runnable {
         actionPacket.type = PacketType.ACTION;
         actionPacket.clientId = Optional.of(clientId);
         actionPacket.action = Optional.of(action);
-        actionPacket.sequenceNumber = getSequenceNumber();
 
         /*
         if(action == ClientAction.FIRE) {
@@ -430,7 +433,7 @@ public class Mazewar extends JFrame implements Runnable {
         }
         */
 
-        publisher.send(SerializationUtils.serialize(actionPacket), 0);
+        sequencer.send(actionPacket);
     }
 
     @Subscribe
@@ -438,6 +441,7 @@ public class Mazewar extends JFrame implements Runnable {
         assert(e.getKeyCode() == KeyEvent.VK_Q);
 
         eventBus.unregister(this);
+        sequencer.leave();
         zooKeeper.delete(clientPath, -1);
         System.exit(0);
     }
@@ -449,22 +453,25 @@ public class Mazewar extends JFrame implements Runnable {
             public void run() {
                 try {
                     while(true) {
-                        MazePacket packet = packetQueue.take();
-
-                        sequencedQueue.put(packet);
+                        MazePacket packet = packetQueue.poll();
+                        if(packet == null) {
+                            sequencer.idle();
+                            packet = packetQueue.take();
+                        }
 
-                        while((packet = sequencedQueue.peek()) != null) {
-                            if(packet.sequenceNumber == sequenceNumber.get() + 1) {
-                                if(isRobot) {
-                                    System.out.println("Activating Robot");
-                                    isRobot = false;
-                                    ((RobotClient)clients.get(clientId)).startRobot();
+                        for(MazePacket action : sequencer.receive(packet)) {
+                            if(isRobot) {
+                                System.out.println("Activating Robot");
+                                isRobot = false;
+                                ((RobotClient)clients.get(clientId)).startRobot();
+                            }
+                            if(action.type == PacketType.TICK) {
+                                /* Lockstep moves projectiles in step with actions */
+                                if(action.tick % PROJECTILE_TICKS == 0) {
+                                    maze.moveProjectiles();
                                 }
-                                eventBus.post(packet);
-                                sequenceNumber.incrementAndGet();
-                                sequencedQueue.poll();
                             } else {
-                                break;
+                                eventBus.post(action);
                             }
                         }
                     }
@@ -476,6 +483,14 @@ public class Mazewar extends JFrame implements Runnable {
         };
     }
 
+    /* Tell the sequencer about a client joining or leaving, in line with the packets */
+    private static MazePacket membershipPacket(PacketType type, String name) {
+        MazePacket packet = new MazePacket();
+        packet.type = type;
+        packet.clientId = Optional.of(name);
+        return packet;
+    }
+
     /* ZooKeeper Watcher */
     class ZkWatcher implements Watcher {
         @Override
@@ -496,6 +511,7 @@ public class Mazewar extends JFrame implements Runnable {
 
                             addRemoteClient(client);
                             zooKeeper.exists(ZK_PARENT + "/" + client.getPath(), zkWatcher);
+                            packetQueue.put(membershipPacket(PacketType.CONNECT, client.getName()));
                         }
                     } catch (Exception e) {
                         e.printStackTrace();
@@ -508,6 +524,11 @@ public class Mazewar extends JFrame implements Runnable {
                     Client client = clients.remove(name);
                     eventBus.unregister(client);
                     maze.removeClient(client);
+                    try {
+                        packetQueue.put(membershipPacket(PacketType.DISCONNECT, name));
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
 
                     if(clients.size() == 1) {
                         System.err.println("Only one left in game, quitting!");
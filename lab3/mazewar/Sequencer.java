@@ -0,0 +1,72 @@
+package mazewar;
+
+import mazewar.server.MazePacket;
+import org.apache.zookeeper.ZooKeeper;
+
+import java.util.List;
+
+/**
+ * Puts the ACTIONs of every client into one total order, the same on every client.
+ * Actions are sent through it to be stamped and published on the mesh, and everything
+ * read off the mesh is handed to {@link #receive}, along with CONNECT and DISCONNECT
+ * packets for clients joining and leaving, all from the one dispatcher thread.
+ */
+public abstract class Sequencer {
+
+    /* Where a sequencer sends its own packets, the client's publisher */
+    public interface Publisher {
+        void publish(MazePacket packet) throws Exception;
+    }
+
+    /**
+     * Stamp an outgoing ACTION and publish it.
+     */
+    public abstract void send(MazePacket packet) throws Exception;
+
+    /**
+     * Take a packet off the mesh.
+     *
+     * @return The ACTIONs that can now be applied, in order, and a TICK after
+     *         each tick applied if the sequencer has them.
+     */
+    public abstract List<MazePacket> receive(MazePacket packet) throws Exception;
+
+    /**
+     * Called when there is nothing more to receive for now.
+     */
+    public void idle() throws Exception {
+    }
+
+    /**
+     * Called when this client quits, before its znode is deleted. No action is sent after.
+     */
+    public void leave() throws Exception {
+    }
+
+    /**
+     * Stop any thread of the sequencer's own.
+     */
+    public void close() {
+    }
+
+    /* lamport, zookeeper or lockstep */
+    public static String ordering() {
+        return System.getProperty("mazewar.ordering", "lamport");
+    }
+
+    /* Sequencer selected by mazewar.ordering. Every client in a game has to use the same one */
+    public static Sequencer create(String clientId, List<String> clients, Publisher publisher,
+                                   ZooKeeper zooKeeper, String parent, byte[] data) throws Exception {
+        if(ordering().equals("zookeeper")) {
+            return new ZooKeeperSequencer(publisher, zooKeeper, parent, data);
+        }
+        if(ordering().equals("lockstep")) {
+            LockstepSequencer sequencer = new LockstepSequencer(clientId, clients, publisher);
+            Thread ticker = new Thread(sequencer);
+            ticker.setDaemon(true);
+            ticker.start();
+            return sequencer;
+        }
+        return new LamportSequencer(clientId, clients, publisher);
+    }
+}
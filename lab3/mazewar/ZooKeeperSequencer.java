@@ -0,0 +1,66 @@
+package mazewar;
+
+import mazewar.server.MazePacket;
+import org.apache.zookeeper.ZooKeeper;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import static mazewar.server.MazePacket.PacketType;
+
+/**
+ * The original sequencer: every action writes the game's znode and takes its new version
+ * as a global sequence number, and actions are applied in that order without gaps. Each
+ * action costs a ZooKeeper quorum write before it is even published.
+ */
+public class ZooKeeperSequencer extends Sequencer {
+    private final int QUEUE_SIZE = 1000;
+
+    private final Publisher publisher;
+    private final ZooKeeper zooKeeper;
+    private final String parent;
+    private final byte[] data;
+
+    /* Last sequence number applied */
+    private int sequenceNumber;
+    private PriorityQueue<MazePacket> sequencedQueue;
+
+    public ZooKeeperSequencer(Publisher publisher, ZooKeeper zooKeeper, String parent, byte[] data) throws Exception {
+        this.publisher = publisher;
+        this.zooKeeper = zooKeeper;
+        this.parent = parent;
+        this.data = data;
+
+        sequenceNumber = zooKeeper.exists(parent, false).getVersion();
+        sequencedQueue = new PriorityQueue<MazePacket>(QUEUE_SIZE, new Comparator<MazePacket>() {
+            @Override
+            public int compare(MazePacket o1, MazePacket o2) {
+                return o1.sequenceNumber.compareTo(o2.sequenceNumber);
+            }
+        });
+    }
+
+    @Override
+    public void send(MazePacket packet) throws Exception {
+        packet.sequenceNumber = zooKeeper.setData(parent, data, -1).getVersion();
+        publisher.publish(packet);
+    }
+
+    @Override
+    public List<MazePacket> receive(MazePacket packet) throws Exception {
+        List<MazePacket> ready = new ArrayList<MazePacket>();
+        if(packet.type != PacketType.ACTION) {
+            return ready;
+        }
+
+        sequencedQueue.add(packet);
+        while((packet = sequencedQueue.peek()) != null
+            && packet.sequenceNumber == sequenceNumber + 1) {
+            ready.add(sequencedQueue.poll());
+            sequenceNumber++;
+        }
+        return ready;
+    }
+}
@@ -10,7 +10,10 @@ public class MazePacket implements Serializable {
         CONNECT,
         DISCONNECT,
         CLIENTS,
-        ACTION
+        ACTION,
+        ACK,
+        FRAME,
+        TICK
     }
 
     public static enum PacketErrorCode {
@@ -41,16 +44,23 @@ public class MazePacket implements Serializable {
     /* Sequence number to be set on all operations by server */
     public Integer sequenceNumber;
 
+    /* Lamport timestamp of an ACTION or ACK, or the last of a client's own DISCONNECT, when clients order actions themselves */
+    public Integer timestamp;
+
     /* When an ERROR occurs */
     public Optional<PacketErrorCode> error;
 
-    /* For CONNECT, DISCONNECT and ACTION */
+    /* For CONNECT, DISCONNECT, ACTION, ACK and FRAME */
     public Optional<String> clientId;
 
-    /* For CLIENTS */
+    /* For CLIENTS, and a FRAME of tick 0, the clients its sender starts the game with */
     public Optional<String[]> clients;
     public Optional<Long> seed;
 
     /* For ACTION */
     public Optional<ClientAction> action;
+
+    /* For FRAME, a client's actions during a tick, TICK, a tick applied, and a client's own DISCONNECT, its last frame */
+    public Integer tick;
+    public Optional<ClientAction[]> actions;
 }
@@ -0,0 +1,25 @@
+package dict.attack;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Reference inputs for the benchmarks: the dictionaries shipped in lab4 (file1000, file265744).
+ * Files are looked up in the dict.home system property, or the working directory.
+ */
+public class BenchInputs {
+
+    static File dictionary(String name) {
+        return new File(System.getProperty("dict.home", System.getProperty("user.dir")), name);
+    }
+
+    // the first n words of file265744, cycling if it is shorter
+    static ArrayList<String> words(int n) throws IOException {
+        ArrayList<String> partition = FileServer.loadDictionary(dictionary("file265744")).get(0);
+        ArrayList<String> words = new ArrayList<String>(n);
+        for (int i = 0; i < n; i++)
+            words.add(partition.get(i % partition.size()));
+        return words;
+    }
+
+}
@@ -0,0 +1,211 @@
+package dict.attack;
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.io.Files;
+import org.apache.commons.lang.SerializationUtils;
+
+import java.io.File;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end time-to-crack benchmark on a LocalCluster. For 1, 2, 4 ... N workers it submits
+ * hashes of random dictionary words (known plaintexts) and reports time-to-result percentiles,
+ * cluster hashes per second and scaling efficiency relative to one worker.
+ *
+ * With kill it runs N workers only and kills one once half of the results are in, reporting
+ * how long the jobs that were in flight at that point took to recover.
+ *
+ * With zipf the plaintexts follow a power law over a fixed random ranking of the dictionary,
+ * like real passwords, instead of being uniform; adding ranked gives the fileserver that
+ * ranking (dict.rank), so the two runs compare mean time-to-crack with and without it.
+ *
+ * Usage: ClusterBench [workers] [jobs] [dictionary] [kill] [zipf [ranked]]
+ */
+public class ClusterBench {
+
+    private static final int ZK_PORT = 21810;
+    private static final int BASE_PORT = 23000;
+    private static final int BATCH_SIZE = 1000;
+    private static final int RESULT_TIMEOUT = 600000;
+    private static final int RECV_TIMEOUT = 1000;
+    private static final long RANK_SEED = 1043;
+
+    private static Random random = new Random(419);
+
+    static class RunResult {
+        int workers;
+        long wallNanos;
+        long hashes;
+        int wrong;
+        Histogram timeToResult = new Histogram();
+        long recoveryNanos = -1;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int maxWorkers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int jobs = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        String dictionary = args.length > 2 ? args[2] : "file265744";
+        boolean kill = Arrays.asList(args).contains("kill");
+        boolean zipf = Arrays.asList(args).contains("zipf");
+
+        List<String> words = new ArrayList<String>();
+        for (ArrayList<String> partition : FileServer.loadDictionary(BenchInputs.dictionary(dictionary)).values())
+            words.addAll(partition);
+        if (zipf) {
+            // words most likely first, the same ranking every run
+            Collections.sort(words);
+            Collections.shuffle(words, new Random(RANK_SEED));
+            File ranks = new File("build/cluster-bench/ranks.txt");
+            ranks.getParentFile().mkdirs();
+            Files.write(Joiner.on("\n").join(words), ranks, Charsets.UTF_8);
+            if (Arrays.asList(args).contains("ranked"))
+                System.setProperty("dict.rank", ranks.getAbsolutePath());
+        }
+
+        List<Integer> steps = new ArrayList<Integer>();
+        if (kill) {
+            steps.add(Math.max(2, maxWorkers));
+        } else {
+            for (int n = 1; n < maxWorkers; n *= 2)
+                steps.add(n);
+            steps.add(maxWorkers);
+        }
+
+        List<RunResult> results = new ArrayList<RunResult>();
+        for (int n : steps) {
+            // fresh plaintexts for every run so worker caches don't carry over
+            Map<String, String> workload = new LinkedHashMap<String, String>();
+            while (workload.size() < jobs) {
+                // log-uniform rank, roughly Zipf with exponent 1
+                String word = zipf
+                        ? words.get((int) Math.pow(words.size(), random.nextDouble()) - 1)
+                        : words.get(random.nextInt(words.size()));
+                workload.put(Worker.md5Hex(word), word);
+            }
+            LocalCluster cluster = new LocalCluster(ZK_PORT, BASE_PORT, dictionary, new File("build/cluster-bench/" + n));
+            try {
+                cluster.start(n);
+                RunResult result = run(cluster, workload, kill);
+                results.add(result);
+                report(result, results.get(0));
+            } finally {
+                cluster.stop();
+            }
+        }
+        System.exit(0);
+    }
+
+    static RunResult run(LocalCluster cluster, Map<String, String> workload, boolean kill) throws Exception {
+        RunResult result = new RunResult();
+        result.workers = cluster.getNumWorkers();
+
+        String[] hostPort = cluster.getTrackerAddress().split(":");
+        Transport transport = Transport.open();
+        Transport.Socket requests = transport.socket(Transport.REQ);
+        requests.connect(hostPort[0] + ":" + hostPort[1]);
+        Transport.Socket results = transport.socket(Transport.SUB);
+        results.setReceiveTimeOut(RECV_TIMEOUT);
+        results.connect(hostPort[0] + ":" + (Integer.parseInt(hostPort[1]) + JobTracker.PUB_PORT_OFFSET));
+        results.subscribe("".getBytes());
+        Thread.sleep(RECV_TIMEOUT);
+
+        Map<String, Long> submitted = new HashMap<String, Long>();
+        List<String> hashes = new ArrayList<String>(workload.keySet());
+        long start = System.nanoTime();
+        for (int i = 0; i < hashes.size(); i += BATCH_SIZE) {
+            ArrayList<String> batch = new ArrayList<String>(hashes.subList(i, Math.min(i + BATCH_SIZE, hashes.size())));
+            while (!batch.isEmpty()) {
+                long now = System.nanoTime();
+                for (String hash : batch)
+                    submitted.put(hash, now);
+                JobPacket jobPacket = new JobPacket();
+                jobPacket.type = JobPacket.JOB_BATCH_REQ;
+                jobPacket.hashes = batch;
+                requests.send(SerializationUtils.serialize(jobPacket));
+                JobPacket reply = (JobPacket) SerializationUtils.deserialize(Transport.body(requests.recv()));
+                batch = reply.type == JobPacket.JOB_BUSY ? reply.hashes : new ArrayList<String>();
+                if (!batch.isEmpty())
+                    Thread.sleep(RECV_TIMEOUT);
+            }
+        }
+
+        Set<String> pending = new HashSet<String>(hashes);
+        Set<String> inFlightAtKill = null;
+        long killedAt = 0;
+        long deadline = System.currentTimeMillis() + RESULT_TIMEOUT;
+        while (!pending.isEmpty() && System.currentTimeMillis() < deadline) {
+            List<byte[]> message = results.recv();
+            if (message == null)
+                continue;
+            JobPacket packet = (JobPacket) SerializationUtils.deserialize(Transport.body(message));
+            if (!pending.remove(packet.hash))
+                continue;
+            long now = System.nanoTime();
+            result.timeToResult.record(now - submitted.get(packet.hash));
+            if (!workload.get(packet.hash).equals(packet.result))
+                result.wrong++;
+
+            if (kill && inFlightAtKill == null && pending.size() <= hashes.size() / 2) {
+                inFlightAtKill = new HashSet<String>(pending);
+                killedAt = now;
+                cluster.killWorker(0);
+                System.out.println("Killed worker 0 with " + pending.size() + " jobs in flight");
+            }
+            if (inFlightAtKill != null) {
+                inFlightAtKill.remove(packet.hash);
+                if (inFlightAtKill.isEmpty() && result.recoveryNanos < 0)
+                    result.recoveryNanos = now - killedAt;
+            }
+        }
+        result.wallNanos = System.nanoTime() - start;
+        result.wrong += pending.size();
+
+        for (int i = 0; i < result.workers; i++)
+            result.hashes += scrapeCounter(cluster.getWorkerMetricsPort(i), "worker.hashes");
+
+        requests.close();
+        results.close();
+        transport.close();
+        return result;
+    }
+
+    // read one value from a worker's plaintext metrics endpoint, 0 if the worker is gone
+    static long scrapeCounter(int port, String name) {
+        try {
+            Scanner scanner = new Scanner(new URL("http://127.0.0.1:" + port + "/metrics").openStream(), "UTF-8");
+            try {
+                while (scanner.hasNextLine()) {
+                    String[] line = scanner.nextLine().split(" ");
+                    if (line[0].equals(name))
+                        return (long) Double.parseDouble(line[1]);
+                }
+            } finally {
+                scanner.close();
+            }
+        } catch (Exception e) {
+            // killed worker
+        }
+        return 0;
+    }
+
+    static void report(RunResult result, RunResult baseline) {
+        double seconds = result.wallNanos / 1e9;
+        long jobs = result.timeToResult.getCount();
+        double throughput = jobs / seconds;
+        double baseThroughput = baseline.timeToResult.getCount() / (baseline.wallNanos / 1e9);
+        System.out.println(String.format(
+                "workers=%d jobs=%d wrong=%d wall=%.2fs jobs/s=%.2f hashes/s=%.0f efficiency=%.2f " +
+                "time-to-result mean=%dms p50=%dms p90=%dms p99=%dms max=%dms%s",
+                result.workers, jobs, result.wrong, seconds, throughput, result.hashes / seconds,
+                throughput / (baseThroughput * result.workers / baseline.workers),
+                TimeUnit.NANOSECONDS.toMillis((long) result.timeToResult.getMean()),
+                TimeUnit.NANOSECONDS.toMillis(result.timeToResult.getPercentile(0.5)),
+                TimeUnit.NANOSECONDS.toMillis(result.timeToResult.getPercentile(0.9)),
+                TimeUnit.NANOSECONDS.toMillis(result.timeToResult.getPercentile(0.99)),
+                TimeUnit.NANOSECONDS.toMillis(result.timeToResult.getMax()),
+                result.recoveryNanos < 0 ? "" : String.format(" recovery=%dms", TimeUnit.NANOSECONDS.toMillis(result.recoveryNanos))));
+    }
+
+}
@@ -0,0 +1,27 @@
+package dict.attack;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FileServer start-up cost of reading a dictionary and splitting it into partitions.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DictionaryLoadBenchmark {
+
+    @Param({"file1000", "file265744"})
+    public String dictionary;
+
+    @Benchmark
+    public HashMap<Integer, ArrayList<String>> loadDictionary() throws Exception {
+        return FileServer.loadDictionary(BenchInputs.dictionary(dictionary));
+    }
+
+}
@@ -0,0 +1,169 @@
+package dict.attack;
+import org.apache.commons.lang.SerializationUtils;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JobTracker failover timing on a LocalCluster with a primary and a warm standby tracker.
+ * Each round submits a batch of known-plaintext hashes, kills the primary as soon as the
+ * batch is accepted (so the jobs are still in its queue) and measures how long the standby
+ * takes to publish itself in /tracker and to answer its first request, then checks that
+ * every accepted job still gets its result. A fresh standby is started for the next round.
+ *
+ * With crash the primary is SIGKILLed rather than stopped, so takeover waits for its
+ * ZooKeeper session to time out.
+ *
+ * Usage: FailoverBench [rounds] [jobs] [dictionary] [crash]
+ */
+public class FailoverBench {
+
+    private static final int ZK_PORT = 21811;
+    private static final int BASE_PORT = 24000;
+    private static final int WORKERS = 2;
+    private static final int RESULT_TIMEOUT = 600000;
+    private static final int RECV_TIMEOUT = 1000;
+    private static final int POLL_MILLIS = 200;
+
+    private static Random random = new Random(419);
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int jobs = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        String dictionary = args.length > 2 ? args[2] : "file265744";
+        boolean crash = Arrays.asList(args).contains("crash");
+
+        List<String> words = new ArrayList<String>();
+        for (ArrayList<String> partition : FileServer.loadDictionary(BenchInputs.dictionary(dictionary)).values())
+            words.addAll(partition);
+
+        Histogram takeover = new Histogram();
+        Histogram firstReply = new Histogram();
+        int lost = 0;
+        int wrong = 0;
+
+        LocalCluster cluster = new LocalCluster(ZK_PORT, BASE_PORT, dictionary, new File("build/failover-bench"));
+        Transport transport = Transport.open();
+        try {
+            cluster.start(WORKERS);
+            for (int round = 0; round < rounds; round++) {
+                // the tracker started last round is primary now, start its standby
+                cluster.startTracker();
+                cluster.awaitChildren("/tracker", 2);
+                int primary = cluster.getNumTrackers() - 2;
+
+                Map<String, String> workload = new LinkedHashMap<String, String>();
+                while (workload.size() < jobs) {
+                    String word = words.get(random.nextInt(words.size()));
+                    workload.put(Worker.md5Hex(word), word);
+                }
+
+                String before = cluster.getTrackerAddress();
+                Transport.Socket requests = connect(transport, before);
+                JobPacket jobPacket = new JobPacket();
+                jobPacket.type = JobPacket.JOB_BATCH_REQ;
+                jobPacket.hashes = new ArrayList<String>(workload.keySet());
+                requests.send(SerializationUtils.serialize(jobPacket));
+                JobPacket reply = (JobPacket) SerializationUtils.deserialize(Transport.body(requests.recv()));
+                requests.close();
+                if (reply.type != JobPacket.JOB_ACCEPTED)
+                    throw new IllegalStateException("Batch not accepted: " + reply.type);
+
+                // watch /tracker before killing so the change can't be missed
+                final CountDownLatch changed = new CountDownLatch(1);
+                cluster.getZooKeeper().getData("/tracker", new Watcher() {
+                    @Override
+                    public void process(WatchedEvent event) {
+                        if (event.getType() == Event.EventType.NodeDataChanged)
+                            changed.countDown();
+                    }
+                }, null);
+                long killed = System.nanoTime();
+                if (crash)
+                    cluster.crashTracker(primary);
+                else
+                    cluster.killTracker(primary);
+
+                changed.await();
+                long takeoverNanos = System.nanoTime() - killed;
+                takeover.record(takeoverNanos);
+                String after = cluster.getTrackerAddress();
+
+                // first answer from the new primary, retrying while it finishes binding
+                requests = connect(transport, after);
+                JobPacket status = new JobPacket();
+                status.type = JobPacket.JOB_STATUS;
+                status.hash = jobPacket.hashes.get(0);
+                while (true) {
+                    requests.send(SerializationUtils.serialize(status));
+                    List<byte[]> data = requests.recv();
+                    if (data != null)
+                        break;
+                    requests.close();
+                    requests = connect(transport, after);
+                }
+                long firstReplyNanos = System.nanoTime() - killed;
+                firstReply.record(firstReplyNanos);
+
+                // every accepted job must still be answered, by polling status
+                Set<String> pending = new HashSet<String>(workload.keySet());
+                long deadline = System.currentTimeMillis() + RESULT_TIMEOUT;
+                while (!pending.isEmpty() && System.currentTimeMillis() < deadline) {
+                    Iterator<String> it = pending.iterator();
+                    while (it.hasNext()) {
+                        String hash = it.next();
+                        status.hash = hash;
+                        requests.send(SerializationUtils.serialize(status));
+                        List<byte[]> data = requests.recv();
+                        if (data == null) {
+                            requests.close();
+                            requests = connect(transport, after);
+                            break;
+                        }
+                        JobPacket answer = (JobPacket) SerializationUtils.deserialize(Transport.body(data));
+                        if (answer.type == JobPacket.JOB_RESULT) {
+                            if (!workload.get(hash).equals(answer.result))
+                                wrong++;
+                            it.remove();
+                        } else if (answer.type == JobPacket.JOB_NOTFOUND) {
+                            // the new primary never heard of it
+                            lost++;
+                            it.remove();
+                        }
+                    }
+                    Thread.sleep(POLL_MILLIS);
+                }
+                wrong += pending.size();
+                requests.close();
+
+                System.out.println(String.format("round=%d %s -> %s takeover=%dms first-reply=%dms",
+                        round, before, after,
+                        TimeUnit.NANOSECONDS.toMillis(takeoverNanos),
+                        TimeUnit.NANOSECONDS.toMillis(firstReplyNanos)));
+            }
+        } finally {
+            cluster.stop();
+        }
+
+        System.out.println(String.format(
+                "rounds=%d jobs=%d lost=%d wrong=%d mode=%s takeover p50=%dms max=%dms first-reply p50=%dms max=%dms",
+                rounds, rounds * jobs, lost, wrong, crash ? "crash" : "kill",
+                TimeUnit.NANOSECONDS.toMillis(takeover.getPercentile(0.5)),
+                TimeUnit.NANOSECONDS.toMillis(takeover.getMax()),
+                TimeUnit.NANOSECONDS.toMillis(firstReply.getPercentile(0.5)),
+                TimeUnit.NANOSECONDS.toMillis(firstReply.getMax())));
+        System.exit(lost == 0 && wrong == 0 ? 0 : 1);
+    }
+
+    private static Transport.Socket connect(Transport transport, String tracker) {
+        Transport.Socket socket = transport.socket(Transport.REQ);
+        socket.setReceiveTimeOut(RECV_TIMEOUT);
+        socket.connect(tracker);
+        return socket;
+    }
+
+}
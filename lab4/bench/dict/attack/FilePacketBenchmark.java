@@ -0,0 +1,70 @@
+package dict.attack;
+import org.apache.commons.lang.SerializationUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FilePacket Java serialization as done between FileServer and Worker, at small,
+ * realistic (file265744 split in 100) and large chunk sizes, as a plain word list
+ * and front-coded with and without block compression.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FilePacketBenchmark {
+
+    @Param({"100", "2658", "10000"})
+    public int chunkSize;
+
+    @Param({"false", "true"})
+    public boolean compress;
+
+    private FilePacket packet;
+    private byte[] serialized;
+    private FilePacket frontCoded;
+    private byte[] serializedFrontCoded;
+
+    @Setup
+    public void setup() throws Exception {
+        packet = new FilePacket();
+        packet.type = FilePacket.FILE_RESULT;
+        packet.result = BenchInputs.words(chunkSize);
+        serialized = SerializationUtils.serialize(packet);
+        frontCoded = new FilePacket();
+        frontCoded.type = FilePacket.FILE_RESULT;
+        frontCoded.result = null;
+        frontCoded.partition = FrontCodedPartition.encode(packet.result, compress);
+        serializedFrontCoded = SerializationUtils.serialize(frontCoded);
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        return SerializationUtils.serialize(packet);
+    }
+
+    @Benchmark
+    public Object deserialize() {
+        return SerializationUtils.deserialize(serialized);
+    }
+
+    @Benchmark
+    public byte[] serializeFrontCoded() {
+        return SerializationUtils.serialize(frontCoded);
+    }
+
+    // deserialize and decode every word, as the worker does before hashing
+    @Benchmark
+    public int deserializeFrontCoded() {
+        FilePacket packet = (FilePacket) SerializationUtils.deserialize(serializedFrontCoded);
+        FrontCodedPartition.Decoder decoder = packet.partition.decoder();
+        int bytes = 0;
+        while (decoder.next())
+            bytes += decoder.length();
+        return bytes;
+    }
+
+}
@@ -0,0 +1,64 @@
+package dict.attack;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Each hash algorithm's kernel over one realistic partition (2658 words) with a target that
+ * misses, alone on pre-encoded words and through Worker.findHash with its digest cache. The
+ * md5 findHash run compares directly with HashKernelBenchmark.findHash.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HashAlgorithmBenchmark {
+
+    @Param({"md5", "sha1", "sha256", "ntlm"})
+    public String algorithmName;
+
+    private ArrayList<String> words;
+    private byte[][] encoded;
+    private HashAlgorithm algorithm;
+    private String miss;
+    private byte[] target;
+    private byte[] digest;
+
+    @Setup
+    public void setup() throws Exception {
+        words = BenchInputs.words(2658);
+        encoded = new byte[words.size()][];
+        for (int i = 0; i < words.size(); i++)
+            encoded[i] = words.get(i).getBytes(Charsets.UTF_8);
+        algorithm = HashAlgorithm.forName(algorithmName);
+        miss = (algorithm == HashAlgorithm.MD5 ? "" : algorithmName + ":")
+                + Strings.repeat("ff", algorithm.getDigestLength());
+        target = algorithm.decode(miss);
+        digest = new byte[algorithm.getDigestLength()];
+    }
+
+    // digest and raw compare only
+    @Benchmark
+    public int kernel() {
+        HashAlgorithm.Kernel kernel = algorithm.kernel();
+        for (int i = 0; i < encoded.length; i++) {
+            kernel.digest(encoded[i], 0, encoded[i].length, digest);
+            if (Arrays.equals(digest, target))
+                return i;
+        }
+        return -1;
+    }
+
+    // the worker path, including the digest cache
+    @Benchmark
+    public String findHash() {
+        return Worker.findHash(miss, words);
+    }
+
+}
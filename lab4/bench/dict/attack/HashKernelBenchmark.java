@@ -0,0 +1,82 @@
+package dict.attack;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Worker.findHash against alternative MD5 kernels, over one realistic partition
+ * (2658 words) with a target that misses so every word is hashed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HashKernelBenchmark {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final String MISS = "ffffffffffffffffffffffffffffffff";
+
+    private ArrayList<String> words;
+    private MessageDigest md5;
+    private byte[] target;
+
+    @Setup
+    public void setup() throws Exception {
+        words = BenchInputs.words(2658);
+        md5 = MessageDigest.getInstance("MD5");
+        target = new byte[16];
+        for (int i = 0; i < 16; i++)
+            target[i] = (byte) Integer.parseInt(MISS.substring(2 * i, 2 * i + 2), 16);
+    }
+
+    // current worker path, including the digest cache
+    @Benchmark
+    public String findHash() {
+        return Worker.findHash(MISS, words);
+    }
+
+    // current kernel alone: new digest per word, BigInteger hex with zero padding
+    @Benchmark
+    public String bigIntegerHex() throws Exception {
+        for (String word : words) {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            String hashCal = new BigInteger(1, digest.digest(word.getBytes())).toString(16);
+            while (hashCal.length() < 32) hashCal = "0" + hashCal;
+            if (MISS.equals(hashCal))
+                return word;
+        }
+        return null;
+    }
+
+    // reused digest, hex through a lookup table
+    @Benchmark
+    public String tableHex() {
+        char[] hex = new char[32];
+        for (String word : words) {
+            byte[] digest = md5.digest(word.getBytes());
+            for (int i = 0; i < 16; i++) {
+                hex[2 * i] = HEX[(digest[i] >> 4) & 0xf];
+                hex[2 * i + 1] = HEX[digest[i] & 0xf];
+            }
+            if (MISS.equals(new String(hex)))
+                return word;
+        }
+        return null;
+    }
+
+    // reused digest, compare raw bytes against the decoded target
+    @Benchmark
+    public String rawDigest() {
+        for (String word : words) {
+            if (MessageDigest.isEqual(target, md5.digest(word.getBytes())))
+                return word;
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,240 @@
+package dict.attack;
+import org.apache.commons.lang.SerializationUtils;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Open-loop load on the tracker's submission path, on a LocalCluster. Requests are issued on a
+ * Poisson schedule at a fixed mean rate, whatever the tracker's response time, by a pool of
+ * simulated clients each with its own REQ socket. Latency is measured from when a request was
+ * due, so a backed up tracker shows up as latency rather than a lower request rate.
+ *
+ * Submissions are md5s of random dictionary words (known plaintexts), with a share of misses
+ * that aren't in the dictionary and take a full scan; status requests poll earlier submissions
+ * and check the answers. Reports submit and status latency percentiles, busy replies, timeouts,
+ * wrong answers and the tracker's queue depth every few seconds and at the end.
+ *
+ * Usage: LoadGenerator [rate/s] [seconds] [clients] [workers] [miss ratio] [dictionary]
+ */
+public class LoadGenerator {
+
+    private static final int ZK_PORT = 21812;
+    private static final int BASE_PORT = 25000;
+    private static final int REQUEST_TIMEOUT = 5000;
+    private static final int REPORT_INTERVAL = 5000;
+    private static final double STATUS_RATIO = 0.5;
+    private static final long STOP = Long.MIN_VALUE;
+
+    private static Random random = new Random(419);
+
+    // hashes submitted and accepted, with the expected plaintext (null for misses)
+    private static final Map<String, String> expected = Collections.synchronizedMap(new HashMap<String, String>());
+    private static final List<String> accepted = Collections.synchronizedList(new ArrayList<String>());
+
+    private static final Histogram submitLatency = new Histogram();
+    private static final Histogram statusLatency = new Histogram();
+    private static final AtomicLong submits = new AtomicLong();
+    private static final AtomicLong statuses = new AtomicLong();
+    private static final AtomicLong busy = new AtomicLong();
+    private static final AtomicLong timeouts = new AtomicLong();
+    private static final AtomicLong wrong = new AtomicLong();
+    private static final AtomicLong errors = new AtomicLong();
+    private static final AtomicLong results = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        double rate = args.length > 0 ? Double.parseDouble(args[0]) : 200;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        int clients = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        int workers = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+        final double missRatio = args.length > 4 ? Double.parseDouble(args[4]) : 0.1;
+        String dictionary = args.length > 5 ? args[5] : "file265744";
+
+        final List<String> words = new ArrayList<String>();
+        for (ArrayList<String> partition : FileServer.loadDictionary(BenchInputs.dictionary(dictionary)).values())
+            words.addAll(partition);
+
+        final LocalCluster cluster = new LocalCluster(ZK_PORT, BASE_PORT, dictionary, new File("build/load-gen"));
+        try {
+            cluster.start(workers);
+            final String tracker = cluster.getTrackerAddress();
+            final Transport transport = Transport.open();
+            final LinkedBlockingQueue<Long> schedule = new LinkedBlockingQueue<Long>();
+
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int i = 0; i < clients; i++) {
+                final Random clientRandom = new Random(random.nextLong());
+                Thread client = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        simulateClient(transport, tracker, schedule, words, missRatio, clientRandom);
+                    }
+                }, "client-" + i);
+                client.start();
+                threads.add(client);
+            }
+
+            Thread monitor = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    monitor(cluster, schedule);
+                }
+            });
+            monitor.setDaemon(true);
+            monitor.start();
+
+            // open loop: exponential gaps with mean 1/rate, never waiting on replies
+            long start = System.nanoTime();
+            long end = start + TimeUnit.SECONDS.toNanos(seconds);
+            double meanGap = 1e9 / rate;
+            long due = start;
+            while (due < end) {
+                long wait = due - System.nanoTime();
+                if (wait > 0)
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                schedule.put(due);
+                due += (long) (-Math.log(1 - random.nextDouble()) * meanGap);
+            }
+            for (int i = 0; i < clients; i++)
+                schedule.put(STOP);
+            for (Thread client : threads)
+                client.join();
+            long wall = System.nanoTime() - start;
+
+            report(cluster, rate, wall);
+            transport.close();
+        } finally {
+            cluster.stop();
+        }
+        System.exit(0);
+    }
+
+    static void simulateClient(Transport transport, String tracker, LinkedBlockingQueue<Long> schedule,
+                               List<String> words, double missRatio, Random random) {
+        Transport.Socket socket = connect(transport, tracker);
+        try {
+            while (true) {
+                long due = schedule.take();
+                if (due == STOP)
+                    break;
+
+                JobPacket jobPacket = new JobPacket();
+                String hash = null;
+                if (random.nextDouble() < STATUS_RATIO && !accepted.isEmpty()) {
+                    synchronized (accepted) {
+                        hash = accepted.get(random.nextInt(accepted.size()));
+                    }
+                    jobPacket.type = JobPacket.JOB_STATUS;
+                } else if (random.nextDouble() < missRatio) {
+                    hash = Worker.md5Hex("miss-" + random.nextLong());
+                    expected.put(hash, null);
+                    jobPacket.type = JobPacket.JOB_REQ;
+                } else {
+                    String word = words.get(random.nextInt(words.size()));
+                    hash = Worker.md5Hex(word);
+                    expected.put(hash, word);
+                    jobPacket.type = JobPacket.JOB_REQ;
+                }
+                jobPacket.hash = hash;
+
+                socket.send(SerializationUtils.serialize(jobPacket));
+                List<byte[]> data = socket.recv();
+                long latency = System.nanoTime() - due;
+                if (data == null) {
+                    // a REQ socket can't send again without a reply
+                    timeouts.incrementAndGet();
+                    socket.close();
+                    socket = connect(transport, tracker);
+                    continue;
+                }
+                JobPacket reply = (JobPacket) SerializationUtils.deserialize(Transport.body(data));
+
+                if (jobPacket.type == JobPacket.JOB_REQ) {
+                    submitLatency.record(latency);
+                    submits.incrementAndGet();
+                    if (reply.type == JobPacket.JOB_ACCEPTED)
+                        accepted.add(hash);
+                    else if (reply.type == JobPacket.JOB_BUSY)
+                        busy.incrementAndGet();
+                    else
+                        errors.incrementAndGet();
+                } else {
+                    statusLatency.record(latency);
+                    statuses.incrementAndGet();
+                    if (reply.type == JobPacket.JOB_RESULT) {
+                        results.incrementAndGet();
+                        String want = expected.get(hash);
+                        if (want == null ? reply.result != null : !want.equals(reply.result))
+                            wrong.incrementAndGet();
+                    } else if (reply.type != JobPacket.JOB_PROGRESS) {
+                        // an accepted job the tracker doesn't know about
+                        errors.incrementAndGet();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // Ignore
+        } finally {
+            socket.close();
+        }
+    }
+
+    // print interval throughput and how backed up the tracker and our own schedule are
+    static void monitor(LocalCluster cluster, LinkedBlockingQueue<Long> schedule) {
+        long lastSubmits = 0;
+        long lastStatuses = 0;
+        while (true) {
+            try {
+                Thread.sleep(REPORT_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long s = submits.get();
+            long q = statuses.get();
+            System.out.println(String.format(
+                    "submits/s=%.1f status/s=%.1f busy=%d timeouts=%d client-backlog=%d tracker-queue=%d tracker-busy=%d",
+                    (s - lastSubmits) * 1000.0 / REPORT_INTERVAL, (q - lastStatuses) * 1000.0 / REPORT_INTERVAL,
+                    busy.get(), timeouts.get(), schedule.size(),
+                    ClusterBench.scrapeCounter(cluster.getTrackerMetricsPort(0), "tracker.queue.depth"),
+                    ClusterBench.scrapeCounter(cluster.getTrackerMetricsPort(0), "tracker.busy")));
+            lastSubmits = s;
+            lastStatuses = q;
+        }
+    }
+
+    static void report(LocalCluster cluster, double rate, long wallNanos) {
+        double seconds = wallNanos / 1e9;
+        int trackerPort = cluster.getTrackerMetricsPort(0);
+        System.out.println(String.format(
+                "offered=%.1f/s achieved=%.1f/s submits=%d statuses=%d results=%d busy=%d timeouts=%d wrong=%d errors=%d",
+                rate, (submits.get() + statuses.get()) / seconds, submits.get(), statuses.get(), results.get(),
+                busy.get(), timeouts.get(), wrong.get(), errors.get()));
+        System.out.println(latencyLine("submit", submitLatency));
+        System.out.println(latencyLine("status", statusLatency));
+        System.out.println(String.format("tracker queue=%d request p99=%dus busy=%d",
+                ClusterBench.scrapeCounter(trackerPort, "tracker.queue.depth"),
+                ClusterBench.scrapeCounter(trackerPort, "tracker.request.latency.p99_us"),
+                ClusterBench.scrapeCounter(trackerPort, "tracker.busy")));
+    }
+
+    private static String latencyLine(String name, Histogram histogram) {
+        return String.format("%s latency p50=%.2fms p90=%.2fms p99=%.2fms p999=%.2fms max=%.2fms",
+                name,
+                histogram.getPercentile(0.5) / 1e6,
+                histogram.getPercentile(0.9) / 1e6,
+                histogram.getPercentile(0.99) / 1e6,
+                histogram.getPercentile(0.999) / 1e6,
+                histogram.getMax() / 1e6);
+    }
+
+    private static Transport.Socket connect(Transport transport, String tracker) {
+        Transport.Socket socket = transport.socket(Transport.REQ);
+        socket.setReceiveTimeOut(REQUEST_TIMEOUT);
+        socket.connect(tracker);
+        return socket;
+    }
+
+}
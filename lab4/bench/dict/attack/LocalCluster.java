@@ -0,0 +1,199 @@
+package dict.attack;
+import com.google.common.base.Joiner;
+import com.google.common.io.Files;
+import org.apache.zookeeper.*;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A dictionary-attack cluster on loopback: an embedded ZooKeeper server in this JVM, and a
+ * FileServer, JobTracker and workers each in their own child JVM (they keep their state in
+ * statics, so one process per component). Child output goes to [logDir]/[component].log
+ */
+public class LocalCluster {
+
+    private static final int ZK_TIMEOUT = 5000;
+    private static final int READY_TIMEOUT = 30000;
+    private static final int METRICS_PORT_OFFSET = 100;
+    private static final int TRACKER_PORT_STRIDE = 20;
+    private static final int TRACKER_METRICS_OFFSET = 50;
+
+    private final int zkPort;
+    private final int basePort;
+    private final File logDir;
+    private final String dictionary;
+
+    private File zkDir;
+    private ServerCnxnFactory zkFactory;
+    private ZooKeeper zooKeeper;
+    private Process fileServer;
+    private List<Process> trackers = new ArrayList<Process>();
+    private List<Process> workers = new ArrayList<Process>();
+
+    /* Tracker listens on basePort (and the next two ports), a standby tracker on basePort + 20,
+       the file server on basePort + 10. Trackers serve metrics on basePort + 50 (standby + 51)
+       and worker i on basePort + 100 + i */
+    public LocalCluster(int zkPort, int basePort, String dictionary, File logDir) {
+        this.zkPort = zkPort;
+        this.basePort = basePort;
+        this.dictionary = dictionary;
+        this.logDir = logDir;
+        logDir.mkdirs();
+    }
+
+    public void start(int numWorkers) throws Exception {
+        zkDir = Files.createTempDir();
+        ZooKeeperServer zks = new ZooKeeperServer(zkDir, zkDir, 2000);
+        zkFactory = ServerCnxnFactory.createFactory(zkPort, 1000);
+        zkFactory.startup(zks);
+
+        final CountDownLatch connected = new CountDownLatch(1);
+        zooKeeper = new ZooKeeper("127.0.0.1:" + zkPort, ZK_TIMEOUT, new Watcher() {
+            @Override
+            public void process(WatchedEvent event) {
+                if (event.getState() == Event.KeeperState.SyncConnected)
+                    connected.countDown();
+            }
+        });
+        connected.await();
+
+        // components expect each other's parents to exist
+        for (String path : new String[]{"/worker", "/jobs", "/result"}) {
+            if (zooKeeper.exists(path, false) == null)
+                zooKeeper.create(path, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        }
+
+        fileServer = launch("fileserver", "dict.attack.FileServer", -1,
+                "127.0.0.1", String.valueOf(zkPort), "fs", dictionary, String.valueOf(basePort + 10));
+        awaitChildren("/fileserver", 1);
+        startTracker();
+        awaitChildren("/tracker", 1);
+        for (int i = 0; i < numWorkers; i++)
+            startWorker();
+        awaitChildren("/worker", numWorkers);
+    }
+
+    // trackers alternate between two sets of ports, so kill one before starting a third
+    public Process startTracker() throws Exception {
+        int id = trackers.size();
+        Process tracker = launch("tracker" + id, "dict.attack.JobTracker", getTrackerMetricsPort(id),
+                "127.0.0.1", String.valueOf(zkPort), String.valueOf(basePort + TRACKER_PORT_STRIDE * (id % 2)), "t" + id);
+        trackers.add(tracker);
+        return tracker;
+    }
+
+    public Process startWorker() throws Exception {
+        int id = workers.size();
+        Process worker = launch("worker" + id, "dict.attack.Worker", basePort + METRICS_PORT_OFFSET + id,
+                "127.0.0.1", String.valueOf(zkPort), "w" + id);
+        workers.add(worker);
+        return worker;
+    }
+
+    public void killWorker(int id) {
+        workers.get(id).destroy();
+    }
+
+    // SIGTERM, the tracker closes its ZooKeeper session on the way out
+    public void killTracker(int id) throws InterruptedException {
+        trackers.get(id).destroy();
+        trackers.get(id).waitFor();
+    }
+
+    // SIGKILL, the tracker's session is left to time out
+    public void crashTracker(int id) throws InterruptedException {
+        trackers.get(id).destroyForcibly();
+        trackers.get(id).waitFor();
+    }
+
+    public ZooKeeper getZooKeeper() {
+        return zooKeeper;
+    }
+
+    public String getTrackerAddress() throws Exception {
+        return new String(zooKeeper.getData("/tracker", false, null));
+    }
+
+    public int getNumTrackers() {
+        return trackers.size();
+    }
+
+    public int getNumWorkers() {
+        return workers.size();
+    }
+
+    public int getTrackerMetricsPort(int id) {
+        return basePort + TRACKER_METRICS_OFFSET + id % 2;
+    }
+
+    public int getWorkerMetricsPort(int id) {
+        return basePort + METRICS_PORT_OFFSET + id;
+    }
+
+    // wait until path has at least n children
+    public void awaitChildren(String path, int n) throws Exception {
+        long deadline = System.currentTimeMillis() + READY_TIMEOUT;
+        while (true) {
+            if (zooKeeper.exists(path, false) != null && zooKeeper.getChildren(path, false).size() >= n)
+                return;
+            if (System.currentTimeMillis() > deadline)
+                throw new IllegalStateException("Timed out waiting for " + n + " children of " + path);
+            Thread.sleep(50);
+        }
+    }
+
+    public void stop() {
+        for (Process worker : workers)
+            worker.destroy();
+        for (Process tracker : trackers)
+            tracker.destroy();
+        if (fileServer != null)
+            fileServer.destroy();
+        workers.clear();
+        trackers.clear();
+        try {
+            if (zooKeeper != null)
+                zooKeeper.close();
+        } catch (InterruptedException e) {
+            // Ignore
+        }
+        if (zkFactory != null)
+            zkFactory.shutdown();
+    }
+
+    private Process launch(String name, String mainClass, int metricsPort, String... args) throws Exception {
+        List<String> command = new ArrayList<String>();
+        command.add(Joiner.on(File.separator).join(System.getProperty("java.home"), "bin", "java"));
+        if (System.getProperty("java.library.path") != null)
+            command.add("-Djava.library.path=" + System.getProperty("java.library.path"));
+        if (metricsPort > 0)
+            command.add("-Ddict.metrics.port=" + metricsPort);
+        // e.g. a ranked dictionary for the fileserver
+        if (System.getProperty("dict.rank") != null)
+            command.add("-Ddict.rank=" + System.getProperty("dict.rank"));
+        // every process on the same transport
+        command.add("-Ddict.transport=" + Transport.TRANSPORT);
+        // workers keep their digest cache here, fresh for every cluster so runs don't share it
+        command.add("-Ddict.worker.dir=" + new File(zkDir, "worker-state"));
+        // and the fileserver its dictionary images
+        command.add("-Ddict.fileserver.dir=" + new File(zkDir, "fileserver-state"));
+        if (System.getProperty("dict.default") != null)
+            command.add("-Ddict.default=" + System.getProperty("dict.default"));
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(mainClass);
+        for (String arg : args)
+            command.add(arg);
+
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(new File(logDir, name + ".log"));
+        return builder.start();
+    }
+
+}
@@ -0,0 +1,94 @@
+package dict.attack;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request/reply over loopback on each transport, against an echo server on a ROUTER socket as
+ * the tracker and fileservers run: one request at a time (REQ, as clients do), and a window of
+ * requests in flight on a DEALER (as workers stream partition frames). The zmq runs need the
+ * jzmq native library on java.library.path.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TransportBenchmark {
+
+    private static final int PORT = 26100;
+    private static final int WINDOW = 64;
+
+    @Param({"zmq", "nio"})
+    public String transportName;
+
+    // 64 bytes is about a status request, 16K a front-coded partition frame
+    @Param({"64", "16384"})
+    public int size;
+
+    private Transport transport;
+    private Transport.Socket server;
+    private Transport.Socket req;
+    private Transport.Socket dealer;
+    private Thread echo;
+    private byte[] payload;
+
+    @Setup
+    public void setup() throws Exception {
+        transport = Transport.open(transportName);
+        server = transport.socket(Transport.ROUTER);
+        server.bind(PORT);
+        echo = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    List<byte[]> message = server.recv();
+                    if (message != null)
+                        server.send(message);
+                }
+            }
+        });
+        echo.setDaemon(true);
+        echo.start();
+
+        req = transport.socket(Transport.REQ);
+        req.connect("localhost:" + PORT);
+        dealer = transport.socket(Transport.DEALER);
+        dealer.connect("localhost:" + PORT);
+        payload = new byte[size];
+        // both connected before measuring
+        req.send(payload);
+        req.recv();
+        dealer.send(payload);
+        dealer.recv();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        echo.interrupt();
+        // the echo thread may be blocked in recv, leave it to die with the fork
+        req.close();
+        dealer.close();
+    }
+
+    @Benchmark
+    public List<byte[]> roundTrip() {
+        req.send(payload);
+        return req.recv();
+    }
+
+    // WINDOW requests in flight, time per request
+    @Benchmark
+    @OperationsPerInvocation(WINDOW)
+    public int pipelined() {
+        for (int i = 0; i < WINDOW; i++)
+            dealer.send(payload);
+        int received = 0;
+        for (int i = 0; i < WINDOW; i++)
+            received += Transport.body(dealer.recv()).length;
+        return received;
+    }
+
+}
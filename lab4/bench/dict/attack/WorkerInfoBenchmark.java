@@ -0,0 +1,55 @@
+package dict.attack;
+import com.google.gson.Gson;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gson encode and decode of the /jobs/[hash] data, with partitions spread over 8 workers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WorkerInfoBenchmark {
+
+    private static final int WORKERS = 8;
+
+    @Param({"100", "1000", "10000"})
+    public int partitions;
+
+    private Gson gson;
+    private WorkerInfo workerInfo;
+    private String json;
+
+    @Setup
+    public void setup() {
+        gson = new Gson();
+        List<Integer> partIdList = new ArrayList<Integer>(partitions);
+        for (int i = 0; i < partitions; i++)
+            partIdList.add(i);
+        LinkedHashMap<String, Double> capacities = new LinkedHashMap<String, Double>();
+        for (int i = 0; i < WORKERS; i++)
+            capacities.put("worker" + i, WorkerCapacity.DEFAULT_HASH_RATE);
+        HashMap<String, List<Integer>> workerIds = JobTracker.assignPartitions(partIdList, capacities);
+        workerInfo = new WorkerInfo(workerIds, "421493fa48fc8df84d1f5f3478cf247a");
+        json = gson.toJson(workerInfo);
+    }
+
+    @Benchmark
+    public String encode() {
+        return gson.toJson(workerInfo);
+    }
+
+    @Benchmark
+    public WorkerInfo decode() {
+        return gson.fromJson(json, WorkerInfo.class);
+    }
+
+}
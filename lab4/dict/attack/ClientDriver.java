@@ -9,14 +9,19 @@ import org.apache.zookeeper.data.Stat;
 import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.Subscribe;
 
-import org.zeromq.ZMQ;
 
 import java.io.BufferedReader;
+import java.io.FileReader;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created with IntelliJ IDEA.
@@ -36,10 +41,23 @@ public class ClientDriver  {
     private static final int ZK_TIMEOUT = 5000;
     private static String ZK_TRACKER = "/tracker";
     private static CountDownLatch nodeCreatedSignal = new CountDownLatch(1);
-
-    /* ZeroMQ */
-    private static ZMQ.Context context;
-    private static ZMQ.Socket socket;
+    private static final int BATCH_SIZE = 1000;
+    private static final int SUB_TIMEOUT = 1000;
+    private static final int MAX_BACKOFF = 8000;
+    // a request unanswered for this long is resent, to the new primary if the tracker failed over
+    private static final int REQUEST_TIMEOUT = 3000;
+    // a bulk wait with no result pushed for this long polls the status of what's still pending
+    private static final int RESULT_POLL = 5000;
+
+    // hashes of the current bulk submission still waiting for a pushed result
+    private static Map<String, Boolean> bulkPending = new ConcurrentHashMap<String, Boolean>();
+    private static CountDownLatch bulkDone = new CountDownLatch(0);
+
+    /* Transport */
+    private static Transport transport;
+    private static Transport.Socket socket;
+    private static String connectedTo = null;
+    private static volatile String trackerId = null;
 
     public ClientDriver(){
 
@@ -78,11 +96,11 @@ public class ClientDriver  {
 
             // setup connection with tracker
 
-            // initialize ZMQ
-            context = ZMQ.context(1);
+            // initialize the transport
+            transport = Transport.open();
 
-            // setup socket with zmq
-            setSocket(new String(zooKeeper.getData(ZK_TRACKER,false,null)));
+            // setup socket, watching for the tracker failing over
+            setTracker(new String(zooKeeper.getData(ZK_TRACKER,zkWatcher,null)));
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -94,10 +112,9 @@ public class ClientDriver  {
     public void handleJobPacket(JobPacket jobPacket){
         // send packet to tracker
         System.out.println("To tracker " + jobPacket.type);
-        socket.send(SerializationUtils.serialize(jobPacket),0);
 
         // reply
-        JobPacket packetFromServer = (JobPacket) SerializationUtils.deserialize(socket.recv(0));
+        JobPacket packetFromServer = request(jobPacket);
         System.out.println("Packet from tracker "+ packetFromServer.type);
 
         if (packetFromServer.type == JobPacket.JOB_RESULT){
@@ -111,6 +128,10 @@ public class ClientDriver  {
         }
         if (packetFromServer.type == JobPacket.JOB_PROGRESS){
             System.out.println("Job in progress, please wait!");
+            System.out.println(String.format("%.1f%% done, ETA %s, cluster at %.0f hashes/s",
+                    packetFromServer.percentDone,
+                    packetFromServer.etaMillis < 0 ? "unknown" : (packetFromServer.etaMillis / 1000) + " s",
+                    packetFromServer.hashRate));
         }
         if (packetFromServer.type == JobPacket.JOB_NOTFOUND){
             System.out.println("No such Job, please enter your job again!");
@@ -118,20 +139,201 @@ public class ClientDriver  {
         if (packetFromServer.type == JobPacket.JOB_ACCEPTED){
             System.out.println("Job accepted! Please check status in a bit!");
         }
+        if (packetFromServer.type == JobPacket.JOB_BUSY){
+            System.out.println("Tracker is busy, please submit your job again later!");
+        }
+        if (packetFromServer.type == JobPacket.JOB_CANCELLED){
+            System.out.println("Job cancelled!");
+        }
+        if (packetFromServer.type == JobPacket.JOB_ERROR){
+            System.out.println("Job refused by tracker, no such dictionary or malformed hash!");
+        }
         System.out.print("> ");
 
     }
 
 
-    private void setSocket (String jobtrackerId){
-        // setup socket with zmq
+    private void setTracker (String jobtrackerId){
         System.out.println("re-set connection!");
-        socket = context.socket(ZMQ.REQ);
-        socket.connect("tcp://"+ jobtrackerId);
+        // request() reconnects and the result listener re-subscribes on their own threads when they see this change
+        trackerId = jobtrackerId;
         System.out.print("> ");
 
     }
 
+    /* Send a request to the current tracker and wait for the reply. A request the tracker doesn't
+       answer in time is resent, to the new primary once /tracker points at it; the tracker merges
+       duplicate submissions so resending is safe */
+    private static synchronized JobPacket request(JobPacket jobPacket){
+        long start = System.nanoTime();
+        while (true){
+            if (!trackerId.equals(connectedTo)){
+                if (socket != null)
+                    socket.close();
+                socket = transport.socket(Transport.REQ);
+                socket.setReceiveTimeOut(REQUEST_TIMEOUT);
+                socket.connect(trackerId);
+                connectedTo = trackerId;
+            }
+            socket.send(SerializationUtils.serialize(jobPacket));
+            List<byte[]> reply = socket.recv();
+            if (reply != null){
+                if (Trace.ENABLED){
+                    if (jobPacket.hashes != null){
+                        for (String hash : jobPacket.hashes)
+                            Trace.span("client.request", hash, start);
+                    }
+                    else {
+                        Trace.span("client.request", jobPacket.hash, start);
+                    }
+                }
+                return (JobPacket) SerializationUtils.deserialize(Transport.body(reply));
+            }
+            System.err.println("Tracker " + connectedTo + " not answering, retrying");
+            // a REQ socket can't send again without a reply, start over with a fresh one
+            socket.close();
+            socket = null;
+            connectedTo = null;
+        }
+    }
+
+    // receive results pushed by the tracker as each /result/<hash> is created
+    public Runnable resultListener(){
+        return new Runnable() {
+            @Override
+            public void run() {
+                Transport.Socket subscriber = null;
+                String subscribedTo = null;
+                while (true){
+                    if (!trackerId.equals(subscribedTo)){
+                        if (subscriber != null)
+                            subscriber.close();
+                        subscribedTo = trackerId;
+                        String[] hostPort = subscribedTo.split(":");
+                        subscriber = transport.socket(Transport.SUB);
+                        subscriber.setReceiveTimeOut(SUB_TIMEOUT);
+                        subscriber.connect(hostPort[0] + ":" + (Integer.parseInt(hostPort[1]) + JobTracker.PUB_PORT_OFFSET));
+                        subscriber.subscribe("".getBytes());
+                    }
+
+                    // topic and packet
+                    List<byte[]> message = subscriber.recv();
+                    if (message == null)
+                        continue;
+                    JobPacket packetFromServer = (JobPacket) SerializationUtils.deserialize(Transport.body(message));
+                    String result = packetFromServer.result == null ? "<not found>" : packetFromServer.result;
+                    if (packetFromServer.type == JobPacket.JOB_CANCELLED)
+                        result = "<cancelled>";
+                    if (Trace.ENABLED) Trace.instant("client.result", packetFromServer.hash);
+
+                    if (bulkPending.remove(packetFromServer.hash) != null){
+                        System.out.println(packetFromServer.hash + " " + result);
+                        bulkDone.countDown();
+                    }
+                    else {
+                        System.out.println("Result pushed for " + packetFromServer.hash + ": " + result);
+                    }
+                }
+            }
+        };
+    }
+
+    /* Submit every hash read from source (a file name, or "-" for stdin) in batched frames,
+       then wait for all results to be pushed back */
+    public void bulkSubmit(String source, int priority, long deadline) throws Exception {
+        BufferedReader in = source.equals("-")
+                ? new BufferedReader(new InputStreamReader(System.in))
+                : new BufferedReader(new FileReader(source));
+        List<String> hashes = new ArrayList<String>();
+        String line;
+        while ((line = in.readLine()) != null){
+            line = normalize(line.trim());
+            if (!line.isEmpty() && !Dictionaries.isValid(line)){
+                System.err.println("Skipping " + line + ": unknown algorithm or malformed hash");
+                continue;
+            }
+            if (!line.isEmpty() && !bulkPending.containsKey(line)){
+                bulkPending.put(line, true);
+                hashes.add(line);
+            }
+        }
+        if (!source.equals("-"))
+            in.close();
+
+        bulkDone = new CountDownLatch(hashes.size());
+        for (int i = 0; i < hashes.size(); i += BATCH_SIZE){
+            ArrayList<String> batch = new ArrayList<String>(hashes.subList(i, Math.min(i + BATCH_SIZE, hashes.size())));
+            int backoff = SUB_TIMEOUT / 2;
+            while (!batch.isEmpty()){
+                JobPacket jobPacket = new JobPacket();
+                jobPacket.type = JobPacket.JOB_BATCH_REQ;
+                jobPacket.priority = priority;
+                jobPacket.deadline = deadline;
+                jobPacket.hashes = batch;
+                JobPacket packetFromServer = request(jobPacket);
+                if (packetFromServer.invalid != null){
+                    bulkRejected(packetFromServer.invalid, "<no such dictionary or malformed hash>");
+                    batch.removeAll(packetFromServer.invalid);
+                }
+                if (packetFromServer.type == JobPacket.JOB_BUSY){
+                    // tracker is over capacity, resubmit only the rejected hashes after backing off
+                    batch = packetFromServer.hashes;
+                    System.err.println("Tracker busy, retrying " + batch.size() + " hashes in " + backoff + " ms");
+                    Thread.sleep(backoff);
+                    backoff = Math.min(backoff * 2, MAX_BACKOFF);
+                    continue;
+                }
+                if (packetFromServer.type != JobPacket.JOB_ACCEPTED && !batch.isEmpty()){
+                    System.err.println("Batch rejected by tracker: " + packetFromServer.type);
+                    bulkRejected(batch, "<rejected>");
+                }
+                break;
+            }
+        }
+        System.err.println("Submitted " + hashes.size() + " hashes, waiting for results");
+        long remaining = bulkDone.getCount();
+        while (!bulkDone.await(RESULT_POLL, TimeUnit.MILLISECONDS)){
+            // results go missing when published before the subscription is up or during a failover
+            if (bulkDone.getCount() == remaining)
+                pollPending();
+            remaining = bulkDone.getCount();
+        }
+    }
+
+    // report hashes the tracker refused, no result is coming for them
+    private static void bulkRejected(List<String> hashes, String reason){
+        for (String hash : hashes){
+            if (bulkPending.remove(hash) != null){
+                System.out.println(hash + " " + reason);
+                bulkDone.countDown();
+            }
+        }
+    }
+
+    /* Ask the tracker for each hash still waiting for a pushed result. A result is taken as if
+       pushed, and a hash the tracker neither holds nor has a result for (cancelled, or lost) is
+       given up on */
+    private static void pollPending(){
+        System.err.println("No results for " + RESULT_POLL + " ms, polling " + bulkPending.size() + " pending hashes");
+        for (String hash : new ArrayList<String>(bulkPending.keySet())){
+            JobPacket jobPacket = new JobPacket();
+            jobPacket.type = JobPacket.JOB_STATUS;
+            jobPacket.hash = hash;
+            JobPacket packetFromServer = request(jobPacket);
+            String result;
+            if (packetFromServer.type == JobPacket.JOB_RESULT)
+                result = packetFromServer.result == null ? "<not found>" : packetFromServer.result;
+            else if (packetFromServer.type == JobPacket.JOB_NOTFOUND)
+                result = "<no such job>";
+            else
+                continue;
+            if (bulkPending.remove(hash) != null){
+                System.out.println(hash + " " + result);
+                bulkDone.countDown();
+            }
+        }
+    }
+
     /* ZooKeeper Watcher */
     class ZkWatcher implements Watcher {
         @Override
@@ -145,7 +347,7 @@ public class ClientDriver  {
                     try {
                         if (path.equals(ZK_TRACKER)){
                             try{
-                                setSocket(new String(zooKeeper.getData(ZK_TRACKER,false,null)));
+                                setTracker(new String(zooKeeper.getData(ZK_TRACKER,zkWatcher,null)));
                             } catch (Exception e) {
                                 e.printStackTrace();
                             }
@@ -177,13 +379,61 @@ public class ClientDriver  {
         }
     }
 
+    // hex and algorithm names in lower case, dictionary names are as their files are, and no "md5:"
+    // so that a hash is the same job however it was spelled
+    private static String normalize(String key){
+        int at = key.indexOf('@');
+        key = key.substring(0, at + 1) + key.substring(at + 1).toLowerCase();
+        HashAlgorithm algorithm = HashAlgorithm.of(key);
+        return algorithm == null ? key : algorithm.canonical(key);
+    }
+
+    // the dictionaries jobs can name, from /dictionaries
+    private void listDictionaries() throws KeeperException, InterruptedException {
+        String defaultName = Dictionaries.defaultName(zooKeeper);
+        List<String> names;
+        try {
+            names = zooKeeper.getChildren(Dictionaries.ZK_DICTIONARIES, false);
+        } catch (KeeperException.NoNodeException e){
+            names = new ArrayList<String>();
+        }
+        Collections.sort(names);
+        for (String name : names){
+            DictionaryManifest manifest = Dictionaries.named(zooKeeper, name);
+            if (manifest != null)
+                System.out.println(name + (name.equals(defaultName) ? " (default)" : "") + ": "
+                        + manifest.getWords() + " words, " + manifest.getPartitions() + " partitions");
+        }
+    }
+
+    // optional trailing "urgent" on job and bulk commands
+    private static int parsePriority(String userInput){
+        String[] tokens = userInput.split(" ");
+        if (tokens.length > 2 && tokens[2].equals("urgent"))
+            return JobPacket.PRIORITY_URGENT;
+        return JobPacket.PRIORITY_NORMAL;
+    }
+
+    // optional trailing number of seconds after which job and bulk commands are cancelled, 0 for none
+    private static long parseDeadline(String userInput){
+        String[] tokens = userInput.split(" ");
+        for (int i = 2; i < tokens.length; i++){
+            if (tokens[i].matches("\\d+"))
+                return System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(Long.parseLong(tokens[i]));
+        }
+        return 0;
+    }
+
     public static void main (String[] args){
 
-        if (args.length == 2){
+        String bulkSource = null;
+        if (args.length == 2 || args.length == 3){
 
             try{
                 zooHost = args[0];
                 zooPort = Integer.parseInt(args[1]);
+                if (args.length == 3)
+                    bulkSource = args[2];
 
             } catch (Exception e){
                 e.printStackTrace();
@@ -191,39 +441,80 @@ public class ClientDriver  {
 
         }
         else {
-            System.err.println("Usage client [zooHost] [zooPort]");
+            System.err.println("Usage client [zooHost] [zooPort] [bulk-file|-]");
             System.exit(-1);
         }
 
+        Trace.start("client");
         eventBus = new EventBus("Client");
         ClientDriver c = new ClientDriver();
         eventBus.register(c);
+        Thread listener = new Thread(c.resultListener());
+        listener.setDaemon(true);
+        listener.start();
+
+        // headless bulk mode: submit everything, print results, then exit
+        if (bulkSource != null){
+            try {
+                c.bulkSubmit(bulkSource, JobPacket.PRIORITY_NORMAL, 0);
+            } catch (Exception e){
+                e.printStackTrace();
+                System.exit(1);
+            }
+            System.exit(0);
+        }
 
         // prompt user to input job
         BufferedReader stdIn = new BufferedReader(new InputStreamReader(System.in));
 
-        System.out.println("Usage: {job [password hash]|status|quit }");
+        System.out.println("Usage: {job [password hash] [urgent] [seconds]|status|cancel|bulk [file] [urgent] [seconds]|dictionaries|quit }");
+        System.out.println("A hash is an md5 in hex, or another algorithm's prefixed with its name: sha1:, sha256: or ntlm:");
+        System.out.println("Prefix it with dictionary@ to search a dictionary other than the default");
         System.out.print("> ");
         String userInput = null;
 
         try{
             while ((userInput = stdIn.readLine()) != null && userInput.toLowerCase().indexOf("quit") == -1){
 
-                if (!userInput.split(" ")[0].equals("job") && ! userInput.split(" ")[0].equals("status")){
-                    System.out.println("Usage: {job [password hash]|[status hash] |quit }");
+                if (!userInput.split(" ")[0].equals("job") && ! userInput.split(" ")[0].equals("status") && ! userInput.split(" ")[0].equals("bulk")
+                        && ! userInput.split(" ")[0].equals("cancel") && ! userInput.split(" ")[0].equals("dictionaries")){
+                    System.out.println("Usage: {job [password hash] [urgent] [seconds]|[status hash]|[cancel hash]|[bulk file] [urgent] [seconds] |dictionaries|quit }");
                     System.out.print("> ");
                     continue;
                 }
+                if (userInput.split(" ")[0].equals("dictionaries")){
+                    c.listDictionaries();
+                    System.out.print("> ");
+                }
+                if (userInput.split(" ")[0].equals("bulk")){
+                    c.bulkSubmit(userInput.split(" ")[1], parsePriority(userInput), parseDeadline(userInput));
+                    System.out.print("> ");
+                }
                 if (userInput.split(" ")[0].equals("job")){
-                    String hash = userInput.split(" ")[1];
+                    String hash = normalize(userInput.split(" ")[1]);
+                    if (!Dictionaries.isValid(hash)){
+                        System.out.println("Unknown algorithm or malformed hash: " + hash);
+                        System.out.print("> ");
+                        continue;
+                    }
                     System.out.println("Hash =" + hash);
                     JobPacket jobPacket = new JobPacket();
                     jobPacket.type = JobPacket.JOB_REQ;
                     jobPacket.hash = hash;
+                    jobPacket.priority = parsePriority(userInput);
+                    jobPacket.deadline = parseDeadline(userInput);
+                    eventBus.post(jobPacket);
+                }
+                if (userInput.split(" ")[0].equals("cancel")){
+                    String hash = normalize(userInput.split(" ")[1]);
+                    System.out.println("Cancelling");
+                    JobPacket jobPacket = new JobPacket();
+                    jobPacket.type = JobPacket.JOB_CANCEL;
+                    jobPacket.hash = hash;
                     eventBus.post(jobPacket);
                 }
                 if (userInput.split(" ")[0].equals("status")){
-                    String hash = userInput.split(" ")[1];
+                    String hash = normalize(userInput.split(" ")[1]);
                     System.out.println("Checking status");
                     JobPacket jobPacket = new JobPacket();
                     jobPacket.type = JobPacket.JOB_STATUS;
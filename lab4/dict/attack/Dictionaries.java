@@ -0,0 +1,133 @@
+package dict.attack;
+import com.google.common.base.Joiner;
+import com.google.gson.Gson;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Layout of /dictionaries, the catalog of wordlists the fileservers serve. Each dictionary has a
+ * persistent /dictionaries/&lt;name&gt; holding its DictionaryManifest, and /dictionaries itself
+ * holds the name of the default dictionary, the one a job searches unless it names another.
+ *
+ * A job names its dictionary in front of its hash, "name@hash" (e.g. "rockyou@ntlm:8846f7ea..."),
+ * so jobs on different lists, and their not-found results, never mix. The digest caches go by the
+ * hash alone: a password hashed from any list answers a job on every list.
+ */
+public class Dictionaries {
+
+    static final String ZK_DICTIONARIES = "/dictionaries";
+
+    private static final Gson gson = new Gson();
+    // manifests read so far, each dropped when its znode changes
+    private static final Map<String, DictionaryManifest> manifests = new ConcurrentHashMap<String, DictionaryManifest>();
+    private static volatile String defaultName = null;
+
+    // the dictionary a job key names, null for the default
+    static String of(String key) {
+        int at = key.indexOf('@');
+        return at < 0 ? null : key.substring(0, at);
+    }
+
+    // the job key without its dictionary
+    static String hash(String key) {
+        return key.substring(key.indexOf('@') + 1);
+    }
+
+    // letters, digits, '.', '_' and '-'
+    static boolean isValidName(String name) {
+        if (name.isEmpty())
+            return false;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '.' && c != '_' && c != '-')
+                return false;
+        }
+        return true;
+    }
+
+    // a well formed job key, whether or not its dictionary exists
+    static boolean isValid(String key) {
+        String name = of(key);
+        return (name == null || isValidName(name)) && HashAlgorithm.isValid(hash(key));
+    }
+
+    /* what a worker's cached partitions for a job are kept under: the job's dictionary, the default
+       by its name so it is the same scope whether or not a job names it, the job's algorithm, and
+       the dictionary's layout so a repartitioned list starts over. null if it has no manifest */
+    static String scope(ZooKeeper zooKeeper, String key) throws KeeperException, InterruptedException {
+        DictionaryManifest manifest = manifest(zooKeeper, key);
+        return manifest == null ? null : scope(manifest.getName(), HashAlgorithm.of(key), manifest.getLayout());
+    }
+
+    static String scope(String dictionary, HashAlgorithm algorithm, String layout) {
+        return scopePrefix(dictionary, algorithm) + (layout == null ? "" : layout);
+    }
+
+    // the scopes of dictionary and algorithm under any layout start with this
+    static String scopePrefix(String dictionary, HashAlgorithm algorithm) {
+        return dictionary + "@" + algorithm.getName() + "#";
+    }
+
+    // the default dictionary, null until a fileserver has published one
+    static String defaultName(ZooKeeper zooKeeper) throws KeeperException, InterruptedException {
+        String name = defaultName;
+        if (name != null)
+            return name;
+        try {
+            byte[] data = zooKeeper.getData(ZK_DICTIONARIES, new Watcher() {
+                @Override
+                public void process(WatchedEvent event) {
+                    defaultName = null;
+                }
+            }, null);
+            if (data == null || data.length == 0)
+                return null;
+            name = new String(data);
+        } catch (KeeperException.NoNodeException e) {
+            return null;
+        }
+        defaultName = name;
+        return name;
+    }
+
+    static String path(String name) {
+        return Joiner.on("/").join(ZK_DICTIONARIES, name);
+    }
+
+    // the manifest of the dictionary a job key names, null if no fileserver has published it
+    static DictionaryManifest manifest(ZooKeeper zooKeeper, String key) throws KeeperException, InterruptedException {
+        String name = of(key);
+        if (name == null)
+            name = defaultName(zooKeeper);
+        if (name == null)
+            return null;
+        return named(zooKeeper, name);
+    }
+
+    // the manifest of dictionary name, null if no fileserver has published it
+    static DictionaryManifest named(ZooKeeper zooKeeper, String name) throws KeeperException, InterruptedException {
+        DictionaryManifest manifest = manifests.get(name);
+        if (manifest != null)
+            return manifest;
+        final String cached = name;
+        try {
+            byte[] data = zooKeeper.getData(path(name), new Watcher() {
+                @Override
+                public void process(WatchedEvent event) {
+                    manifests.remove(cached);
+                }
+            }, null);
+            manifest = gson.fromJson(new String(data), DictionaryManifest.class);
+        } catch (KeeperException.NoNodeException e) {
+            return null;
+        }
+        manifests.put(name, manifest);
+        return manifest;
+    }
+
+}
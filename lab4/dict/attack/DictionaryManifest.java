@@ -0,0 +1,46 @@
+package dict.attack;
+
+/**
+ * A dictionary in the catalog, the json data of its /dictionaries/&lt;name&gt; znode. Written by
+ * the fileserver that first maps it; the tracker splits a job on it into this many partitions.
+ * The layout fingerprints which words are in which partition, workers drop the partitions they
+ * cached or finished under another.
+ */
+public class DictionaryManifest {
+
+    private String name = null;
+    private int partitions = 0;
+    private long words = 0;
+    private String layout = null;
+    private long updated = 0;
+
+    DictionaryManifest(String name, int partitions, long words, String layout) {
+        this.name = name;
+        this.partitions = partitions;
+        this.words = words;
+        this.layout = layout;
+        this.updated = System.currentTimeMillis();
+    }
+
+    String getName() {
+        return name;
+    }
+
+    int getPartitions() {
+        return partitions;
+    }
+
+    long getWords() {
+        return words;
+    }
+
+    // null in manifests written before there was one
+    String getLayout() {
+        return layout;
+    }
+
+    long getUpdated() {
+        return updated;
+    }
+
+}
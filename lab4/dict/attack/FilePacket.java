@@ -13,13 +13,35 @@ import java.util.List;
 public class FilePacket implements Serializable {
     public static final int FILE_NULL = 0;
     public static final int FILE_REQ = 100;
+    public static final int FILE_STREAM_REQ = 101;
+    public static final int FILE_CREDIT = 102;
     public static final int FILE_RESULT = 200;
+    public static final int FILE_FRAME = 201;
     public static final int FILE_ERROR = 300;
     public static final int FILE_BYE = 301;
 
+    public static final int ENCODING_LIST = 0;
+    public static final int ENCODING_FRONT_CODED = 1;
+
     public int type = FilePacket.FILE_NULL;
 
     public int id = 0;
+    // dictionary of the catalog the partition is in, null for the default
+    public String dictionary = null;
+    // encoding the requester wants the partition in
+    public int encoding = FilePacket.ENCODING_LIST;
     public ArrayList<String> result = new ArrayList<String>();
+    public FrontCodedPartition partition = null;
+
+    /* Streaming: a FILE_STREAM_REQ asks for the partition from frame onwards with credit frames
+       in flight, each FILE_FRAME carries one block of it, FILE_CREDIT lets more frames through
+       and FILE_BYE cancels the stream. stream ties them to one request */
+    public long stream = 0;
+    public int frame = 0;
+    public int frames = 0;
+    public int credit = 0;
+
+    // job the partition is fetched for, only used to tag trace spans
+    public String hash = null;
 
 }
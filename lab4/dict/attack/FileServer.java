@@ -5,16 +5,24 @@ import com.google.common.collect.Lists;
 import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.Subscribe;
 import com.google.common.io.Files;
+import com.google.gson.Gson;
 import org.apache.commons.lang.SerializationUtils;
 import org.apache.zookeeper.*;
-import org.zeromq.ZMQ;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created with IntelliJ IDEA.
@@ -26,36 +34,56 @@ import java.util.concurrent.CountDownLatch;
 public class FileServer {
     private static EventBus eventBus;
 
-    private HashMap<Integer, ArrayList<String>> map = new HashMap<Integer, ArrayList<String>>();
-    private static final int FILE_LENGTH = 265744;
+    /* The catalog: every dictionary served, by name, each front-coded into an image under
+       dict.fileserver.dir and memory-mapped. -Ddict.fileserver.compress=true also deflates their blocks */
+    private final Map<String, MappedDictionary> dictionaries = new ConcurrentHashMap<String, MappedDictionary>();
+    private volatile MappedDictionary defaultDictionary = null;
+    private File catalog;
+    private static final File IMAGE_DIR = new File(System.getProperty("dict.fileserver.dir", "fileserver-state"));
+    private static final boolean COMPRESS = Boolean.getBoolean("dict.fileserver.compress");
+    // -Ddict.rank=[file] partitions each dictionary by word probability, most likely first
+    private static final String RANK_FILE = System.getProperty("dict.rank");
+    // -Ddict.default=[name] picks the default of a catalog directory, the first by name otherwise
+    private static final String DEFAULT_DICTIONARY = System.getProperty("dict.default");
+    // how often a catalog directory is checked for new wordlists
+    private static final int CATALOG_SCAN = 10000;
+
+    // partitions being streamed, by sender identity and stream id
+    private HashMap<String, Stream> streams = new HashMap<String, Stream>();
+    private static final int STREAM_EXPIRY = 30000;
     private static final int FILE_CHUNK_SIZE = 100;
 
     private static ZkWatcher zkWatcher;
     private static CountDownLatch zkConnected;
     private static final int ZK_TIMEOUT = 5000;
     private static ZooKeeper zooKeeper;
+    private static Gson gson = new Gson();
     private static String ZK_FILESERVER = "/fileserver";
+    private static String ZK_REPLICAS = "/fileserver_replica";
     private static String zooHost;
     private static int zooPort;
     private static String pathtofile = System.getProperty("user.dir");
     private static String myID = null;
     private static int myPort = 0;
 
-    /* ZeroMQ */
-    private static ZMQ.Context context;
-    private static ZMQ.Socket socket;
+    /* Transport */
+    private static Transport transport;
+    private static Transport.Socket socket;
+
+    /* Metrics */
+    private static final Histogram serveLatency = Metrics.histogram("fileserver.serve.latency");
+    private static final AtomicLong requests = Metrics.counter("fileserver.requests");
 
     public FileServer(String fileName){
         
-        // read the dictionary file and load it onto memory
+        // map the dictionary file, or every wordlist in the catalog directory
         try {
-            List<String> lines = Files.readLines(new File(Joiner.on("/").join(pathtofile, fileName)), Charsets.UTF_8);
-            List<List<String>> chunks =  Lists.partition(lines, (int) Math.ceil((float)FILE_LENGTH/ FILE_CHUNK_SIZE));
-            int i = 0;
-            for (List<String> chunk : chunks){
-                ArrayList<String> temp = new ArrayList<String>(chunk);
-                map.put(i, temp);
-                i++;
+            catalog = new File(fileName).isAbsolute() ? new File(fileName) : new File(Joiner.on("/").join(pathtofile, fileName));
+            IMAGE_DIR.mkdirs();
+            List<MappedDictionary> mapped = scanCatalog();
+            if (defaultDictionary == null){
+                System.err.println("No default dictionary to serve in " + catalog);
+                System.exit(-1);
             }
 
             // connect with zooKeeper
@@ -122,6 +150,24 @@ public class FileServer {
 
             }
 
+            // publish the catalog before taking requests for it
+            publish(mapped);
+
+            // primary and backups all serve reads, register my endpoint for the workers
+            if (zooKeeper.exists(ZK_REPLICAS, false) == null){
+                try {
+                    zooKeeper.create(ZK_REPLICAS, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+                } catch (KeeperException.NodeExistsException e){
+                    // another replica created it first
+                }
+            }
+            zooKeeper.create(
+                    Joiner.on("/").join(ZK_REPLICAS, myID),
+                    Joiner.on(":").join(InetAddress.getLocalHost().getHostAddress(), myPort).getBytes(),
+                    ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.EPHEMERAL_SEQUENTIAL
+            );
+
         } catch (Exception e){
             e.printStackTrace();
         }
@@ -129,13 +175,192 @@ public class FileServer {
 
     }
 
+    /* Map every wordlist of the catalog not mapped yet, the catalog being a single file or a
+       directory of them. A dictionary is named after its file, up to any extension. Returns the
+       ones newly mapped */
+    private List<MappedDictionary> scanCatalog(){
+        File[] files = catalog.isDirectory() ? catalog.listFiles() : new File[]{catalog};
+        List<MappedDictionary> mapped = new ArrayList<MappedDictionary>();
+        if (files == null)
+            return mapped;
+        Arrays.sort(files);
+        for (File file : files){
+            if (!file.isFile() || file.isHidden())
+                continue;
+            String name = file.getName();
+            if (name.lastIndexOf('.') > 0)
+                name = name.substring(0, name.lastIndexOf('.'));
+            if (dictionaries.containsKey(name))
+                continue;
+            if (!Dictionaries.isValidName(name)){
+                System.err.println("Skipping " + file + ", dictionary names are letters, digits, '.', '_' and '-'");
+                continue;
+            }
+            try {
+                MappedDictionary dictionary = MappedDictionary.open(name, file,
+                        RANK_FILE == null ? null : new File(RANK_FILE), IMAGE_DIR, COMPRESS);
+                dictionaries.put(name, dictionary);
+                if (defaultDictionary == null && (DEFAULT_DICTIONARY == null || DEFAULT_DICTIONARY.equals(name)))
+                    defaultDictionary = dictionary;
+                mapped.add(dictionary);
+                System.out.println("Mapped dictionary " + name + ": " + dictionary.getWords() + " words in "
+                        + dictionary.getPartitions() + " partitions, " + dictionary.getMappedBytes() + " bytes front-coded");
+            } catch (IOException e){
+                e.printStackTrace();
+            }
+        }
+        return mapped;
+    }
+
+    /* Write the manifest of each dictionary to /dictionaries/<name>, and my default as the
+       catalog's if it has none yet. A manifest that differs (the list or its ranks were changed) is replaced */
+    private void publish(List<MappedDictionary> mapped) throws KeeperException, InterruptedException {
+        try {
+            zooKeeper.create(Dictionaries.ZK_DICTIONARIES, defaultDictionary.getName().getBytes(),
+                    ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        } catch (KeeperException.NodeExistsException e){
+            byte[] data = zooKeeper.getData(Dictionaries.ZK_DICTIONARIES, false, null);
+            if (data == null || data.length == 0)
+                zooKeeper.setData(Dictionaries.ZK_DICTIONARIES, defaultDictionary.getName().getBytes(), -1);
+        }
+        for (MappedDictionary dictionary : mapped){
+            DictionaryManifest manifest = new DictionaryManifest(dictionary.getName(),
+                    dictionary.getPartitions(), dictionary.getWords(), dictionary.getLayout());
+            String path = Dictionaries.path(dictionary.getName());
+            try {
+                zooKeeper.create(path, gson.toJson(manifest).getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            } catch (KeeperException.NodeExistsException e){
+                DictionaryManifest current = gson.fromJson(new String(zooKeeper.getData(path, false, null)), DictionaryManifest.class);
+                // the same counts can still be partitioned differently, e.g. by a new rank file
+                if (current == null || !manifest.getLayout().equals(current.getLayout())){
+                    System.out.println("Manifest of " + dictionary.getName() + " changed, replacing it");
+                    zooKeeper.setData(path, gson.toJson(manifest).getBytes(), -1);
+                }
+            }
+        }
+    }
+
+    // pick up wordlists dropped into the catalog directory while running
+    public Runnable catalogScanner(){
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true){
+                        Thread.sleep(CATALOG_SCAN);
+                        List<MappedDictionary> mapped = scanCatalog();
+                        if (!mapped.isEmpty())
+                            publish(mapped);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    System.exit(1);
+                }
+            }
+        };
+    }
+
+    // the dictionary a request names, null for one I don't serve
+    private MappedDictionary dictionary(String name){
+        return name == null ? defaultDictionary : dictionaries.get(name);
+    }
+
+    /* split the dictionary into FILE_CHUNK_SIZE partitions keyed by partition id. Words are sorted
+       first so each partition is a lexicographic range and neighbours share long prefixes */
+    static HashMap<Integer, ArrayList<String>> loadDictionary(File file) throws IOException {
+        List<String> lines = Files.readLines(file, Charsets.UTF_8);
+        Collections.sort(lines);
+        return split(lines);
+    }
+
+    /* Split the dictionary into FILE_CHUNK_SIZE partitions in order of probability, partition 0
+       holding the most likely words, so that the lowest partitions (which the tracker hands to every
+       worker first) find most passwords. Words missing from the ranks go last, in lexicographic order.
+       Each partition is still sorted within itself for front coding */
+    static HashMap<Integer, ArrayList<String>> loadDictionary(File file, File ranks) throws IOException {
+        List<String> lines = Files.readLines(file, Charsets.UTF_8);
+        final Map<String, Integer> rank = loadRanks(ranks);
+        Collections.sort(lines, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                Integer rankA = rank.get(a);
+                Integer rankB = rank.get(b);
+                if (rankA != null && rankB != null)
+                    return rankA.compareTo(rankB);
+                if (rankA != null || rankB != null)
+                    return rankA != null ? -1 : 1;
+                return a.compareTo(b);
+            }
+        });
+        return split(lines);
+    }
+
+    /* Rank of each word, 0 being the most likely. Lines are either "word", most likely first (e.g. a
+       leaked password list in frequency order), or "word count", ordered by count */
+    static Map<String, Integer> loadRanks(File ranks) throws IOException {
+        final List<String> words = new ArrayList<String>();
+        final List<Long> counts = new ArrayList<Long>();
+        boolean counted = false;
+        for (String line : Files.readLines(ranks, Charsets.UTF_8)) {
+            String word = line;
+            long count = 0;
+            int space = Math.max(line.lastIndexOf(' '), line.lastIndexOf('\t'));
+            if (space > 0) {
+                try {
+                    count = Long.parseLong(line.substring(space + 1).trim());
+                    word = line.substring(0, space).trim();
+                    counted = true;
+                } catch (NumberFormatException e) {
+                    // a word with a space in it
+                }
+            }
+            words.add(word);
+            counts.add(count);
+        }
+
+        List<Integer> order = new ArrayList<Integer>(words.size());
+        for (int i = 0; i < words.size(); i++)
+            order.add(i);
+        if (counted) {
+            // highest count first, ties in file order
+            Collections.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    int byCount = counts.get(b).compareTo(counts.get(a));
+                    return byCount != 0 ? byCount : a.compareTo(b);
+                }
+            });
+        }
+        Map<String, Integer> rank = new HashMap<String, Integer>();
+        for (int i : order) {
+            if (!rank.containsKey(words.get(i)))
+                rank.put(words.get(i), rank.size());
+        }
+        System.out.println("Loaded " + rank.size() + " ranked words from " + ranks);
+        return rank;
+    }
+
+    private static HashMap<Integer, ArrayList<String>> split(List<String> lines) {
+        HashMap<Integer, ArrayList<String>> partitions = new HashMap<Integer, ArrayList<String>>();
+        List<List<String>> chunks =  Lists.partition(lines, Math.max(1, (int) Math.ceil((float)lines.size()/ FILE_CHUNK_SIZE)));
+        int i = 0;
+        for (List<String> chunk : chunks){
+            ArrayList<String> temp = new ArrayList<String>(chunk);
+            // already in order unless ranked
+            Collections.sort(temp);
+            partitions.put(i, temp);
+            i++;
+        }
+        return partitions;
+    }
+
     /* ZooKeeper Watcher */
     class ZkWatcher implements Watcher {
         @Override
         public void process(WatchedEvent event) {
             Event.EventType type = event.getType();
             String path = event.getPath();
-            System.out.println("Path: " + path + ", Event type:" + type);
+            if (Log.DEBUG) System.out.println("Path: " + path + ", Event type:" + type);
 
             switch (type) {
                 case NodeDataChanged:
@@ -166,6 +391,23 @@ public class FileServer {
             }
         }
     }
+    // a request together with the ROUTER envelope needed to reply to its sender
+    static class Request {
+        List<byte[]> envelope;
+        FilePacket packet;
+    }
+
+    // a partition being streamed to one worker, frames are sent while the worker has credit
+    static class Stream {
+        List<byte[]> envelope;
+        FilePacket request;
+        MappedDictionary dictionary;
+        int nextFrame;
+        int credit;
+        long lastActive;
+        long opened;
+    }
+
     public Runnable workerReq() {
 
         return new Runnable() {
@@ -173,28 +415,127 @@ public class FileServer {
             @Override
             public void run(){
                 while (true){
-                    // wait for client req then respond
-                    FilePacket packetFromServer = (FilePacket) SerializationUtils.deserialize(socket.recv(0));
-                    System.out.println("From client" + packetFromServer.id);
-                    eventBus.post(packetFromServer);
+                    // wait for client req then respond, everything before the last part is the envelope
+                    List<byte[]> message = socket.recv();
+                    Request request = new Request();
+                    request.envelope = new ArrayList<byte[]>(message.subList(0, message.size() - 1));
+                    request.packet = (FilePacket) SerializationUtils.deserialize(Transport.body(message));
+                    if (Log.DEBUG) System.out.println("From client" + request.packet.id);
+                    eventBus.post(request);
 
                 }
 
             }
         };
     }
+
+    private static void reply(List<byte[]> envelope, FilePacket packetToClient){
+        List<byte[]> message = new ArrayList<byte[]>(envelope);
+        message.add(SerializationUtils.serialize(packetToClient));
+        socket.send(message);
+    }
+
+    private static String streamKey(List<byte[]> envelope, FilePacket filePacket){
+        return Arrays.toString(envelope.get(0)) + ":" + filePacket.stream;
+    }
+
+    // send as many frames as the stream has credit for, dropping it once complete
+    private void sendFrames(String key, Stream stream){
+        long start = System.nanoTime();
+        int frames = stream.dictionary.getNumBlocks(stream.request.id);
+        while (stream.credit > 0 && stream.nextFrame < frames){
+            FilePacket frame = new FilePacket();
+            frame.type = FilePacket.FILE_FRAME;
+            frame.id = stream.request.id;
+            frame.stream = stream.request.stream;
+            frame.frame = stream.nextFrame;
+            frame.frames = frames;
+            frame.result = null;
+            frame.partition = stream.dictionary.block(stream.request.id, stream.nextFrame);
+            reply(stream.envelope, frame);
+            stream.nextFrame++;
+            stream.credit--;
+        }
+        stream.lastActive = System.currentTimeMillis();
+        if (Trace.ENABLED) Trace.span("fileserver.send", stream.request.hash, start);
+        if (stream.nextFrame >= frames){
+            streams.remove(key);
+            if (Trace.ENABLED) Trace.span("fileserver.stream", stream.request.hash, stream.opened);
+        }
+    }
+
+    // forget streams whose worker went away without finishing or cancelling them
+    private void expireStreams(){
+        long now = System.currentTimeMillis();
+        Iterator<Stream> it = streams.values().iterator();
+        while (it.hasNext()){
+            if (now - it.next().lastActive > STREAM_EXPIRY)
+                it.remove();
+        }
+    }
+
     @Subscribe
-    public void handleJob(FilePacket filePacket) throws Exception{
+    public void handleJob(Request request) throws Exception{
+        long start = System.nanoTime();
+        requests.incrementAndGet();
+        FilePacket filePacket = request.packet;
         FilePacket packetToClient = new FilePacket();
         if (filePacket.type == FilePacket.FILE_REQ){
             packetToClient.type = FilePacket.FILE_RESULT;
-            packetToClient.result = map.get(filePacket.id);
-            if ( packetToClient.result == null){
+            MappedDictionary dictionary = dictionary(filePacket.dictionary);
+            if ( dictionary == null || !dictionary.hasPartition(filePacket.id)){
                 packetToClient.type = FilePacket.FILE_ERROR;
             }
+            else if (filePacket.encoding == FilePacket.ENCODING_FRONT_CODED){
+                packetToClient.result = null;
+                packetToClient.partition = dictionary.partition(filePacket.id);
+            }
+            else {
+                packetToClient.result = dictionary.partition(filePacket.id).toList();
+            }
+        }
+        if (filePacket.type == FilePacket.FILE_STREAM_REQ){
+            expireStreams();
+            MappedDictionary dictionary = dictionary(filePacket.dictionary);
+            if ( dictionary == null || !dictionary.hasPartition(filePacket.id)){
+                packetToClient.type = FilePacket.FILE_ERROR;
+                packetToClient.stream = filePacket.stream;
+            }
+            else {
+                Stream stream = new Stream();
+                stream.envelope = request.envelope;
+                stream.request = filePacket;
+                stream.dictionary = dictionary;
+                stream.nextFrame = filePacket.frame;
+                stream.credit = filePacket.credit;
+                stream.opened = start;
+                String key = streamKey(request.envelope, filePacket);
+                streams.put(key, stream);
+                sendFrames(key, stream);
+                serveLatency.recordSince(start);
+                return;
+            }
+        }
+        if (filePacket.type == FilePacket.FILE_CREDIT || filePacket.type == FilePacket.FILE_BYE){
+            // streams reply with frames only, credit and cancel get no reply of their own
+            String key = streamKey(request.envelope, filePacket);
+            Stream stream = streams.get(key);
+            if (stream != null){
+                if (filePacket.type == FilePacket.FILE_BYE){
+                    streams.remove(key);
+                    if (Trace.ENABLED) Trace.span("fileserver.stream", filePacket.hash, stream.opened);
+                }
+                else {
+                    stream.credit += filePacket.credit;
+                    sendFrames(key, stream);
+                }
+            }
+            return;
         }
 
-        socket.send(SerializationUtils.serialize(packetToClient),0);
+        reply(request.envelope, packetToClient);
+        serveLatency.recordSince(start);
+        if (Trace.ENABLED) Trace.span("fileserver.serve", filePacket.hash, start);
 
     }
 
@@ -214,20 +555,24 @@ public class FileServer {
 
         }
         else {
-            System.err.println("Usage fileserver [zooHost] [zooPort] [myID] [filename] [myPort]");
+            System.err.println("Usage fileserver [zooHost] [zooPort] [myID] [filename|directory] [myPort]");
             System.exit(-1);
         }
 
-        // initialize ZMQ
-        context = ZMQ.context(1);
-        socket = context.socket(ZMQ.REP);
-        socket.bind ("tcp://*:"+ myPort);
+        // initialize the transport
+        transport = Transport.open();
+        socket = transport.socket(Transport.ROUTER);
+        socket.bind(myPort);
 
         eventBus = new EventBus("fileserver");
         FileServer fileServer = new FileServer(fileName);
         eventBus.register(fileServer);
+        Metrics.start("fileserver-" + myID);
+        Trace.start("fileserver-" + myID);
 
         new Thread(fileServer.workerReq()).start();
+        if (fileServer.catalog.isDirectory())
+            new Thread(fileServer.catalogScanner()).start();
 
     }
 }
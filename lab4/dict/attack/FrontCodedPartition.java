@@ -0,0 +1,234 @@
+package dict.attack;
+import com.google.common.base.Charsets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A dictionary partition stored front-coded: words are UTF-8 and every word after the
+ * first of a block is written as (shared prefix length, suffix length, suffix) against
+ * the word before it. Blocks of BLOCK_WORDS words restart the coding and can each be
+ * deflated. Used both in FileServer memory and on the wire, and decoded one word at a
+ * time by the worker through a Decoder.
+ */
+public class FrontCodedPartition implements Serializable {
+
+    static final int BLOCK_WORDS = 256;
+
+    private int count = 0;
+    private boolean compressed = false;
+    private ArrayList<byte[]> blocks = new ArrayList<byte[]>();
+    private ArrayList<Integer> blockWords = new ArrayList<Integer>();
+    // uncompressed size of each block, needed to inflate it
+    private ArrayList<Integer> rawLengths = new ArrayList<Integer>();
+
+    static FrontCodedPartition encode(List<String> words, boolean compress) {
+        FrontCodedPartition partition = new FrontCodedPartition();
+        partition.compressed = compress;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] previous = new byte[0];
+        int inBlock = 0;
+        for (String word : words) {
+            byte[] bytes = word.getBytes(Charsets.UTF_8);
+            int shared = 0;
+            if (inBlock > 0) {
+                int max = Math.min(previous.length, bytes.length);
+                while (shared < max && previous[shared] == bytes[shared])
+                    shared++;
+            }
+            writeVarInt(out, shared);
+            writeVarInt(out, bytes.length - shared);
+            out.write(bytes, shared, bytes.length - shared);
+            previous = bytes;
+            inBlock++;
+            if (inBlock == BLOCK_WORDS) {
+                partition.addBlock(out.toByteArray(), inBlock);
+                out.reset();
+                inBlock = 0;
+            }
+        }
+        if (inBlock > 0)
+            partition.addBlock(out.toByteArray(), inBlock);
+        return partition;
+    }
+
+    private void addBlock(byte[] raw, int words) {
+        rawLengths.add(raw.length);
+        blockWords.add(words);
+        count += words;
+        if (!compressed) {
+            blocks.add(raw);
+            return;
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(raw);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length);
+        byte[] buf = new byte[4096];
+        while (!deflater.finished())
+            out.write(buf, 0, deflater.deflate(buf));
+        deflater.end();
+        blocks.add(out.toByteArray());
+    }
+
+    // a partition of blocks encoded before, e.g. read back from a MappedDictionary
+    static FrontCodedPartition of(boolean compressed, List<byte[]> blocks, List<Integer> blockWords,
+                                  List<Integer> rawLengths) {
+        FrontCodedPartition partition = new FrontCodedPartition();
+        partition.compressed = compressed;
+        for (int i = 0; i < blocks.size(); i++) {
+            partition.blocks.add(blocks.get(i));
+            partition.blockWords.add(blockWords.get(i));
+            partition.rawLengths.add(rawLengths.get(i));
+            partition.count += blockWords.get(i);
+        }
+        return partition;
+    }
+
+    int size() {
+        return count;
+    }
+
+    boolean isCompressed() {
+        return compressed;
+    }
+
+    // encoded bytes of block i, as stored
+    byte[] blockBytes(int i) {
+        return blocks.get(i);
+    }
+
+    int blockWords(int i) {
+        return blockWords.get(i);
+    }
+
+    int rawLength(int i) {
+        return rawLengths.get(i);
+    }
+
+    int getNumBlocks() {
+        return blocks.size();
+    }
+
+    // a partition holding just block i, sharing its bytes
+    FrontCodedPartition block(int i) {
+        FrontCodedPartition single = new FrontCodedPartition();
+        single.compressed = compressed;
+        single.blocks.add(blocks.get(i));
+        single.blockWords.add(blockWords.get(i));
+        single.rawLengths.add(rawLengths.get(i));
+        single.count = blockWords.get(i);
+        return single;
+    }
+
+    // bytes held by the encoded blocks
+    long getEncodedBytes() {
+        long bytes = 0;
+        for (byte[] block : blocks)
+            bytes += block.length;
+        return bytes;
+    }
+
+    Decoder decoder() {
+        return new Decoder();
+    }
+
+    // decode everything, for clients that want plain word lists
+    ArrayList<String> toList() {
+        ArrayList<String> words = new ArrayList<String>(count);
+        Decoder decoder = decoder();
+        while (decoder.next())
+            words.add(decoder.wordString());
+        return words;
+    }
+
+    /* Walks the words in order, one block in memory at a time. word() is only valid
+       until the next call to next() */
+    class Decoder {
+        private int block = -1;
+        private int remaining = 0;
+        private byte[] data = new byte[0];
+        private int pos = 0;
+        private byte[] word = new byte[64];
+        private int length = 0;
+
+        boolean next() {
+            while (remaining == 0) {
+                if (++block >= blocks.size())
+                    return false;
+                data = inflate(block);
+                pos = 0;
+                remaining = blockWords.get(block);
+                length = 0;
+            }
+            int shared = readVarInt();
+            int suffix = readVarInt();
+            if (shared + suffix > word.length) {
+                byte[] grown = new byte[Math.max(word.length * 2, shared + suffix)];
+                System.arraycopy(word, 0, grown, 0, shared);
+                word = grown;
+            }
+            System.arraycopy(data, pos, word, shared, suffix);
+            pos += suffix;
+            length = shared + suffix;
+            remaining--;
+            return true;
+        }
+
+        byte[] word() {
+            return word;
+        }
+
+        int length() {
+            return length;
+        }
+
+        String wordString() {
+            return new String(word, 0, length, Charsets.UTF_8);
+        }
+
+        private int readVarInt() {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[pos++];
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+    }
+
+    private byte[] inflate(int block) {
+        if (!compressed)
+            return blocks.get(block);
+        Inflater inflater = new Inflater();
+        inflater.setInput(blocks.get(block));
+        byte[] raw = new byte[rawLengths.get(block)];
+        try {
+            int off = 0;
+            while (off < raw.length && !inflater.finished())
+                off += inflater.inflate(raw, off, raw.length - off);
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt partition block " + block, e);
+        } finally {
+            inflater.end();
+        }
+        return raw;
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+}
@@ -0,0 +1,315 @@
+package dict.attack;
+import com.google.common.base.Charsets;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The hash a job cracks, chosen per job by its key: a bare hex digest is MD5, as it always
+ * was, and any other algorithm is named in front of the digest, e.g. "ntlm:8846f7ea...". The
+ * key is what the tracker, /jobs, /result and the workers' digest caches all go by, so jobs
+ * and cached digests of different algorithms never mix. A key may also start with the
+ * dictionary the job searches (see Dictionaries), which is skipped here.
+ *
+ * Each algorithm has a kernel per thread that digests raw word bytes into a caller's buffer
+ * without allocating; findHash compares raw digests and only builds hex keys for the cache.
+ */
+public abstract class HashAlgorithm {
+
+    public static final HashAlgorithm MD5 = new MessageDigestAlgorithm("md5", 0, "MD5", 16);
+    public static final HashAlgorithm SHA1 = new MessageDigestAlgorithm("sha1", 1, "SHA-1", 20);
+    public static final HashAlgorithm SHA256 = new MessageDigestAlgorithm("sha256", 2, "SHA-256", 32);
+    // MD4 of the password in UTF-16LE, as Windows stores it
+    public static final HashAlgorithm NTLM = new HashAlgorithm("ntlm", 3, 16) {
+        @Override
+        Kernel newKernel() {
+            return new NtlmKernel();
+        }
+    };
+
+    private static final Map<String, HashAlgorithm> byName = new LinkedHashMap<String, HashAlgorithm>();
+    private static final HashAlgorithm[] byId = new HashAlgorithm[4];
+    static {
+        for (HashAlgorithm algorithm : new HashAlgorithm[]{MD5, SHA1, SHA256, NTLM}) {
+            byName.put(algorithm.name, algorithm);
+            byId[algorithm.id] = algorithm;
+        }
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final String name;
+    private final int id;
+    private final int digestLength;
+    // what job keys of this algorithm start with, nothing for MD5
+    private final String prefix;
+    private final ThreadLocal<Kernel> kernels = new ThreadLocal<Kernel>() {
+        @Override
+        protected Kernel initialValue() {
+            return newKernel();
+        }
+    };
+
+    HashAlgorithm(String name, int id, int digestLength) {
+        this.name = name;
+        this.id = id;
+        this.digestLength = digestLength;
+        this.prefix = id == 0 ? "" : name + ":";
+    }
+
+    abstract static class Kernel {
+        // digest word[off, off + len) into out[0, digestLength)
+        abstract void digest(byte[] word, int off, int len, byte[] out);
+    }
+
+    abstract Kernel newKernel();
+
+    // this thread's kernel
+    Kernel kernel() {
+        return kernels.get();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // stable id, for the worker's on-disk records
+    int getId() {
+        return id;
+    }
+
+    int getDigestLength() {
+        return digestLength;
+    }
+
+    // the algorithm of a job key, null if it names an unknown one
+    static HashAlgorithm of(String key) {
+        int start = key.indexOf('@') + 1;
+        int colon = key.indexOf(':', start);
+        if (colon < 0)
+            return MD5;
+        return byName.get(key.substring(start, colon));
+    }
+
+    static HashAlgorithm forName(String name) {
+        return byName.get(name);
+    }
+
+    static HashAlgorithm forId(int id) {
+        return id >= 0 && id < byId.length ? byId[id] : null;
+    }
+
+    // a known algorithm followed by a hex digest of its length
+    static boolean isValid(String key) {
+        HashAlgorithm algorithm = of(key);
+        if (algorithm == null)
+            return false;
+        String hex = algorithm.hex(key);
+        if (hex.length() != 2 * algorithm.digestLength)
+            return false;
+        for (int i = 0; i < hex.length(); i++) {
+            if (Character.digit(hex.charAt(i), 16) < 0)
+                return false;
+        }
+        return true;
+    }
+
+    // the hex digest of a job key of this algorithm
+    String hex(String key) {
+        return key.substring(digestStart(key));
+    }
+
+    // where the hex digest of a job key starts, after its algorithm's name if it spells that out
+    // (as "md5:" may be, though md5 keys are written without it)
+    private static int digestStart(String key) {
+        int start = key.indexOf('@') + 1;
+        int colon = key.indexOf(':', start);
+        return colon < 0 ? start : colon + 1;
+    }
+
+    // the job key of this algorithm spelled the way key(digest) writes it
+    String canonical(String key) {
+        return key.substring(0, key.indexOf('@') + 1) + prefix + hex(key);
+    }
+
+    // the raw digest of a job key of this algorithm
+    byte[] decode(String key) {
+        byte[] digest = new byte[digestLength];
+        int start = digestStart(key);
+        for (int i = 0; i < digestLength; i++) {
+            int hi = Character.digit(key.charAt(start + 2 * i), 16);
+            int lo = Character.digit(key.charAt(start + 2 * i + 1), 16);
+            digest[i] = (byte) ((hi << 4) | lo);
+        }
+        return digest;
+    }
+
+    // the job key of a raw digest
+    String key(byte[] digest) {
+        char[] chars = new char[prefix.length() + 2 * digestLength];
+        prefix.getChars(0, prefix.length(), chars, 0);
+        int c = prefix.length();
+        for (int i = 0; i < digestLength; i++) {
+            chars[c++] = HEX[(digest[i] >> 4) & 0xf];
+            chars[c++] = HEX[digest[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    // the job key of word, hashed with this algorithm
+    String key(String word) {
+        byte[] bytes = word.getBytes(Charsets.UTF_8);
+        byte[] digest = new byte[digestLength];
+        kernel().digest(bytes, 0, bytes.length, digest);
+        return key(digest);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    static class MessageDigestAlgorithm extends HashAlgorithm {
+
+        private final String jcaName;
+
+        MessageDigestAlgorithm(String name, int id, String jcaName, int digestLength) {
+            super(name, id, digestLength);
+            this.jcaName = jcaName;
+        }
+
+        @Override
+        Kernel newKernel() {
+            final MessageDigest md;
+            try {
+                md = MessageDigest.getInstance(jcaName);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(jcaName + " not available", e);
+            }
+            return new Kernel() {
+                @Override
+                void digest(byte[] word, int off, int len, byte[] out) {
+                    md.update(word, off, len);
+                    try {
+                        md.digest(out, 0, out.length);
+                    } catch (DigestException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            };
+        }
+    }
+
+    /* MD4 (RFC 1320) over the UTF-16LE encoding of the word, reusing its buffers. The JDK has
+       no public MD4, and this one skips MessageDigest's per-call overhead too */
+    static class NtlmKernel extends Kernel {
+
+        private byte[] utf16 = new byte[128];
+        private final int[] x = new int[16];
+        private final int[] state = new int[4];
+        private final byte[] tail = new byte[128];
+
+        @Override
+        void digest(byte[] word, int off, int len, byte[] out) {
+            int n = encode(word, off, len);
+            state[0] = 0x67452301;
+            state[1] = 0xefcdab89;
+            state[2] = 0x98badcfe;
+            state[3] = 0x10325476;
+
+            int blocks = n / 64;
+            for (int i = 0; i < blocks; i++)
+                block(utf16, i * 64);
+
+            // padding: 0x80, zeros, then the length in bits, little-endian
+            int rest = n - blocks * 64;
+            System.arraycopy(utf16, blocks * 64, tail, 0, rest);
+            Arrays.fill(tail, rest, tail.length, (byte) 0);
+            tail[rest] = (byte) 0x80;
+            int tailLength = rest < 56 ? 64 : 128;
+            long bits = (long) n * 8;
+            for (int i = 0; i < 8; i++)
+                tail[tailLength - 8 + i] = (byte) (bits >>> (8 * i));
+            block(tail, 0);
+            if (tailLength == 128)
+                block(tail, 64);
+
+            for (int i = 0; i < 4; i++) {
+                out[4 * i] = (byte) state[i];
+                out[4 * i + 1] = (byte) (state[i] >>> 8);
+                out[4 * i + 2] = (byte) (state[i] >>> 16);
+                out[4 * i + 3] = (byte) (state[i] >>> 24);
+            }
+        }
+
+        // UTF-16LE of the UTF-8 word into utf16, returns its length
+        private int encode(byte[] word, int off, int len) {
+            if (utf16.length < 2 * len)
+                utf16 = new byte[Math.max(2 * len, 2 * utf16.length)];
+            for (int i = 0; i < len; i++) {
+                byte ch = word[off + i];
+                if (ch < 0)
+                    return encodeSlow(word, off, len);
+                utf16[2 * i] = ch;
+                utf16[2 * i + 1] = 0;
+            }
+            return 2 * len;
+        }
+
+        // non-ASCII, the rare case
+        private int encodeSlow(byte[] word, int off, int len) {
+            String s = new String(word, off, len, Charsets.UTF_8);
+            for (int i = 0; i < s.length(); i++) {
+                char ch = s.charAt(i);
+                utf16[2 * i] = (byte) ch;
+                utf16[2 * i + 1] = (byte) (ch >>> 8);
+            }
+            return 2 * s.length();
+        }
+
+        private void block(byte[] buf, int off) {
+            for (int i = 0; i < 16; i++) {
+                int p = off + 4 * i;
+                x[i] = (buf[p] & 0xff) | (buf[p + 1] & 0xff) << 8 | (buf[p + 2] & 0xff) << 16 | (buf[p + 3] & 0xff) << 24;
+            }
+            int a = state[0];
+            int b = state[1];
+            int c = state[2];
+            int d = state[3];
+
+            // round 1
+            for (int i = 0; i < 16; i += 4) {
+                a = Integer.rotateLeft(a + ((b & c) | (~b & d)) + x[i], 3);
+                d = Integer.rotateLeft(d + ((a & b) | (~a & c)) + x[i + 1], 7);
+                c = Integer.rotateLeft(c + ((d & a) | (~d & b)) + x[i + 2], 11);
+                b = Integer.rotateLeft(b + ((c & d) | (~c & a)) + x[i + 3], 19);
+            }
+            // round 2
+            for (int i = 0; i < 4; i++) {
+                a = Integer.rotateLeft(a + ((b & c) | (b & d) | (c & d)) + x[i] + 0x5a827999, 3);
+                d = Integer.rotateLeft(d + ((a & b) | (a & c) | (b & c)) + x[i + 4] + 0x5a827999, 5);
+                c = Integer.rotateLeft(c + ((d & a) | (d & b) | (a & b)) + x[i + 8] + 0x5a827999, 9);
+                b = Integer.rotateLeft(b + ((c & d) | (c & a) | (d & a)) + x[i + 12] + 0x5a827999, 13);
+            }
+            // round 3, words in bit-reversed order
+            for (int i : ROUND3) {
+                a = Integer.rotateLeft(a + (b ^ c ^ d) + x[i] + 0x6ed9eba1, 3);
+                d = Integer.rotateLeft(d + (a ^ b ^ c) + x[i + 8] + 0x6ed9eba1, 9);
+                c = Integer.rotateLeft(c + (d ^ a ^ b) + x[i + 4] + 0x6ed9eba1, 11);
+                b = Integer.rotateLeft(b + (c ^ d ^ a) + x[i + 12] + 0x6ed9eba1, 15);
+            }
+
+            state[0] += a;
+            state[1] += b;
+            state[2] += c;
+            state[3] += d;
+        }
+
+        private static final int[] ROUND3 = {0, 2, 1, 3};
+    }
+
+}
@@ -1,5 +1,6 @@
 package dict.attack;
 import java.io.Serializable;
+import java.util.ArrayList;
 
 /**
  * Created with IntelliJ IDEA.
@@ -12,16 +13,36 @@ public class JobPacket implements Serializable {
     public static final int JOB_NULL = 0;
     public static final int JOB_REQ = 100;
     public static final int JOB_STATUS = 101;
+    public static final int JOB_BATCH_REQ = 102;
+    public static final int JOB_CANCEL = 103;
     public static final int JOB_RESULT = 200;
     public static final int JOB_PROGRESS = 201;
     public static final int JOB_NOTFOUND = 203;
     public static final int JOB_ACCEPTED = 202;
+    public static final int JOB_BUSY = 204;
+    public static final int JOB_CANCELLED = 205;
     public static final int JOB_ERROR = 300;
     public static final int JOB_BYE = 301;
 
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_URGENT = 10;
+
     public int type = JobPacket.JOB_NULL;
+    // higher priority jobs are scheduled first
+    public int priority = JobPacket.PRIORITY_NORMAL;
 
     public String hash = null;
     public String result = null;
+    // hashes carried by a JOB_BATCH_REQ
+    public ArrayList<String> hashes = null;
+    // hashes of a JOB_BATCH_REQ refused for good (no such dictionary, or a malformed hash), the rest are taken
+    public ArrayList<String> invalid = null;
+    // wall clock millis after which a JOB_REQ or JOB_BATCH_REQ is cancelled, 0 for none
+    public long deadline = 0;
+
+    // filled in on a JOB_PROGRESS reply, etaMillis is -1 while unknown
+    public double percentDone = 0;
+    public long etaMillis = -1;
+    public double hashRate = 0;
 
 }
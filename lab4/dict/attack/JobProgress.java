@@ -0,0 +1,37 @@
+package dict.attack;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Per-job progress aggregated by the tracker from worker progress reports.
+ */
+public class JobProgress {
+
+    private final int partitions;
+    private final long started;
+    private final BitSet done = new BitSet();
+
+    JobProgress(int partitions) {
+        this.partitions = partitions;
+        this.started = System.currentTimeMillis();
+    }
+
+    synchronized void update(List<Integer> partsDone) {
+        for (int partId : partsDone)
+            done.set(partId);
+    }
+
+    synchronized double getPercentDone() {
+        return 100.0 * done.cardinality() / partitions;
+    }
+
+    // extrapolated from the partition completion rate so far, -1 until a partition is done
+    synchronized long getEtaMillis() {
+        int finished = done.cardinality();
+        if (finished == 0)
+            return -1;
+        long elapsed = System.currentTimeMillis() - started;
+        return elapsed * (partitions - finished) / finished;
+    }
+
+}
@@ -1,17 +1,30 @@
 package dict.attack;
 import com.google.common.base.Joiner;
-import com.google.common.collect.Lists;
+import com.google.common.base.Optional;
+import com.google.common.base.Predicate;
+import com.google.common.eventbus.AllowConcurrentEvents;
 import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.Subscribe;
 import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
 import org.apache.commons.lang.SerializationUtils;
 import org.apache.zookeeper.*;
-import org.zeromq.ZMQ;
+import org.apache.zookeeper.data.Stat;
 
 import java.net.InetAddress;
 import java.util.*;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created with IntelliJ IDEA.
@@ -29,22 +42,84 @@ public class JobTracker extends Thread{
     private static CountDownLatch zkConnected;
     private static ZooKeeper zooKeeper;
     private static final int ZK_TIMEOUT = 5000;
-    private static final int ARRAY_SIZE = 100;
     private static String ZK_TRACKER = "/tracker";
     private static String ZK_WORKER = "/worker";
     private static String ZK_JOBS = "/jobs";
-    private static String ZK_RESULT = "/result";
+    private static String ZK_RESULT = Results.ZK_RESULT;
+    private static String ZK_SUBMISSIONS = "/submissions";
     private static String zooHost;
     private static int zooPort;
     private static int myPort =0;
-    private static Random randGen = new Random(897);
-    private static ArrayBlockingQueue<String> jobQueue = new ArrayBlockingQueue<String>(100);
+    private static final int MAX_PENDING_JOBS = 1000;
+    private static final int RETRY_MILLIS = 1000;
+    // admitted jobs not yet written to /jobs, by priority; pendingJobs indexes them by hash
+    private static PriorityBlockingQueue<QueuedJob> jobQueue = new PriorityBlockingQueue<QueuedJob>();
+    private static ConcurrentMap<String, QueuedJob> pendingJobs = new ConcurrentHashMap<String, QueuedJob>();
+    // hashes of each persisted submission that are not on /jobs yet, by /submissions znode name
+    private static Map<String, AtomicInteger> submissionRemaining = new ConcurrentHashMap<String, AtomicInteger>();
+    // submissions mirrored from /submissions while standby, replayed on takeover
+    private static Map<String, Submission> submissions = new ConcurrentHashMap<String, Submission>();
+    private static String myAddress;
+    // my /tracker/<id><seq> node, the live tracker with the lowest sequence number is primary
+    private static String myNode;
+    private static volatile boolean primary = false;
+    // results are pushed to subscribed clients on myPort + PUB_PORT_OFFSET
+    static final int PUB_PORT_OFFSET = 1;
+    // workers push progress reports to myPort + PROGRESS_PORT_OFFSET
+    static final int PROGRESS_PORT_OFFSET = 2;
+    // a worker's hash rate stops counting towards the cluster rate if it hasn't reported for this long
+    private static final int RATE_EXPIRY = 5000;
+    private static Map<String, JobProgress> jobProgress = new ConcurrentHashMap<String, JobProgress>();
+    private static Map<String, ProgressPacket> workerRates = new ConcurrentHashMap<String, ProgressPacket>();
+    private static Map<String, Long> workerReported = new ConcurrentHashMap<String, Long>();
+    // admission time of each job, for end-to-end latency
+    private static Map<String, Long> jobSubmitted = new ConcurrentHashMap<String, Long>();
+    // most recently used results, absent for hashes not in the dictionary. Answers status requests and
+    // duplicate submissions without going to ZooKeeper, and the sweeper never expires what is in here
+    private static final int RESULT_CACHE_SIZE = Integer.getInteger("dict.result.cache", 10000);
+    private static Map<String, Optional<String>> resultCache = Collections.synchronizedMap(
+            new LinkedHashMap<String, Optional<String>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Optional<String>> eldest) {
+                    return size() > RESULT_CACHE_SIZE;
+                }
+            });
+    // results older than RESULT_TTL are deleted every SWEEP_INTERVAL by the primary, 0 keeps them forever
+    private static final long RESULT_TTL = Long.getLong("dict.result.ttl", TimeUnit.HOURS.toMillis(24));
+    private static final long SWEEP_INTERVAL = Long.getLong("dict.result.sweep", 60000);
+    // deadline of each pending or running job that has one, checked every DEADLINE_CHECK by the primary
+    private static Map<String, Long> jobDeadlines = new ConcurrentHashMap<String, Long>();
+    private static final int DEADLINE_CHECK = 1000;
+    // cancelled while manageWorker was scheduling them, it drops them on either side of creating /jobs/<hash>
+    private static Set<String> cancelledJobs = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    // client requests are handled on a pool of REQUEST_THREADS, each blocking only on its own ZooKeeper
+    // calls, and turned away as busy past MAX_QUEUED_REQUESTS. Each thread sends its own reply
+    private static final int REQUEST_THREADS = Integer.getInteger("dict.tracker.threads",
+            4 * Runtime.getRuntime().availableProcessors());
+    private static final int MAX_QUEUED_REQUESTS = 10000;
+    private static ExecutorService requestPool;
+
+    /* Metrics */
+    private static final Histogram zkLatency = Metrics.histogram("zk.latency");
+    private static final Histogram requestLatency = Metrics.histogram("tracker.request.latency");
+    private static final Histogram jobLatency = Metrics.histogram("job.e2e.latency");
+    private static final AtomicLong requests = Metrics.counter("tracker.requests");
+    private static final AtomicLong busyReplies = Metrics.counter("tracker.busy");
+    private static final Histogram failoverLatency = Metrics.histogram("tracker.failover.latency");
+    private static final AtomicLong resultsExpired = Metrics.counter("tracker.results.expired");
+    private static final AtomicLong resultCacheHits = Metrics.counter("tracker.result_cache.hits");
+    private static final AtomicLong cachedAssignments = Metrics.counter("tracker.partitions.cached");
+    private static final AtomicLong jobsCancelled = Metrics.counter("tracker.jobs.cancelled");
+    private static final AtomicLong jobsExpired = Metrics.counter("tracker.jobs.expired");
+    private static final AtomicLong inflight = Metrics.counter("tracker.requests.inflight");
 
     private static Gson gson = new Gson();
 
-    /* ZeroMQ */
-    private static ZMQ.Context context;
-    private static ZMQ.Socket socket;
+    /* Transport */
+    private static Transport transport;
+    private static Transport.Socket socket;
+    private static Transport.Socket publisher;
+    private static Transport.Socket progress;
 
     public JobTracker(String myID) {
 
@@ -85,51 +160,33 @@ public class JobTracker extends Thread{
             }
 
 
+            // accepted submissions not yet on /jobs, replayed by whichever tracker is primary
+            if (zooKeeper.exists(ZK_SUBMISSIONS, false) == null){
+                zooKeeper.create(ZK_SUBMISSIONS,
+                        null,
+                        ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                        CreateMode.PERSISTENT
+                );
+            }
+
             // if /tracker does not exists, create one
+            myAddress = Joiner.on(":").join(InetAddress.getLocalHost().getHostAddress(), myPort);
             if (zooKeeper.exists(ZK_TRACKER, false) == null){
                 zooKeeper.create(ZK_TRACKER,
-                        Joiner.on(":").join(InetAddress.getLocalHost().getHostAddress(), myPort).getBytes(),
+                        myAddress.getBytes(),
                         ZooDefs.Ids.OPEN_ACL_UNSAFE,
                         CreateMode.PERSISTENT
                 );
-                // create myself as leader
-                zooKeeper.create(
-                        Joiner.on("/").join(ZK_TRACKER, myID),
-                        "primary".getBytes(),
-                        ZooDefs.Ids.OPEN_ACL_UNSAFE,
-                        CreateMode.EPHEMERAL_SEQUENTIAL
-                );
             }
-            else {
-                // if no children then create myself as leader
-                System.out.println("tracker has no children");
-                if (zooKeeper.getChildren(ZK_TRACKER, zkWatcher, null).isEmpty()){
-                    // create myself as leader and update data of /tracker
-                    zooKeeper.setData(ZK_TRACKER,
-                            Joiner.on(":").join(InetAddress.getLocalHost().getHostAddress(), myPort).getBytes(),
-                            -1
-                    );
-                    zooKeeper.create(
-                            Joiner.on("/").join(ZK_TRACKER, myID),
-                            "primary".getBytes(),
-                            ZooDefs.Ids.OPEN_ACL_UNSAFE,
-                            CreateMode.EPHEMERAL_SEQUENTIAL
-                    );
-                }
-                /* else if there is a child then
-                   become the backup */
-                else{
-                    // set watch on "primary"
-                    zooKeeper.exists(Joiner.on("/").join(ZK_TRACKER,zooKeeper.getChildren(ZK_TRACKER, zkWatcher).get(0)), zkWatcher);
-                    zooKeeper.create(
-                            Joiner.on("/").join(ZK_TRACKER, myID),
-                            "backup".getBytes(),
-                            ZooDefs.Ids.OPEN_ACL_UNSAFE,
-                            CreateMode.EPHEMERAL_SEQUENTIAL
-                    );
-                }
+            // join as backup, then either take over or stand by behind the tracker ahead of me
+            myNode = zooKeeper.create(
+                    Joiner.on("/").join(ZK_TRACKER, myID),
+                    "backup".getBytes(),
+                    ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.EPHEMERAL_SEQUENTIAL
+            );
+            electPrimary();
 
-            }
             // set watch at /worker
             zooKeeper.getChildren(ZK_WORKER, zkWatcher);
             zooKeeper.getData(ZK_WORKER, zkWatcher, null);
@@ -158,25 +215,49 @@ public class JobTracker extends Thread{
             public void process(WatchedEvent event) {
                 Event.EventType type = event.getType();
                 String path = event.getPath();
-                System.out.println("Path: " + path + ", Event type:" + type);
-                // set watch on workers
-                setWatchWorkers();
+                if (Log.DEBUG) System.out.println("Path: " + path + ", Event type:" + type);
+                // set watch on workers, only on worker events so that result and submission watches (which
+                // fire far too often) and tracker failover don't pay for it
+                if (path == null || path.startsWith(ZK_WORKER))
+                    setWatchWorkers();
 
                 switch (type) {
 
+                    case NodeCreated:
+                        // /result/<shard>/<hash> of a watched job, push it to subscribed clients
+                        String hash = Results.hashOf(path);
+                        if (hash != null){
+                            jobProgress.remove(hash);
+                            jobDeadlines.remove(hash);
+                            Long submitted = jobSubmitted.remove(hash);
+                            if (submitted != null)
+                                jobLatency.record(TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - submitted));
+                            publishResult(hash);
+                            if (Trace.ENABLED) Trace.instant("tracker.result", hash);
+                        }
+                        break;
+
+                    case NodeChildrenChanged:
+                        // keep the standby's copy of the submission queue current
+                        if (path.equals(ZK_SUBMISSIONS) && !primary)
+                            mirrorSubmissions();
+                        break;
+
+                    case NodeDataChanged:
+                        if (path.startsWith(ZK_SUBMISSIONS + "/") && !primary){
+                            try {
+                                mirrorSubmission(path.substring(ZK_SUBMISSIONS.length() + 1));
+                            } catch (Exception e){
+                                e.printStackTrace();
+                            }
+                        }
+                        break;
+
                     case NodeDeleted:
                         try{
-                            // Check if node deleted is from /tracker
-                            if (path.contains(ZK_TRACKER)){
-                                String node = zooKeeper.getChildren(ZK_TRACKER, false).get(0);
-                                // If primary is dead then I become primary
-                                if ( !zooKeeper.getData(Joiner.on("/").join(ZK_TRACKER, node ), false, null).equals("primary")){
-                                    zooKeeper.setData(Joiner.on("/").join(ZK_TRACKER, node ), "primary".getBytes(), -1);
-                                    zooKeeper.setData(ZK_TRACKER,
-                                            Joiner.on(":").join(InetAddress.getLocalHost().getHostAddress(), myPort).getBytes(),
-                                            -1
-                                    );
-                                }
+                            // Check if node deleted is from /tracker, if it was the one ahead of me I may be primary now
+                            if (path.startsWith(ZK_TRACKER + "/")){
+                                electPrimary();
                             }
                             if (path.contains(ZK_WORKER)){
                                 List<String> currJobs = zooKeeper.getChildren(ZK_JOBS, false);
@@ -188,13 +269,13 @@ public class JobTracker extends Thread{
                                     while (true){
                                         String currData = new String(zooKeeper.getData(Joiner.on("/").join(ZK_JOBS, job), false, null));
                                         int currVersion = zooKeeper.exists(Joiner.on("/").join(ZK_JOBS, job), false).getVersion();
-                                        System.out.println("Version curr" + currVersion);
+                                        if (Log.DEBUG) System.out.println("Version curr" + currVersion);
 
                                         // de-serialize
                                         WorkerInfo workerInfo = gson.fromJson(currData, WorkerInfo.class);
                                         HashMap<String, List<Integer>> newMap = workerInfo.getWorkerInfo();
                                         List<Integer> deadWorkerList = newMap.get(workerId);
-                                        System.out.println("dead worker List" +deadWorkerList);
+                                        if (Log.DEBUG) System.out.println("dead worker List" +deadWorkerList);
                                         if (deadWorkerList == null){
                                             break;
                                         }
@@ -203,16 +284,20 @@ public class JobTracker extends Thread{
 
                                         List<String> currWorker = zooKeeper.getChildren(ZK_WORKER, false);
 
-                                        // Pick a worker ramdomly and assign the task to it by adding to its current task list
-                                        int rand = randGen.nextInt(currWorker.size());
-                                        List<Integer> newWorkerList = newMap.get(currWorker.get(rand));
-                                        if (newWorkerList == null)
-                                            newWorkerList = deadWorkerList;
-                                        else
-                                            newWorkerList.addAll(deadWorkerList);
-                                        newMap.put(currWorker.get(rand), newWorkerList);
+                                        // Hand its partitions to workers that have them cached, the rest weighted by capacity,
+                                        // adding them to their current task lists
+                                        HashMap<String, BitSet> cached = new HashMap<String, BitSet>();
+                                        HashMap<String, List<Integer>> reassigned = assignPartitions(deadWorkerList, getCapacities(currWorker, Dictionaries.scope(zooKeeper, job), cached), cached);
+                                        for (Map.Entry<String, List<Integer>> entry : reassigned.entrySet()){
+                                            List<Integer> newWorkerList = newMap.get(entry.getKey());
+                                            if (newWorkerList == null)
+                                                newMap.put(entry.getKey(), entry.getValue());
+                                            else
+                                                newWorkerList.addAll(entry.getValue());
+                                        }
 
                                         WorkerInfo newWorkerInfo = new WorkerInfo(newMap, job);
+                                        newWorkerInfo.setDeadline(workerInfo.getDeadline());
 
                                         // serialize
                                         String newData = gson.toJson(newWorkerInfo);
@@ -221,7 +306,7 @@ public class JobTracker extends Thread{
 
                                         try {
                                             if ( zooKeeper.setData(Joiner.on("/").join(ZK_JOBS, job), newData.getBytes() , currVersion) != null) {
-                                                System.out.println("Update data for " + workerId + " on to " + currWorker.get(rand));
+                                                System.out.println("Update data for " + workerId + " on to " + reassigned.keySet());
                                                 break;
                                             }
                                         } catch (KeeperException e){
@@ -241,49 +326,863 @@ public class JobTracker extends Thread{
             }
     }
 
+    // order /tracker children by their sequence number, the names start with each tracker's id
+    private static final Comparator<String> BY_SEQUENCE = new Comparator<String>() {
+        @Override
+        public int compare(String a, String b) {
+            return a.substring(a.length() - 10).compareTo(b.substring(b.length() - 10));
+        }
+    };
+
+    /* The live tracker with the lowest sequence number is primary. Every other tracker
+       watches the one just ahead of it, so only one tracker wakes up when a tracker dies */
+    private static void electPrimary() throws Exception {
+        if (primary)
+            return;
+        String me = myNode.substring(ZK_TRACKER.length() + 1);
+        while (true){
+            List<String> trackers = zooKeeper.getChildren(ZK_TRACKER, false);
+            Collections.sort(trackers, BY_SEQUENCE);
+            int index = trackers.indexOf(me);
+            if (index == 0){
+                takeOver();
+                return;
+            }
+            // if the tracker ahead is already gone look again
+            if (zooKeeper.exists(Joiner.on("/").join(ZK_TRACKER, trackers.get(index - 1)), zkWatcher) != null){
+                System.out.println("Standing by behind " + trackers.get(index - 1));
+                mirrorSubmissions();
+                return;
+            }
+        }
+    }
+
+    /* Become primary: replay the submissions the old primary accepted but did not get onto
+       /jobs, then point clients and workers at this tracker. The standby already holds the
+       submissions in memory, so this is a handful of ZooKeeper writes */
+    private static void takeOver() throws Exception {
+        long start = System.nanoTime();
+        zooKeeper.setData(myNode, "primary".getBytes(), -1);
+        primary = true;
+
+        // catch up on anything written since the last watch fired
+        mirrorSubmissions();
+        List<String> names = new ArrayList<String>(submissions.keySet());
+        Collections.sort(names);
+        int recovered = 0;
+        synchronized (JobTracker.class){
+            for (String name : names)
+                recovered += recoverSubmission(name, submissions.get(name));
+        }
+        submissions.clear();
+        recoverDeadlines();
+
+        zooKeeper.setData(ZK_TRACKER, myAddress.getBytes(), -1);
+        failoverLatency.recordSince(start);
+        if (Trace.ENABLED) Trace.span("tracker.takeover", null, start);
+        System.out.println("Primary tracker at " + myAddress + ", took over in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms with " + recovered + " jobs recovered");
+    }
+
+    // pick up the deadlines of jobs the old primary had already put on /jobs
+    private static void recoverDeadlines() {
+        try {
+            for (String hash : zooKeeper.getChildren(ZK_JOBS, false)){
+                try {
+                    byte[] data = zooKeeper.getData(Joiner.on("/").join(ZK_JOBS, hash), false, null);
+                    WorkerInfo workerInfo = gson.fromJson(new String(data), WorkerInfo.class);
+                    if (workerInfo != null && workerInfo.getDeadline() > 0)
+                        jobDeadlines.put(hash, workerInfo.getDeadline());
+                } catch (KeeperException.NoNodeException e){
+                    // finished in the meantime
+                }
+            }
+        } catch (Exception e){
+            e.printStackTrace();
+        }
+    }
+
+    // read /submissions into memory, watching for more while standby
+    private static void mirrorSubmissions() {
+        try {
+            long start = System.nanoTime();
+            List<String> names = primary
+                    ? zooKeeper.getChildren(ZK_SUBMISSIONS, false)
+                    : zooKeeper.getChildren(ZK_SUBMISSIONS, zkWatcher);
+            zkLatency.recordSince(start);
+            submissions.keySet().retainAll(names);
+            for (String name : names){
+                if (submissions.containsKey(name))
+                    continue;
+                mirrorSubmission(name);
+            }
+        } catch (Exception e){
+            e.printStackTrace();
+        }
+    }
+
+    // read one submission, watching for the primary merging a bump into it while standby
+    private static void mirrorSubmission(String name) throws Exception {
+        try {
+            String path = Joiner.on("/").join(ZK_SUBMISSIONS, name);
+            byte[] data = primary ? zooKeeper.getData(path, false, null) : zooKeeper.getData(path, zkWatcher, null);
+            submissions.put(name, gson.fromJson(new String(data), Submission.class));
+        } catch (KeeperException.NoNodeException e){
+            // already scheduled by the primary
+            submissions.remove(name);
+        }
+    }
+
+    // queue the jobs of a submission that aren't already pending, returns how many were queued
+    private static int recoverSubmission(String name, Submission submission) {
+        int remaining = 0;
+        for (String hash : submission.getHashes()){
+            QueuedJob job = new QueuedJob(hash, submission.getPriority(hash), submission.getSubmitted());
+            job.setSubmission(name);
+            job.setRecovered(true);
+            job.setDeadline(submission.getDeadline(hash));
+            if (pendingJobs.putIfAbsent(hash, job) != null)
+                continue;
+            if (job.getDeadline() > 0)
+                jobDeadlines.put(hash, job.getDeadline());
+            jobSubmitted.put(hash, job.getSubmitted());
+            remaining++;
+        }
+        if (remaining == 0){
+            deleteSubmission(name);
+            return 0;
+        }
+        submissionRemaining.put(name, new AtomicInteger(remaining));
+        for (String hash : submission.getHashes()){
+            QueuedJob job = pendingJobs.get(hash);
+            if (job != null && name.equals(job.getSubmission()))
+                jobQueue.add(job);
+        }
+        return remaining;
+    }
+
+    /* Write newly admitted jobs to one sequential znode under /submissions before they are
+       queued, so a tracker that takes over can replay them. Returns false, forgetting the
+       jobs, if the write fails. Concurrent calls each make their own write */
+    private static boolean persistJobs(List<QueuedJob> admitted, int priority, long deadline) {
+        if (admitted.isEmpty())
+            return true;
+        ArrayList<String> hashes = new ArrayList<String>(admitted.size());
+        for (QueuedJob job : admitted)
+            hashes.add(job.getHash());
+        try {
+            Submission submission = new Submission(hashes, priority, admitted.get(0).getSubmitted(), deadline);
+            // a submission merged onto one of these before it got here extended its deadline
+            for (QueuedJob job : admitted){
+                if (job.getDeadline() != deadline)
+                    submission.setDeadline(job.getHash(), job.getDeadline());
+            }
+            long start = System.nanoTime();
+            String path = zooKeeper.create(Joiner.on("/").join(ZK_SUBMISSIONS, "q-"),
+                    gson.toJson(submission).getBytes(),
+                    ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.PERSISTENT_SEQUENTIAL
+            );
+            zkLatency.recordSince(start);
+            if (Trace.ENABLED){
+                for (QueuedJob job : admitted)
+                    Trace.span("tracker.persist", job.getHash(), start);
+            }
+            String name = path.substring(ZK_SUBMISSIONS.length() + 1);
+            submissionRemaining.put(name, new AtomicInteger(admitted.size()));
+            for (QueuedJob job : admitted){
+                job.setSubmission(name);
+                jobQueue.add(job);
+            }
+            return true;
+        } catch (Exception e){
+            e.printStackTrace();
+            for (QueuedJob job : admitted){
+                takePending(job.getHash());
+                jobSubmitted.remove(job.getHash());
+                jobDeadlines.remove(job.getHash());
+            }
+            return false;
+        }
+    }
+
+    // the job is on /jobs (or already done), drop its submission once all of the submission's jobs are
+    private static void jobScheduled(QueuedJob job) {
+        String name = job.getSubmission();
+        AtomicInteger remaining = name == null ? null : submissionRemaining.get(name);
+        if (remaining == null || remaining.decrementAndGet() > 0)
+            return;
+        submissionRemaining.remove(name);
+        deleteSubmission(name);
+    }
+
+    private static void deleteSubmission(String name) {
+        try {
+            long start = System.nanoTime();
+            zooKeeper.delete(Joiner.on("/").join(ZK_SUBMISSIONS, name), -1);
+            zkLatency.recordSince(start);
+        } catch (KeeperException.NoNodeException e){
+            // Ignore
+        } catch (Exception e){
+            e.printStackTrace();
+        }
+    }
+
+    // a well formed hash on a dictionary in the catalog
+    private static boolean isValidJob(String hash) throws KeeperException, InterruptedException {
+        return Dictionaries.isValid(hash) && Dictionaries.manifest(zooKeeper, hash) != null;
+    }
+
+    // a ZooKeeper error that resubmitting later may get past
+    private static boolean isTransient(Exception e){
+        return e instanceof KeeperException.ConnectionLossException
+                || e instanceof KeeperException.OperationTimeoutException
+                || e instanceof KeeperException.SessionExpiredException;
+    }
+
+    // partitions of the dictionary a job searches, which has a manifest or the job wouldn't be valid
+    private static int partitionsOf(String hash) throws KeeperException, InterruptedException {
+        DictionaryManifest manifest = Dictionaries.manifest(zooKeeper, hash);
+        if (manifest == null)
+            throw new IllegalStateException("No manifest for the dictionary of " + hash);
+        return manifest.getPartitions();
+    }
+
+    /* Read the advertised hash rate of each worker, and the partitions each one has in its digest
+       cache of algorithm into cached. A worker that advertises no rate is weighted at the mean of
+       those that do, so it gets an even share rather than next to nothing */
+    private static LinkedHashMap<String, Double> getCapacities(List<String> workerList, String algorithm,
+                                                               Map<String, BitSet> cached) throws Exception {
+        LinkedHashMap<String, Double> capacities = new LinkedHashMap<String, Double>();
+        List<String> unknown = new ArrayList<String>();
+        double advertised = 0;
+        for (String worker : workerList) {
+            double hashRate = 0;
+            try {
+                byte[] data = zooKeeper.getData(Joiner.on("/").join(ZK_WORKER, worker), false, null);
+                WorkerCapacity capacity = gson.fromJson(new String(data), WorkerCapacity.class);
+                if (capacity != null && capacity.getHashRate() > 0)
+                    hashRate = capacity.getHashRate();
+                if (capacity != null)
+                    cached.put(worker, capacity.getPartitions(algorithm));
+            } catch (KeeperException.NoNodeException e) {
+                // worker went away in the meantime
+                continue;
+            } catch (JsonSyntaxException e) {
+                // legacy worker, no capacity
+            }
+            if (hashRate > 0)
+                advertised += hashRate;
+            else
+                unknown.add(worker);
+            capacities.put(worker, hashRate);
+        }
+        int known = capacities.size() - unknown.size();
+        double mean = known > 0 ? advertised / known : WorkerCapacity.DEFAULT_HASH_RATE;
+        for (String worker : unknown)
+            capacities.put(worker, mean);
+        return capacities;
+    }
+
+    /* Split the partitions in proportion to capacity, using largest remainder so that every partition
+       is handed out exactly once. Partitions are dealt out in order rather than as contiguous ranges,
+       so every worker starts on the lowest ones: with a ranked dictionary those hold the most likely
+       words and the whole cluster searches them first */
+    static HashMap<String, List<Integer>> assignPartitions(List<Integer> partIdList, LinkedHashMap<String, Double> capacities) {
+        HashMap<String, List<Integer>> workerIds = new HashMap<String, List<Integer>>();
+        if (capacities.isEmpty())
+            throw new IllegalStateException("No workers available");
+        double total = 0;
+        for (double hashRate : capacities.values())
+            total += hashRate;
+
+        String[] workers = capacities.keySet().toArray(new String[capacities.size()]);
+        int[] shares = new int[workers.length];
+        double[] remainders = new double[workers.length];
+        int assigned = 0;
+        for (int i = 0; i < workers.length; i++) {
+            double exact = partIdList.size() * capacities.get(workers[i]) / total;
+            shares[i] = (int) Math.floor(exact);
+            remainders[i] = exact - shares[i];
+            assigned += shares[i];
+        }
+        while (assigned < partIdList.size()) {
+            int best = 0;
+            for (int i = 1; i < workers.length; i++) {
+                if (remainders[i] > remainders[best])
+                    best = i;
+            }
+            shares[best]++;
+            remainders[best] = -1;
+            assigned++;
+        }
+
+        // the next partition goes to whoever is furthest behind its share
+        int[] dealt = new int[workers.length];
+        for (Integer partID : partIdList) {
+            int next = -1;
+            for (int i = 0; i < workers.length; i++) {
+                if (dealt[i] == shares[i])
+                    continue;
+                if (next < 0 || (dealt[i] + 1) * (long) shares[next] < (dealt[next] + 1) * (long) shares[i])
+                    next = i;
+            }
+            List<Integer> ids = workerIds.get(workers[next]);
+            if (ids == null) {
+                ids = new ArrayList<Integer>(shares[next]);
+                workerIds.put(workers[next], ids);
+            }
+            ids.add(partID);
+            dealt[next]++;
+        }
+        return workerIds;
+    }
+
+    /* Give each partition that some worker has in its digest cache to one of those workers, the
+       fewest loaded first: it costs them a lookup instead of a fetch and a scan, so it doesn't count
+       against their share. The remaining partitions are split by capacity as above */
+    static HashMap<String, List<Integer>> assignPartitions(List<Integer> partIdList, LinkedHashMap<String, Double> capacities,
+                                                          Map<String, BitSet> cached) {
+        if (capacities.isEmpty())
+            throw new IllegalStateException("No workers available");
+        HashMap<String, List<Integer>> holderIds = new HashMap<String, List<Integer>>();
+        List<Integer> uncached = new ArrayList<Integer>();
+        for (Integer partID : partIdList) {
+            String holder = null;
+            int fewest = Integer.MAX_VALUE;
+            for (String worker : capacities.keySet()) {
+                BitSet partitions = cached.get(worker);
+                if (partitions == null || !partitions.get(partID))
+                    continue;
+                List<Integer> ids = holderIds.get(worker);
+                int held = ids == null ? 0 : ids.size();
+                if (held < fewest) {
+                    holder = worker;
+                    fewest = held;
+                }
+            }
+            if (holder == null) {
+                uncached.add(partID);
+                continue;
+            }
+            List<Integer> ids = holderIds.get(holder);
+            if (ids == null) {
+                ids = new ArrayList<Integer>();
+                holderIds.put(holder, ids);
+            }
+            ids.add(partID);
+        }
+        cachedAssignments.addAndGet(partIdList.size() - uncached.size());
+
+        HashMap<String, List<Integer>> workerIds = uncached.isEmpty()
+                ? new HashMap<String, List<Integer>>() : assignPartitions(uncached, capacities);
+        for (Map.Entry<String, List<Integer>> entry : holderIds.entrySet()) {
+            List<Integer> ids = workerIds.get(entry.getKey());
+            if (ids == null) {
+                workerIds.put(entry.getKey(), entry.getValue());
+            } else {
+                ids.addAll(entry.getValue());
+                Collections.sort(ids);
+            }
+        }
+        return workerIds;
+    }
+
+    /* Watch /result/<shard>/<hash> so the result is pushed as soon as it is created.
+       Returns true if the result already exists (and has been pushed) */
+    private static boolean watchResult(String hash) {
+        if (resultCache.containsKey(hash)){
+            publishResult(hash);
+            return true;
+        }
+        try {
+            long start = System.nanoTime();
+            Stat stat = zooKeeper.exists(Results.path(hash), zkWatcher);
+            zkLatency.recordSince(start);
+            if (stat != null){
+                publishResult(hash);
+                return true;
+            }
+        } catch (Exception e){
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    // publish the result of hash on the pub socket, topic is the hash itself
+    private static void publishResult(String hash) {
+        JobPacket packetToClient = new JobPacket();
+        packetToClient.type = JobPacket.JOB_RESULT;
+        packetToClient.hash = hash;
+        try {
+            Optional<String> result = getResult(hash);
+            if (result == null)
+                return;
+            packetToClient.result = result.orNull();
+        } catch (Exception e){
+            e.printStackTrace();
+            return;
+        }
+        synchronized (publisher) {
+            publisher.send(hash.getBytes(), SerializationUtils.serialize(packetToClient));
+        }
+    }
+
+    /* The result of hash from the cache, or from ZooKeeper (and then cached). Absent if the hash is
+       not in the dictionary, null if there is no result yet */
+    private static Optional<String> getResult(String hash) throws KeeperException, InterruptedException {
+        Optional<String> result = resultCache.get(hash);
+        if (result != null){
+            resultCacheHits.incrementAndGet();
+            return result;
+        }
+        byte[] data;
+        try {
+            long start = System.nanoTime();
+            data = zooKeeper.getData(Results.path(hash), false, null);
+            zkLatency.recordSince(start);
+        } catch (KeeperException.NoNodeException e){
+            return null;
+        }
+        result = data == null ? Optional.<String>absent() : Optional.of(new String(data));
+        resultCache.put(hash, result);
+        return result;
+    }
+
+    /* Admission: a hash that already has a result is pushed right away, a hash that is pending or
+       running is merged onto the existing job (raising its priority and extending its deadline if
+       needed), anything else is added to admitted, to be persisted and queued, unless the tracker is
+       over capacity. Returns false only when the tracker is busy.
+
+       Runs on the request threads without a lock around the ZooKeeper calls; the hash is claimed
+       with putIfAbsent so two clients submitting it at once admit it only once */
+    private static boolean admitJob(String hash, int priority, long deadline, List<QueuedJob> admitted) throws Exception {
+        if (watchResult(hash))
+            return true;
+
+        if (mergePending(hash, priority, deadline))
+            return true;
+        long start = System.nanoTime();
+        Stat running = zooKeeper.exists(Joiner.on("/").join(ZK_JOBS, hash), false);
+        zkLatency.recordSince(start);
+        if (running != null){
+            extendDeadline(hash, deadline);
+            return true;
+        }
+
+        if (pendingJobs.size() >= MAX_PENDING_JOBS)
+            return false;
+        QueuedJob job = new QueuedJob(hash, priority);
+        job.setDeadline(deadline);
+        if (pendingJobs.putIfAbsent(hash, job) != null){
+            // another client got there first
+            mergePending(hash, priority, deadline);
+            return true;
+        }
+        if (deadline > 0)
+            jobDeadlines.put(hash, deadline);
+        jobSubmitted.put(hash, job.getSubmitted());
+        admitted.add(job);
+        return true;
+    }
+
+    /* Merge a submission onto the pending job of hash, if there is one, raising its priority and
+       extending its deadline, and writing the change to its /submissions znode so a tracker that
+       takes over keeps it. Synchronized so two bumps don't both re-queue it */
+    private static synchronized boolean mergePending(String hash, int priority, long deadline) {
+        QueuedJob pending = pendingJobs.get(hash);
+        if (pending == null)
+            return false;
+        extendDeadline(hash, deadline);
+        long later = QueuedJob.laterDeadline(pending.getDeadline(), deadline);
+        boolean changed = later != pending.getDeadline();
+        pending.setDeadline(later);
+        // re-queue with the higher priority, unless manageWorker has already taken it
+        if (priority > pending.getPriority() && jobQueue.remove(pending)){
+            QueuedJob bumped = new QueuedJob(hash, priority, pending.getSubmitted());
+            bumped.setSubmission(pending.getSubmission());
+            bumped.setRecovered(pending.isRecovered());
+            bumped.setDeadline(pending.getDeadline());
+            pendingJobs.put(hash, bumped);
+            jobQueue.add(bumped);
+            pending = bumped;
+            changed = true;
+        }
+        // not persisted yet, persistJobs picks up the deadline
+        if (changed && pending.getSubmission() != null)
+            updateSubmission(pending);
+        return true;
+    }
+
+    // write a queued job's current priority and deadline into its submission
+    private static void updateSubmission(QueuedJob job) {
+        String path = Joiner.on("/").join(ZK_SUBMISSIONS, job.getSubmission());
+        try {
+            while (true){
+                Stat stat = new Stat();
+                long start = System.nanoTime();
+                byte[] data = zooKeeper.getData(path, false, stat);
+                Submission submission = gson.fromJson(new String(data), Submission.class);
+                submission.setPriority(job.getHash(), job.getPriority());
+                submission.setDeadline(job.getHash(), job.getDeadline());
+                try {
+                    zooKeeper.setData(path, gson.toJson(submission).getBytes(), stat.getVersion());
+                    zkLatency.recordSince(start);
+                    return;
+                } catch (KeeperException.BadVersionException e){
+                    // another job of the same submission was bumped at the same time
+                }
+            }
+        } catch (KeeperException.NoNodeException e){
+            // every job of it has been scheduled since
+        } catch (Exception e){
+            e.printStackTrace();
+        }
+    }
+
+    // a second submission of a job with a deadline keeps it going until the later deadline, or forever
+    private static void extendDeadline(String hash, long deadline) {
+        Long current = jobDeadlines.get(hash);
+        if (current == null)
+            return;
+        long later = QueuedJob.laterDeadline(current, deadline);
+        if (later == 0)
+            jobDeadlines.remove(hash);
+        else
+            jobDeadlines.put(hash, later);
+    }
+
+    /* Cancel a pending or running job: a queued job is dropped along with its share of its
+       submission, a running one has /jobs/<hash> deleted so workers drop its partitions. Subscribed
+       clients are told on the pub socket. Returns false if there was nothing to cancel */
+    private static synchronized boolean cancelJob(String hash) throws Exception {
+        boolean cancelled = false;
+        QueuedJob pending = pendingJobs.get(hash);
+        if (pending != null){
+            if (jobQueue.remove(pending)){
+                pendingJobs.remove(hash);
+                jobScheduled(pending);
+            }
+            else {
+                // manageWorker is scheduling it right now
+                cancelledJobs.add(hash);
+            }
+            cancelled = true;
+        }
+        if (deleteJob(hash))
+            cancelled = true;
+        jobDeadlines.remove(hash);
+        jobProgress.remove(hash);
+        jobSubmitted.remove(hash);
+        if (!cancelled)
+            return false;
+
+        jobsCancelled.incrementAndGet();
+        if (Trace.ENABLED) Trace.instant("tracker.cancel", hash);
+        JobPacket packetToClient = new JobPacket();
+        packetToClient.type = JobPacket.JOB_CANCELLED;
+        packetToClient.hash = hash;
+        synchronized (publisher) {
+            publisher.send(hash.getBytes(), SerializationUtils.serialize(packetToClient));
+        }
+        return true;
+    }
+
+    /* Drop hash from the pending jobs, returning whether it was cancelled meanwhile. Under cancelJob's
+       lock, so a cancel either lands before and is returned here, or finds the job no longer pending
+       and deletes /jobs/<hash> itself, and never leaves a stale entry in cancelledJobs */
+    private static synchronized boolean takePending(String hash){
+        pendingJobs.remove(hash);
+        return cancelledJobs.remove(hash);
+    }
+
+    // delete /jobs/<hash>, returns false if it wasn't there
+    private static boolean deleteJob(String hash) throws Exception {
+        try {
+            long start = System.nanoTime();
+            zooKeeper.delete(Joiner.on("/").join(ZK_JOBS, hash), -1);
+            zkLatency.recordSince(start);
+            return true;
+        } catch (KeeperException.NoNodeException e){
+            return false;
+        }
+    }
+
+    // a request together with the ROUTER envelope needed to reply to its sender
+    static class Request {
+        List<byte[]> envelope;
+        JobPacket packet;
+    }
+
+    private static void reply(List<byte[]> envelope, JobPacket packetToClient){
+        List<byte[]> message = new ArrayList<byte[]>(envelope);
+        message.add(SerializationUtils.serialize(packetToClient));
+        socket.send(message);
+    }
+
     @Subscribe
-    public void handleJob(JobPacket jobPacket) throws Exception{
+    @AllowConcurrentEvents
+    public void handleJob(Request request) throws Exception{
+        long start = System.nanoTime();
+        JobPacket jobPacket = request.packet;
+        requests.incrementAndGet();
         JobPacket packetToClient = new JobPacket();
         if (jobPacket.type == JobPacket.JOB_REQ){
-            jobQueue.add(jobPacket.hash);
-            packetToClient.type = JobPacket.JOB_ACCEPTED;
+            List<QueuedJob> admitted = new ArrayList<QueuedJob>(1);
+            try {
+                if (!isValidJob(jobPacket.hash)){
+                    // an unknown algorithm or dictionary, or a digest of the wrong length, would never be found
+                    packetToClient.type = JobPacket.JOB_ERROR;
+                }
+                else if (admitJob(jobPacket.hash, jobPacket.priority, jobPacket.deadline, admitted)
+                        && persistJobs(admitted, jobPacket.priority, jobPacket.deadline)){
+                    packetToClient.type = JobPacket.JOB_ACCEPTED;
+                }
+                else {
+                    if (Log.DEBUG) System.out.println("Tracker busy, rejecting " + jobPacket.hash);
+                    busyReplies.incrementAndGet();
+                    packetToClient.type = JobPacket.JOB_BUSY;
+                }
+            } catch (Exception e){
+                // couldn't look the dictionary up, the client resubmits if it's worth it
+                e.printStackTrace();
+                if (isTransient(e)){
+                    busyReplies.incrementAndGet();
+                    packetToClient.type = JobPacket.JOB_BUSY;
+                }
+                else {
+                    packetToClient.type = JobPacket.JOB_ERROR;
+                }
+            }
             packetToClient.result = "none";
 
         }
+        if (jobPacket.type == JobPacket.JOB_BATCH_REQ){
+            // reply with the hashes that were turned away so the client can resubmit just those
+            ArrayList<String> rejected = new ArrayList<String>();
+            ArrayList<String> invalid = new ArrayList<String>();
+            List<QueuedJob> admitted = new ArrayList<QueuedJob>();
+            // malformed hashes are refused one by one, listed apart so they aren't resubmitted
+            for (String hash : jobPacket.hashes){
+                try {
+                    if (!isValidJob(hash))
+                        invalid.add(hash);
+                    else if (!admitJob(hash, jobPacket.priority, jobPacket.deadline, admitted))
+                        rejected.add(hash);
+                } catch (Exception e){
+                    // resubmitted with the busy ones if ZooKeeper may be back by then, refused otherwise
+                    e.printStackTrace();
+                    if (isTransient(e))
+                        rejected.add(hash);
+                    else
+                        invalid.add(hash);
+                }
+            }
+            // the whole batch is made durable in one write
+            if (!persistJobs(admitted, jobPacket.priority, jobPacket.deadline)){
+                for (QueuedJob job : admitted)
+                    rejected.add(job.getHash());
+            }
+            if (!invalid.isEmpty())
+                packetToClient.invalid = invalid;
+            if (invalid.size() == jobPacket.hashes.size()){
+                packetToClient.type = JobPacket.JOB_ERROR;
+                packetToClient.hashes = invalid;
+            }
+            else if (rejected.isEmpty()){
+                packetToClient.type = JobPacket.JOB_ACCEPTED;
+            }
+            else {
+                if (Log.DEBUG) System.out.println("Tracker busy, rejecting " + rejected.size() + " hashes");
+                busyReplies.incrementAndGet();
+                packetToClient.type = JobPacket.JOB_BUSY;
+                packetToClient.hashes = rejected;
+            }
+            packetToClient.result = String.valueOf(jobPacket.hashes.size() - rejected.size() - invalid.size());
+        }
+        if (jobPacket.type == JobPacket.JOB_CANCEL){
+            try {
+                Optional<String> result = getResult(jobPacket.hash);
+                if (result != null){
+                    // too late, it's done
+                    packetToClient.type = JobPacket.JOB_RESULT;
+                    packetToClient.result = result.orNull();
+                }
+                else if (cancelJob(jobPacket.hash)){
+                    if (Log.DEBUG) System.out.println("Cancelled " + jobPacket.hash);
+                    packetToClient.type = JobPacket.JOB_CANCELLED;
+                }
+                else {
+                    packetToClient.type = JobPacket.JOB_NOTFOUND;
+                    packetToClient.result = "none";
+                }
+            } catch (Exception e){
+                e.printStackTrace();
+                packetToClient.type = JobPacket.JOB_ERROR;
+            }
+        }
         if (jobPacket.type == JobPacket.JOB_STATUS){
 
-            // check under /result/<hash>
+            // check under /result/<shard>/<hash>
             try {
-                if ( (zooKeeper.exists(Joiner.on("/").join(ZK_JOBS, jobPacket.hash), false) != null) && (zooKeeper.exists(Joiner.on("/").join(ZK_RESULT, jobPacket.hash), false) == null )){
-                    System.out.println("Job in progress, please wait!");
+                Optional<String> result = getResult(jobPacket.hash);
+                if ( (result == null) && (zooKeeper.exists(Joiner.on("/").join(ZK_JOBS, jobPacket.hash), false) != null) ){
+                    if (Log.DEBUG) System.out.println("Job in progress, please wait!");
                     packetToClient.type = JobPacket.JOB_PROGRESS;
                     packetToClient.result = "none";
+                    JobProgress jobStatus = jobProgress.get(jobPacket.hash);
+                    if (jobStatus != null){
+                        packetToClient.percentDone = jobStatus.getPercentDone();
+                        packetToClient.etaMillis = jobStatus.getEtaMillis();
+                    }
+                    packetToClient.hashRate = getClusterHashRate();
                 }
-                if ( (zooKeeper.exists(Joiner.on("/").join(ZK_JOBS, jobPacket.hash), false) == null) && (zooKeeper.exists(Joiner.on("/").join(ZK_RESULT, jobPacket.hash), false) == null)){
-                    System.out.println("No such Job, please enter your job again!");
-                    packetToClient.type = JobPacket.JOB_NOTFOUND;
-                    packetToClient.result = "none";
+                else if (result == null){
+                    if (pendingJobs.containsKey(jobPacket.hash)){
+                        // accepted but still queued
+                        packetToClient.type = JobPacket.JOB_PROGRESS;
+                        packetToClient.result = "none";
+                        packetToClient.hashRate = getClusterHashRate();
+                    }
+                    else {
+                        if (Log.DEBUG) System.out.println("No such Job, please enter your job again!");
+                        packetToClient.type = JobPacket.JOB_NOTFOUND;
+                        packetToClient.result = "none";
+                    }
                 }
-                if (zooKeeper.exists(Joiner.on("/").join(ZK_RESULT, jobPacket.hash), false) != null) {
-                    byte[] data = zooKeeper.getData(Joiner.on("/").join(ZK_RESULT, jobPacket.hash), false, null);
+                else {
                     packetToClient.type = JobPacket.JOB_RESULT;
-                    if ( data == null) {
-                        System.out.println("Result not found!");
+                    if ( !result.isPresent()) {
+                        if (Log.DEBUG) System.out.println("Result not found!");
                         packetToClient.result = null;
                     }
                     else {
-                        String result = new String(data);
-                        packetToClient.result = result;
-                        System.out.println("Result found!");
+                        packetToClient.result = result.get();
+                        if (Log.DEBUG) System.out.println("Result found!");
                     }
                 }
             } catch (Exception e){
                 e.printStackTrace();
             }
         }
-        socket.send(SerializationUtils.serialize(packetToClient),0);
+        reply(request.envelope, packetToClient);
+        requestLatency.recordSince(start);
+        if (Trace.ENABLED){
+            if (jobPacket.hashes != null){
+                for (String hash : jobPacket.hashes)
+                    Trace.span("tracker.request", hash, start);
+            }
+            else {
+                Trace.span("tracker.request", jobPacket.hash, start);
+            }
+        }
+
+    }
+    // sum of the hash rates last reported by each worker that is still reporting
+    private static double getClusterHashRate() {
+        double hashRate = 0;
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, ProgressPacket> entry : workerRates.entrySet()){
+            Long reported = workerReported.get(entry.getKey());
+            if (reported != null && now - reported < RATE_EXPIRY)
+                hashRate += entry.getValue().hashRate;
+        }
+        return hashRate;
+    }
+
+    // aggregate progress reports pushed by workers
+    public Runnable progressReceiver() {
+
+        return new Runnable() {
+
+            @Override
+            public void run(){
+                while (true){
+                    try {
+                        ProgressPacket progressPacket = (ProgressPacket) SerializationUtils.deserialize(Transport.body(progress.recv()));
+                        workerRates.put(progressPacket.workerId, progressPacket);
+                        workerReported.put(progressPacket.workerId, System.currentTimeMillis());
+                        if (progressPacket.hash == null)
+                            continue;
+
+                        JobProgress jobStatus = jobProgress.get(progressPacket.hash);
+                        if (jobStatus == null){
+                            // job created before this tracker took over
+                            jobStatus = new JobProgress(partitionsOf(progressPacket.hash));
+                            jobProgress.put(progressPacket.hash, jobStatus);
+                        }
+                        jobStatus.update(progressPacket.partsDone);
+                    } catch (Exception e){
+                        e.printStackTrace();
+                    }
+                }
+            }
+        };
+    }
 
+    // expire old results in the background, only the primary sweeps
+    public Runnable resultSweeper() {
+
+        return new Runnable() {
+
+            @Override
+            public void run(){
+                ResultSweeper sweeper = new ResultSweeper(zooKeeper, RESULT_TTL, new Predicate<String>() {
+                    @Override
+                    public boolean apply(String hash) {
+                        return resultCache.containsKey(hash);
+                    }
+                });
+                while (true){
+                    try {
+                        Thread.sleep(SWEEP_INTERVAL);
+                        if (!primary)
+                            continue;
+                        long start = System.nanoTime();
+                        int deleted = sweeper.sweep();
+                        resultsExpired.addAndGet(deleted);
+                        if (Log.DEBUG) System.out.println("Expired " + deleted + " results in "
+                                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+                    } catch (InterruptedException e){
+                        return;
+                    } catch (Exception e){
+                        e.printStackTrace();
+                    }
+                }
+            }
+        };
+    }
+
+    // cancel jobs past their deadline, only the primary does
+    public Runnable deadlineReaper() {
+
+        return new Runnable() {
+
+            @Override
+            public void run(){
+                while (true){
+                    try {
+                        Thread.sleep(DEADLINE_CHECK);
+                        if (!primary)
+                            continue;
+                        long now = System.currentTimeMillis();
+                        for (Map.Entry<String, Long> entry : jobDeadlines.entrySet()){
+                            if (entry.getValue() > now)
+                                continue;
+                            System.out.println("Deadline passed for " + entry.getKey());
+                            if (cancelJob(entry.getKey()))
+                                jobsExpired.incrementAndGet();
+                        }
+                    } catch (InterruptedException e){
+                        return;
+                    } catch (Exception e){
+                        e.printStackTrace();
+                    }
+                }
+            }
+        };
     }
+
     public Runnable manageWorker() {
 
         return new Runnable() {
@@ -292,41 +1191,71 @@ public class JobTracker extends Thread{
             public void run(){
 
                 while (true){
+                    QueuedJob job = null;
                     try{
-                        String hash = jobQueue.take();
-                        List<Integer> partIdList = new ArrayList<Integer>(ARRAY_SIZE);
-                        HashMap<String, List<Integer>> workerIds = new HashMap<String, List<Integer>>();
-                        for (int i = 0; i < ARRAY_SIZE; i++){
+                        job = jobQueue.take();
+                        String hash = job.getHash();
+                        long taken = System.nanoTime();
+                        if (Trace.ENABLED) Trace.spanFromMillis("tracker.queue", hash, job.getSubmitted());
+                        // a replayed job may have finished before the old primary could drop its submission
+                        if ((job.isRecovered() && watchResult(hash)) || cancelledJobs.contains(hash)){
+                            takePending(hash);
+                            jobScheduled(job);
+                            continue;
+                        }
+                        // every partition of the job's dictionary
+                        int partitions = partitionsOf(hash);
+                        List<Integer> partIdList = new ArrayList<Integer>(partitions);
+                        for (int i = 0; i < partitions; i++){
                             partIdList.add(i,i);
                         }
 
                         List<String> workerList = zooKeeper.getChildren(ZK_WORKER, zkWatcher);
 
-                        // Create n sub lists, where n = number of workers
-                        List<List<Integer>> subPartId = Lists.partition(partIdList, (int) Math.ceil((float)ARRAY_SIZE / workerList.size()));
-                        System.out.println("Connecting with worker and sending hash :" + hash + "worker list" + workerList + "partID" + subPartId);
-
-                        int i = 0;
-                        for ( List<Integer> subList : subPartId){
-                            System.out.println(subList);
-                            workerIds.put(workerList.get(i), subList);
-                            i++;
-                        }
+                        // Partitions go to workers that have them cached, the rest in proportion to each worker's advertised capacity
+                        HashMap<String, BitSet> cached = new HashMap<String, BitSet>();
+                        HashMap<String, List<Integer>> workerIds = assignPartitions(partIdList, getCapacities(workerList, Dictionaries.scope(zooKeeper, hash), cached), cached);
+                        if (Log.DEBUG) System.out.println("Connecting with worker and sending hash :" + hash + "worker list" + workerList + "partID" + workerIds);
 
                         WorkerInfo workerInfo = new WorkerInfo(workerIds, hash);
+                        workerInfo.setDeadline(job.getDeadline());
                         // Now store this in /jobs/<hash>
                         // Serialize into json
 
                         String workerInfoJson = gson.toJson(workerInfo);
 
                         // Create /jobs/<hash>
-                        zooKeeper.create(Joiner.on("/").join(ZK_JOBS, hash),
-                                workerInfoJson.getBytes(),
-                                ZooDefs.Ids.OPEN_ACL_UNSAFE,
-                                CreateMode.PERSISTENT
-                        );
+                        try {
+                            long start = System.nanoTime();
+                            zooKeeper.create(Joiner.on("/").join(ZK_JOBS, hash),
+                                    workerInfoJson.getBytes(),
+                                    ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                                    CreateMode.PERSISTENT
+                            );
+                            zkLatency.recordSince(start);
+                            if (Trace.ENABLED) Trace.span("tracker.zk.create", hash, start);
+                            jobProgress.put(hash, new JobProgress(partitions));
+                        } catch (KeeperException.NodeExistsException e){
+                            // already running, nothing to do
+                        }
+                        // cancelled while I was creating it
+                        if (takePending(hash)){
+                            deleteJob(hash);
+                            jobProgress.remove(hash);
+                        }
+                        jobScheduled(job);
+                        if (Trace.ENABLED) Trace.span("tracker.schedule", hash, taken);
                     } catch (Exception e){
                         e.printStackTrace();
+                        // keep the job rather than dropping it, e.g. while there are no workers
+                        if (job != null){
+                            try {
+                                Thread.sleep(RETRY_MILLIS);
+                            } catch (InterruptedException ie){
+                                // Ignore
+                            }
+                            jobQueue.add(job);
+                        }
                     }
                 }
 
@@ -353,22 +1282,95 @@ public class JobTracker extends Thread{
             System.err.println("Usage tracker [zooHost] [zooPort] [myPort] [myID]");
             System.exit(-1);
         }
-        // initialize ZMQ
-        context = ZMQ.context(1);
-        socket = context.socket(ZMQ.REP);
-        socket.bind ("tcp://*:"+ myPort);
+        // initialize the transport
+        transport = Transport.open();
+        socket = transport.socket(Transport.ROUTER);
+        socket.bind(myPort);
+        publisher = transport.socket(Transport.PUB);
+        publisher.bind(myPort + PUB_PORT_OFFSET);
+        progress = transport.socket(Transport.PULL);
+        progress.bind(myPort + PROGRESS_PORT_OFFSET);
+
+        // close the session on the way out so the standby sees my /tracker node go right away
+        // instead of after the session timeout
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    if (zooKeeper != null)
+                        zooKeeper.close();
+                } catch (InterruptedException e) {
+                    // Ignore
+                }
+            }
+        });
 
         eventBus = new EventBus("Tracker");
+        requestPool = new ThreadPoolExecutor(REQUEST_THREADS, REQUEST_THREADS, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_QUEUED_REQUESTS));
         JobTracker t = new JobTracker(myID);
         eventBus.register(t);
+
+        Metrics.gauge("tracker.queue.depth", new Metrics.Gauge() {
+            @Override
+            public double value() {
+                return jobQueue.size();
+            }
+        });
+        Metrics.gauge("tracker.jobs.running", new Metrics.Gauge() {
+            @Override
+            public double value() {
+                return jobProgress.size();
+            }
+        });
+        Metrics.gauge("tracker.cluster.hash_rate", new Metrics.Gauge() {
+            @Override
+            public double value() {
+                return getClusterHashRate();
+            }
+        });
+        Metrics.start("tracker-" + myID);
+        Trace.start("tracker-" + myID);
         System.out.println("Starting thread");
         new Thread(t.manageWorker()).start();
+        new Thread(t.progressReceiver()).start();
+        new Thread(t.deadlineReaper()).start();
+        if (RESULT_TTL > 0)
+            new Thread(t.resultSweeper()).start();
 
         while (true){
-            // wait for client req then respond
-            JobPacket packetFromServer = (JobPacket) SerializationUtils.deserialize(socket.recv(0));
-            System.out.println("From client" + packetFromServer.type);
-            eventBus.post(packetFromServer);
+            // wait for client req, everything before the last part is the envelope
+            List<byte[]> message = socket.recv();
+            Request request = new Request();
+            request.envelope = new ArrayList<byte[]>(message.subList(0, message.size() - 1));
+            request.packet = (JobPacket) SerializationUtils.deserialize(Transport.body(message));
+            if (Log.DEBUG) System.out.println("From client" + request.packet.type);
+            dispatch(request);
+        }
+    }
+
+    // hand a request to the pool, or turn it away right here if the pool is backed up
+    private static void dispatch(final Request request) {
+        inflight.incrementAndGet();
+        try {
+            requestPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        eventBus.post(request);
+                    } finally {
+                        inflight.decrementAndGet();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e){
+            inflight.decrementAndGet();
+            busyReplies.incrementAndGet();
+            JobPacket packetToClient = new JobPacket();
+            packetToClient.type = JobPacket.JOB_BUSY;
+            packetToClient.result = "none";
+            packetToClient.hashes = request.packet.hashes;
+            reply(request.envelope, packetToClient);
         }
     }
 }
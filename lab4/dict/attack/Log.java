@@ -0,0 +1,12 @@
+package dict.attack;
+
+/**
+ * Level check for the chatty per-packet and per-event output.
+ * Run with -Ddict.debug=true to turn it on; guard call sites with if (Log.DEBUG)
+ * so the message isn't even built otherwise.
+ */
+public class Log {
+
+    public static final boolean DEBUG = Boolean.getBoolean("dict.debug");
+
+}
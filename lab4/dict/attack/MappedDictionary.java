@@ -0,0 +1,244 @@
+package dict.attack;
+import com.google.common.base.Charsets;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A wordlist front-coded once into an image file and served from a memory map, so a
+ * fileserver can host many large dictionaries without holding them on the heap: only the
+ * index of where each block lives is, and blocks are copied out of the map as they are sent.
+ * The image is rebuilt when the wordlist or rank file is newer than it, or it was encoded
+ * with other settings. Layout:
+ *
+ *   blocks                    every partition's blocks, back to back
+ *   index                     per partition its block count, per block offset length words rawLength
+ *   trailer                   index offset, partitions, words, layout, flags, magic
+ *
+ * Everything is a big-endian int except words and layout, longs. The layout is a CRC-32 of every
+ * word in partition order, so it changes whenever a word moves to another partition, whether the
+ * list or the rank file changed. A map is limited to 2 GB of image.
+ */
+public class MappedDictionary {
+
+    // bumped when lists started being split by their own length, so images split the old way are rebuilt
+    private static final int MAGIC = 0x46434433;
+    private static final int TRAILER_BYTES = 4 + 4 + 8 + 8 + 4 + 4;
+    private static final int FLAG_COMPRESSED = 1;
+    private static final int FLAG_RANKED = 2;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final String name;
+    private final MappedByteBuffer map;
+    private final boolean compressed;
+    private final long words;
+    private final long layout;
+    // blocks of partition p are firstBlock[p] until firstBlock[p + 1] in the arrays below
+    private final int[] firstBlock;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final int[] blockWords;
+    private final int[] rawLengths;
+
+    private MappedDictionary(String name, MappedByteBuffer map) throws IOException {
+        this.name = name;
+        this.map = map;
+        int size = map.capacity();
+        if (size < TRAILER_BYTES || map.getInt(size - 4) != MAGIC)
+            throw new IOException("Not a dictionary image: " + name);
+        int indexOffset = map.getInt(size - TRAILER_BYTES);
+        int partitions = map.getInt(size - TRAILER_BYTES + 4);
+        words = map.getLong(size - TRAILER_BYTES + 8);
+        layout = map.getLong(size - TRAILER_BYTES + 16);
+        compressed = (map.getInt(size - 8) & FLAG_COMPRESSED) != 0;
+
+        ByteBuffer index = map.duplicate();
+        index.position(indexOffset);
+        firstBlock = new int[partitions + 1];
+        List<int[]> blocks = new ArrayList<int[]>();
+        for (int p = 0; p < partitions; p++) {
+            firstBlock[p] = blocks.size();
+            int numBlocks = index.getInt();
+            for (int i = 0; i < numBlocks; i++)
+                blocks.add(new int[]{index.getInt(), index.getInt(), index.getInt(), index.getInt()});
+        }
+        firstBlock[partitions] = blocks.size();
+        offsets = new int[blocks.size()];
+        lengths = new int[blocks.size()];
+        blockWords = new int[blocks.size()];
+        rawLengths = new int[blocks.size()];
+        for (int i = 0; i < blocks.size(); i++) {
+            offsets[i] = blocks.get(i)[0];
+            lengths[i] = blocks.get(i)[1];
+            blockWords[i] = blocks.get(i)[2];
+            rawLengths[i] = blocks.get(i)[3];
+        }
+    }
+
+    /* Map the image of source kept in dir, building it first if it is missing or stale. ranks
+       is the rank file to partition it by, or null */
+    static MappedDictionary open(String name, File source, File ranks, File dir, boolean compress) throws IOException {
+        File image = new File(dir, name + ".fcd");
+        int flags = (compress ? FLAG_COMPRESSED : 0) | (ranks != null ? FLAG_RANKED : 0);
+        if (!isCurrent(image, source, ranks, flags)) {
+            long start = System.nanoTime();
+            build(source, ranks, image, compress, flags);
+            System.out.println("Encoded " + source + " into " + image + " in "
+                    + (System.nanoTime() - start) / 1000000 + " ms");
+        }
+        RandomAccessFile raf = new RandomAccessFile(image, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Dictionary image too large to map: " + image);
+            // the map stays valid after the file is closed
+            return new MappedDictionary(name, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static boolean isCurrent(File image, File source, File ranks, int flags) throws IOException {
+        if (!image.exists() || image.lastModified() < source.lastModified())
+            return false;
+        if (ranks != null && image.lastModified() < ranks.lastModified())
+            return false;
+        RandomAccessFile raf = new RandomAccessFile(image, "r");
+        try {
+            if (raf.length() < TRAILER_BYTES)
+                return false;
+            raf.seek(raf.length() - 8);
+            return raf.readInt() == flags && raf.readInt() == MAGIC;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /* Partition and front-code source as FileServer always has, written to a temporary file and
+       renamed over image so replicas sharing dir never map half an image */
+    private static void build(File source, File ranks, File image, boolean compress, int flags) throws IOException {
+        HashMap<Integer, ArrayList<String>> partitions = ranks == null
+                ? FileServer.loadDictionary(source) : FileServer.loadDictionary(source, ranks);
+        List<Integer> ids = new ArrayList<Integer>(partitions.keySet());
+        Collections.sort(ids);
+
+        File tmp = File.createTempFile(image.getName(), ".tmp", image.getParentFile());
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), BUFFER_SIZE));
+        try {
+            long words = 0;
+            CRC32 layout = new CRC32();
+            // the index is written after the blocks, collected meanwhile
+            ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+            DataOutputStream index = new DataOutputStream(indexBytes);
+            for (int id : ids) {
+                for (String word : partitions.get(id)) {
+                    layout.update(word.getBytes(Charsets.UTF_8));
+                    layout.update('\n');
+                }
+                // so that moving a boundary changes it too
+                layout.update(0);
+                FrontCodedPartition partition = FrontCodedPartition.encode(partitions.get(id), compress);
+                // the word lists can go as soon as they are encoded
+                partitions.remove(id);
+                index.writeInt(partition.getNumBlocks());
+                for (int i = 0; i < partition.getNumBlocks(); i++) {
+                    index.writeInt(out.size());
+                    index.writeInt(partition.blockBytes(i).length);
+                    index.writeInt(partition.blockWords(i));
+                    index.writeInt(partition.rawLength(i));
+                    out.write(partition.blockBytes(i));
+                }
+                words += partition.size();
+            }
+
+            int indexOffset = out.size();
+            indexBytes.writeTo(out);
+            // size() stops counting at Integer.MAX_VALUE
+            if (out.size() >= Integer.MAX_VALUE - TRAILER_BYTES)
+                throw new IOException("Dictionary image too large to map: " + source);
+            out.writeInt(indexOffset);
+            out.writeInt(ids.size());
+            out.writeLong(words);
+            out.writeLong(layout.getValue());
+            out.writeInt(flags);
+            out.writeInt(MAGIC);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(image)) {
+            image.delete();
+            if (!tmp.renameTo(image))
+                throw new IOException("Could not rename " + tmp + " to " + image);
+        }
+    }
+
+    String getName() {
+        return name;
+    }
+
+    int getPartitions() {
+        return firstBlock.length - 1;
+    }
+
+    long getWords() {
+        return words;
+    }
+
+    // which words are in which partition, as a hex string for manifests and cache scopes
+    String getLayout() {
+        return Long.toHexString(layout);
+    }
+
+    long getMappedBytes() {
+        return map.capacity();
+    }
+
+    boolean hasPartition(int partID) {
+        return partID >= 0 && partID < getPartitions();
+    }
+
+    int getNumBlocks(int partID) {
+        return firstBlock[partID + 1] - firstBlock[partID];
+    }
+
+    // block i of partID, copied out of the map
+    FrontCodedPartition block(int partID, int i) {
+        return blocks(firstBlock[partID] + i, firstBlock[partID] + i + 1);
+    }
+
+    // all of partID, copied out of the map
+    FrontCodedPartition partition(int partID) {
+        return blocks(firstBlock[partID], firstBlock[partID + 1]);
+    }
+
+    private FrontCodedPartition blocks(int from, int to) {
+        List<byte[]> blocks = new ArrayList<byte[]>(to - from);
+        List<Integer> words = new ArrayList<Integer>(to - from);
+        List<Integer> raw = new ArrayList<Integer>(to - from);
+        // a duplicate per call, the map's own position is shared by every thread
+        ByteBuffer view = map.duplicate();
+        for (int b = from; b < to; b++) {
+            byte[] bytes = new byte[lengths[b]];
+            view.position(offsets[b]);
+            view.get(bytes);
+            blocks.add(bytes);
+            words.add(blockWords[b]);
+            raw.add(rawLengths[b]);
+        }
+        return FrontCodedPartition.of(compressed, blocks, words, raw);
+    }
+
+}
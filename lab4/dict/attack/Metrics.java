@@ -0,0 +1,189 @@
+package dict.attack;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.*;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide metrics shared by the tracker, workers and file server: counters, gauges
+ * and latency histograms (nanoseconds, reported in microseconds).
+ *
+ * Metrics are exposed over JMX as dict.attack:type=Metrics,name=[process] and, when the
+ * dict.metrics.port system property is set, as plaintext on http://127.0.0.1:[port]/metrics
+ * (and the Trace ring on /trace when tracing)
+ */
+public class Metrics {
+
+    public interface Gauge {
+        double value();
+    }
+
+    private static final Map<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+    private static final Map<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+    private static final Map<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+    public static AtomicLong counter(String name) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            synchronized (counters) {
+                counter = counters.get(name);
+                if (counter == null) {
+                    counter = new AtomicLong();
+                    counters.put(name, counter);
+                }
+            }
+        }
+        return counter;
+    }
+
+    public static Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            synchronized (histograms) {
+                histogram = histograms.get(name);
+                if (histogram == null) {
+                    histogram = new Histogram();
+                    histograms.put(name, histogram);
+                }
+            }
+        }
+        return histogram;
+    }
+
+    public static void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    // flat, sorted view of every metric value
+    public static TreeMap<String, Number> snapshot() {
+        TreeMap<String, Number> values = new TreeMap<String, Number>();
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet())
+            values.put(entry.getKey(), entry.getValue().get());
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet())
+            values.put(entry.getKey(), entry.getValue().value());
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            String name = entry.getKey();
+            Histogram histogram = entry.getValue();
+            values.put(name + ".count", histogram.getCount());
+            values.put(name + ".mean_us", histogram.getMean() / 1000);
+            values.put(name + ".p50_us", histogram.getPercentile(0.5) / 1000);
+            values.put(name + ".p99_us", histogram.getPercentile(0.99) / 1000);
+            values.put(name + ".p999_us", histogram.getPercentile(0.999) / 1000);
+            values.put(name + ".max_us", histogram.getMax() / 1000);
+        }
+        return values;
+    }
+
+    public static String dump() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Number> entry : snapshot().entrySet())
+            sb.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        return sb.toString();
+    }
+
+    // register with JMX and start the plaintext endpoint if configured
+    public static void start(String process) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(),
+                    new ObjectName("dict.attack:type=Metrics,name=" + ObjectName.quote(process)));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        Integer port = Integer.getInteger("dict.metrics.port");
+        if (port == null)
+            return;
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            server.createContext("/metrics", new HttpHandler() {
+                @Override
+                public void handle(HttpExchange exchange) throws java.io.IOException {
+                    byte[] body = dump().getBytes("UTF-8");
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(body);
+                    out.close();
+                }
+            });
+            if (Trace.ENABLED) {
+                server.createContext("/trace", new HttpHandler() {
+                    @Override
+                    public void handle(HttpExchange exchange) throws java.io.IOException {
+                        byte[] body = Trace.toJson().getBytes("UTF-8");
+                        exchange.getResponseHeaders().set("Content-Type", "application/json");
+                        exchange.sendResponseHeaders(200, body.length);
+                        OutputStream out = exchange.getResponseBody();
+                        out.write(body);
+                        out.close();
+                    }
+                });
+            }
+            server.start();
+            System.out.println("Metrics on http://127.0.0.1:" + port + "/metrics");
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /* Read-only dynamic MBean, one attribute per metric value */
+    static class MetricsMBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Number value = snapshot().get(attribute);
+            if (value == null)
+                throw new AttributeNotFoundException(attribute);
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            TreeMap<String, Number> values = snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                if (values.containsKey(attribute))
+                    list.add(new Attribute(attribute, values.get(attribute)));
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException {
+            throw new MBeanException(new UnsupportedOperationException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+            for (Map.Entry<String, Number> entry : snapshot().entrySet()) {
+                attributes.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+                        entry.getKey(), true, false, false));
+            }
+            return new MBeanInfo(Metrics.class.getName(), "dict.attack metrics",
+                    attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+        }
+    }
+
+}
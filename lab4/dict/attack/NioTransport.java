@@ -0,0 +1,575 @@
+package dict.attack;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Transport on NIO socket channels, no native code. One I/O thread per transport runs a
+ * selector over every connection; sends queue the message on its connection from any thread
+ * and received messages wait on the socket's inbound queue for recv().
+ *
+ * On the wire a message is its frame count followed by each frame's length and bytes, all
+ * read and written through a direct buffer per connection. A connected socket reconnects
+ * RECONNECT_MILLIS after its connection drops, keeping the messages queued on it and sending
+ * again first those not yet all written to the channel. Messages already in the kernel's send
+ * buffer when it dropped are still lost. PUB sends to every subscriber, dropping messages for
+ * those at their high water mark, and SUB filters by topic on its side.
+ */
+public class NioTransport extends Transport {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int RECONNECT_MILLIS = 100;
+    private static final int MAX_FRAMES = 1024;
+    // a whole partition in one frame is the largest sent: a dictionary image of at most 2 GB in
+    // 100 partitions is about 21 MB of those front-coded, with room for the word list of one
+    private static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+    private static final int DEFAULT_HWM = 100000;
+
+    private final Selector selector;
+    private final Thread ioThread;
+    private volatile boolean closed = false;
+    // run on the I/O thread, e.g. registering channels with the selector
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    // reconnects, only touched by the I/O thread
+    private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+
+    static class Timer implements Comparable<Timer> {
+        long at;
+        Runnable task;
+
+        @Override
+        public int compareTo(Timer other) {
+            return at < other.at ? -1 : (at == other.at ? 0 : 1);
+        }
+    }
+
+    NioTransport() {
+        try {
+            selector = Selector.open();
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't open selector", e);
+        }
+        ioThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "nio-transport");
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    @Override
+    public Socket socket(int type) {
+        return new NioSocket(type);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    private void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    private void schedule(long delay, Runnable task) {
+        Timer timer = new Timer();
+        timer.at = System.currentTimeMillis() + delay;
+        timer.task = task;
+        timers.add(timer);
+    }
+
+    private void loop() {
+        while (!closed) {
+            try {
+                Runnable task;
+                while ((task = tasks.poll()) != null)
+                    task.run();
+                long now = System.currentTimeMillis();
+                while (!timers.isEmpty() && timers.peek().at <= now)
+                    timers.poll().task.run();
+                selector.select(timers.isEmpty() ? 0 : Math.max(1, timers.peek().at - now));
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (key.attachment() instanceof NioSocket) {
+                        ((NioSocket) key.attachment()).accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isConnectable())
+                            connection.finishConnect();
+                        if (key.isValid() && key.isReadable())
+                            connection.read();
+                        if (key.isValid() && key.isWritable())
+                            connection.write();
+                    } catch (IOException e) {
+                        connection.drop();
+                    } catch (CancelledKeyException e) {
+                        connection.drop();
+                    }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        for (SelectionKey key : selector.keys())
+            closeQuietly(key);
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    private static void closeQuietly(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    private class NioSocket extends Socket {
+
+        private final int type;
+        private final LinkedBlockingQueue<List<byte[]>> inbound = new LinkedBlockingQueue<List<byte[]>>();
+        private final List<Connection> connections = new CopyOnWriteArrayList<Connection>();
+        // ROUTER only, connections by identity
+        private final Map<Integer, Connection> peers = new ConcurrentHashMap<Integer, Connection>();
+        private final AtomicInteger nextIdentity = new AtomicInteger();
+        private final AtomicInteger nextPeer = new AtomicInteger();
+        private final List<byte[]> subscriptions = new CopyOnWriteArrayList<byte[]>();
+        private volatile int timeout = -1;
+        private volatile int hwm = DEFAULT_HWM;
+        private volatile boolean closed = false;
+        private ServerSocketChannel server;
+
+        NioSocket(int type) {
+            this.type = type;
+        }
+
+        @Override
+        public void bind(int port) {
+            try {
+                server = ServerSocketChannel.open();
+                server.socket().setReuseAddress(true);
+                server.socket().bind(new InetSocketAddress(port));
+                server.configureBlocking(false);
+            } catch (IOException e) {
+                throw new IllegalStateException("Can't bind port " + port, e);
+            }
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        server.register(selector, SelectionKey.OP_ACCEPT, NioSocket.this);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+        }
+
+        // I/O thread
+        void accept() {
+            try {
+                SocketChannel channel = server.accept();
+                if (channel == null)
+                    return;
+                Connection connection = new Connection(this, null, 0);
+                connection.channel = channel;
+                int identity = nextIdentity.incrementAndGet();
+                connection.identity = ByteBuffer.allocate(4).putInt(identity).array();
+                connections.add(connection);
+                if (type == ROUTER)
+                    peers.put(identity, connection);
+                connection.established();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        @Override
+        public void connect(String hostPort) {
+            int colon = hostPort.lastIndexOf(':');
+            final Connection connection = new Connection(this, hostPort.substring(0, colon),
+                    Integer.parseInt(hostPort.substring(colon + 1)));
+            connections.add(connection);
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    connection.open();
+                }
+            });
+        }
+
+        @Override
+        public void setReceiveTimeOut(int millis) {
+            timeout = millis;
+        }
+
+        @Override
+        public void setHWM(int hwm) {
+            this.hwm = hwm;
+        }
+
+        @Override
+        public void subscribe(byte[] prefix) {
+            subscriptions.add(prefix);
+        }
+
+        @Override
+        public void send(List<byte[]> message) {
+            route(message, false);
+        }
+
+        @Override
+        public boolean offer(List<byte[]> message) {
+            return route(message, true);
+        }
+
+        private boolean route(List<byte[]> message, boolean dropAtHwm) {
+            if (type == ROUTER) {
+                // the first frame says which peer, replies to peers that are gone are dropped
+                byte[] identity = message.get(0);
+                Connection connection = identity.length == 4 ? peers.get(ByteBuffer.wrap(identity).getInt()) : null;
+                return connection != null && connection.enqueue(message.subList(1, message.size()), dropAtHwm);
+            }
+            if (type == PUB) {
+                for (Connection connection : connections)
+                    connection.enqueue(message, true);
+                return true;
+            }
+            Object[] candidates = connections.toArray();
+            if (candidates.length == 0)
+                return false;
+            Connection connection = (Connection) candidates[(nextPeer.getAndIncrement() & Integer.MAX_VALUE) % candidates.length];
+            return connection.enqueue(message, dropAtHwm);
+        }
+
+        // I/O thread
+        void deliver(Connection connection, List<byte[]> message) {
+            if (type == PUB || type == PUSH)
+                return;
+            if (type == SUB && !subscribed(message.get(0)))
+                return;
+            if (type == ROUTER)
+                message.add(0, connection.identity);
+            inbound.add(message);
+        }
+
+        private boolean subscribed(byte[] topic) {
+            for (byte[] prefix : subscriptions) {
+                if (prefix.length > topic.length)
+                    continue;
+                boolean match = true;
+                for (int i = 0; i < prefix.length && match; i++)
+                    match = prefix[i] == topic[i];
+                if (match)
+                    return true;
+            }
+            return false;
+        }
+
+        @Override
+        public List<byte[]> recv() {
+            try {
+                if (timeout < 0)
+                    return inbound.take();
+                return inbound.poll(timeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (server != null) {
+                        try {
+                            server.close();
+                        } catch (IOException e) {
+                            // Ignore
+                        }
+                    }
+                    for (Connection connection : connections)
+                        connection.drop();
+                    connections.clear();
+                    peers.clear();
+                }
+            });
+        }
+    }
+
+    private class Connection {
+
+        private final NioSocket socket;
+        // where to reconnect to, null for accepted connections
+        private final String host;
+        private final int port;
+        private byte[] identity;
+        private SocketChannel channel;
+        private SelectionKey key;
+
+        private final Deque<List<byte[]>> outbound = new ConcurrentLinkedDeque<List<byte[]>>();
+        private final AtomicInteger queued = new AtomicInteger();
+        // set while the I/O thread has (or is about to have) write interest
+        private final AtomicBoolean flushing = new AtomicBoolean();
+        private final Runnable flush = new Runnable() {
+            @Override
+            public void run() {
+                if (key != null && key.isValid() && channel.isConnected())
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        };
+
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        // message being read: frame count (-1 before it is known), frames so far, the frame being filled
+        private int frames;
+        private List<byte[]> parts;
+        private byte[] frame;
+        private int frameOffset;
+        // message being written: frame (-1 for the frame count), offset in it (-1 for its length)
+        private List<byte[]> writing;
+        private int writeFrame;
+        private int writeOffset;
+        /* messages taken off outbound whose bytes aren't all written to the channel yet, and where
+           each encoded one ends in bytes encoded on this connection; requeued if it drops */
+        private final Deque<List<byte[]>> unwritten = new ArrayDeque<List<byte[]>>();
+        private final Deque<Long> unwrittenEnds = new ArrayDeque<Long>();
+        private long encoded;
+        private long written;
+
+        Connection(NioSocket socket, String host, int port) {
+            this.socket = socket;
+            this.host = host;
+            this.port = port;
+        }
+
+        boolean enqueue(List<byte[]> message, boolean dropAtHwm) {
+            if (dropAtHwm && queued.get() >= socket.hwm)
+                return false;
+            outbound.add(message);
+            queued.incrementAndGet();
+            if (flushing.compareAndSet(false, true))
+                execute(flush);
+            return true;
+        }
+
+        // I/O thread from here on
+
+        void open() {
+            if (socket.closed || closed)
+                return;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                if (channel.connect(new InetSocketAddress(host, port)))
+                    established();
+                else
+                    key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+            } catch (IOException e) {
+                drop();
+            }
+        }
+
+        void finishConnect() throws IOException {
+            if (channel.finishConnect())
+                established();
+        }
+
+        void established() throws IOException {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            readBuffer.clear();
+            writeBuffer.clear();
+            // the peer never got all of these over the last connection, they go first on this one
+            while (!unwritten.isEmpty()) {
+                outbound.addFirst(unwritten.pollLast());
+                queued.incrementAndGet();
+            }
+            unwrittenEnds.clear();
+            encoded = 0;
+            written = 0;
+            frames = -1;
+            parts = null;
+            frame = null;
+            writing = null;
+            flushing.set(true);
+            if (key == null)
+                key = channel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, this);
+            else
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        void read() throws IOException {
+            if (channel.read(readBuffer) < 0)
+                throw new IOException("Connection closed");
+            readBuffer.flip();
+            while (true) {
+                if (frames < 0) {
+                    if (readBuffer.remaining() < 4)
+                        break;
+                    frames = readBuffer.getInt();
+                    if (frames <= 0 || frames > MAX_FRAMES)
+                        throw new IOException("Bad frame count " + frames);
+                    parts = new ArrayList<byte[]>(frames + 1);
+                }
+                if (frame == null) {
+                    if (readBuffer.remaining() < 4)
+                        break;
+                    int length = readBuffer.getInt();
+                    if (length < 0 || length > MAX_FRAME_LENGTH)
+                        throw new IOException("Bad frame length " + length);
+                    frame = new byte[length];
+                    frameOffset = 0;
+                }
+                int n = Math.min(readBuffer.remaining(), frame.length - frameOffset);
+                readBuffer.get(frame, frameOffset, n);
+                frameOffset += n;
+                if (frameOffset < frame.length)
+                    break;
+                parts.add(frame);
+                frame = null;
+                if (parts.size() == frames) {
+                    socket.deliver(this, parts);
+                    frames = -1;
+                    parts = null;
+                }
+            }
+            readBuffer.compact();
+        }
+
+        void write() throws IOException {
+            do {
+                fill();
+                writeBuffer.flip();
+                written += channel.write(writeBuffer);
+                writeBuffer.compact();
+                while (!unwrittenEnds.isEmpty() && unwrittenEnds.peekFirst() <= written) {
+                    unwrittenEnds.pollFirst();
+                    unwritten.pollFirst();
+                }
+            } while (writeBuffer.position() == 0 && (writing != null || !outbound.isEmpty()));
+
+            if (writeBuffer.position() == 0 && writing == null && outbound.isEmpty()) {
+                key.interestOps(SelectionKey.OP_READ);
+                flushing.set(false);
+                // queued after the check above
+                if (!outbound.isEmpty() && flushing.compareAndSet(false, true))
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        // encode as much of the queue as fits into the write buffer
+        private void fill() {
+            while (writeBuffer.hasRemaining()) {
+                if (writing == null) {
+                    writing = outbound.poll();
+                    if (writing == null)
+                        return;
+                    queued.decrementAndGet();
+                    unwritten.addLast(writing);
+                    writeFrame = -1;
+                }
+                if (writeFrame < 0) {
+                    if (writeBuffer.remaining() < 4)
+                        return;
+                    writeBuffer.putInt(writing.size());
+                    encoded += 4;
+                    writeFrame = 0;
+                    writeOffset = -1;
+                }
+                if (writeFrame == writing.size()) {
+                    unwrittenEnds.addLast(encoded);
+                    writing = null;
+                    continue;
+                }
+                byte[] data = writing.get(writeFrame);
+                if (writeOffset < 0) {
+                    if (writeBuffer.remaining() < 4)
+                        return;
+                    writeBuffer.putInt(data.length);
+                    encoded += 4;
+                    writeOffset = 0;
+                }
+                int n = Math.min(writeBuffer.remaining(), data.length - writeOffset);
+                writeBuffer.put(data, writeOffset, n);
+                encoded += n;
+                writeOffset += n;
+                if (writeOffset == data.length) {
+                    writeFrame++;
+                    writeOffset = -1;
+                    // done as soon as its last byte is in, so it isn't resent once that is written
+                    if (writeFrame == writing.size()) {
+                        unwrittenEnds.addLast(encoded);
+                        writing = null;
+                    }
+                }
+            }
+        }
+
+        // close the channel; accepted connections are forgotten, connected ones try again shortly
+        void drop() {
+            if (key != null)
+                closeQuietly(key);
+            else if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+            key = null;
+            channel = null;
+            if (host == null || socket.closed) {
+                socket.connections.remove(this);
+                if (identity != null)
+                    socket.peers.remove(ByteBuffer.wrap(identity).getInt());
+                return;
+            }
+            schedule(RECONNECT_MILLIS, new Runnable() {
+                @Override
+                public void run() {
+                    open();
+                }
+            });
+        }
+    }
+
+}
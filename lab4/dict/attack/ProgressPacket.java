@@ -0,0 +1,19 @@
+package dict.attack;
+import java.io.Serializable;
+import java.util.ArrayList;
+
+/**
+ * Progress report pushed by a worker to the tracker's progress socket, batched per
+ * report interval so that no ZooKeeper write is needed per partition.
+ */
+public class ProgressPacket implements Serializable {
+
+    public String workerId = null;
+    // null on a report that only carries the hash rate
+    public String hash = null;
+    // partitions finished since the last report
+    public ArrayList<Integer> partsDone = new ArrayList<Integer>();
+    // hashes per second of this worker over the last report interval
+    public double hashRate = 0;
+
+}
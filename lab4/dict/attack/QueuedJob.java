@@ -0,0 +1,83 @@
+package dict.attack;
+
+/**
+ * A job admitted by the tracker that has not been written to /jobs yet.
+ * Higher priority jobs are taken first, equal priorities in submission order.
+ */
+public class QueuedJob implements Comparable<QueuedJob> {
+
+    private static long nextSeq = 0;
+
+    private final String hash;
+    private final int priority;
+    private final long seq;
+    private final long submitted;
+    // /submissions znode holding this job, null until it has been persisted
+    private String submission = null;
+    // replayed from /submissions by a tracker that took over, may already be running or done
+    private boolean recovered = false;
+    // wall clock millis after which the job is cancelled, 0 for none
+    private long deadline = 0;
+
+    QueuedJob(String hash, int priority) {
+        this(hash, priority, System.currentTimeMillis());
+    }
+
+    QueuedJob(String hash, int priority, long submitted) {
+        this.hash = hash;
+        this.priority = priority;
+        this.submitted = submitted;
+        synchronized (QueuedJob.class) {
+            this.seq = nextSeq++;
+        }
+    }
+
+    String getHash() {
+        return hash;
+    }
+
+    int getPriority() {
+        return priority;
+    }
+
+    long getSubmitted() {
+        return submitted;
+    }
+
+    String getSubmission() {
+        return submission;
+    }
+
+    void setSubmission(String submission) {
+        this.submission = submission;
+    }
+
+    boolean isRecovered() {
+        return recovered;
+    }
+
+    void setRecovered(boolean recovered) {
+        this.recovered = recovered;
+    }
+
+    long getDeadline() {
+        return deadline;
+    }
+
+    void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    // the later of two deadlines, no deadline winning over any
+    static long laterDeadline(long a, long b) {
+        return a == 0 || b == 0 ? 0 : Math.max(a, b);
+    }
+
+    @Override
+    public int compareTo(QueuedJob other) {
+        if (priority != other.priority)
+            return priority > other.priority ? -1 : 1;
+        return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+    }
+
+}
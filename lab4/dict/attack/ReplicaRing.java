@@ -0,0 +1,50 @@
+package dict.attack;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Iterators;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.util.*;
+
+/**
+ * Consistent-hash ring of FileServer replica endpoints (host:port). Each partition id maps
+ * to a preferred replica, followed by the other replicas in ring order for failover, so
+ * adding or losing a replica only moves that replica's share of partitions.
+ */
+public class ReplicaRing {
+
+    private static final int VIRTUAL_NODES = 100;
+    private static final HashFunction hashFunction = Hashing.murmur3_128();
+
+    private final TreeMap<Long, String> ring = new TreeMap<Long, String>();
+    private final int size;
+
+    ReplicaRing(Collection<String> endpoints) {
+        Set<String> distinct = new HashSet<String>(endpoints);
+        for (String endpoint : distinct) {
+            for (int i = 0; i < VIRTUAL_NODES; i++)
+                ring.put(hashFunction.hashString(endpoint + "#" + i, Charsets.UTF_8).asLong(), endpoint);
+        }
+        size = distinct.size();
+    }
+
+    // replicas to try for partId, preferred first
+    List<String> candidates(int partId) {
+        List<String> candidates = new ArrayList<String>(size);
+        if (ring.isEmpty())
+            return candidates;
+        long point = hashFunction.hashInt(partId).asLong();
+        Iterator<String> it = Iterators.concat(ring.tailMap(point).values().iterator(), ring.headMap(point).values().iterator());
+        while (it.hasNext() && candidates.size() < size) {
+            String endpoint = it.next();
+            if (!candidates.contains(endpoint))
+                candidates.add(endpoint);
+        }
+        return candidates;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+}
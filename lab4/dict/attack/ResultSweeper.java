@@ -0,0 +1,109 @@
+package dict.attack;
+import com.google.common.base.Joiner;
+import com.google.common.base.Predicate;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Expires results older than a TTL, one shard of /result at a time. Creation times of a
+ * shard's results are read with pipelined async exists calls and the expired ones deleted
+ * with multi() in batches of BATCH_SIZE. Results the caller reports as hot are kept. Results
+ * still sitting directly under /result (from before sharding) are expired the same way.
+ */
+public class ResultSweeper {
+
+    static final int BATCH_SIZE = 100;
+
+    private final ZooKeeper zooKeeper;
+    private final long ttl;
+    private final Predicate<String> hot;
+
+    ResultSweeper(ZooKeeper zooKeeper, long ttl, Predicate<String> hot) {
+        this.zooKeeper = zooKeeper;
+        this.ttl = ttl;
+        this.hot = hot;
+    }
+
+    // one pass over every shard, returns the number of results deleted
+    int sweep() throws KeeperException, InterruptedException {
+        long expiry = System.currentTimeMillis() - ttl;
+        int deleted = 0;
+        List<String> legacy = new ArrayList<String>();
+        for (String child : zooKeeper.getChildren(Results.ZK_RESULT, false)) {
+            if (child.length() > Results.SHARD_CHARS) {
+                legacy.add(child);
+                continue;
+            }
+            String shard = Joiner.on("/").join(Results.ZK_RESULT, child);
+            try {
+                deleted += expire(shard, zooKeeper.getChildren(shard, false), expiry);
+            } catch (KeeperException.NoNodeException e) {
+                // Ignore
+            }
+        }
+        deleted += expire(Results.ZK_RESULT, legacy, expiry);
+        return deleted;
+    }
+
+    private int expire(String parent, List<String> hashes, long expiry) throws KeeperException, InterruptedException {
+        if (hashes.isEmpty())
+            return 0;
+        final Map<String, Long> created = new ConcurrentHashMap<String, Long>();
+        final CountDownLatch done = new CountDownLatch(hashes.size());
+        for (String hash : hashes) {
+            zooKeeper.exists(Joiner.on("/").join(parent, hash), false, new AsyncCallback.StatCallback() {
+                @Override
+                public void processResult(int rc, String path, Object ctx, Stat stat) {
+                    if (stat != null)
+                        created.put((String) ctx, stat.getCtime());
+                    done.countDown();
+                }
+            }, hash);
+        }
+        done.await();
+
+        int deleted = 0;
+        List<Op> batch = new ArrayList<Op>(BATCH_SIZE);
+        for (Map.Entry<String, Long> entry : created.entrySet()) {
+            if (entry.getValue() > expiry || hot.apply(entry.getKey()))
+                continue;
+            batch.add(Op.delete(Joiner.on("/").join(parent, entry.getKey()), -1));
+            if (batch.size() == BATCH_SIZE) {
+                deleted += commit(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty())
+            deleted += commit(batch);
+        return deleted;
+    }
+
+    private int commit(List<Op> batch) throws KeeperException, InterruptedException {
+        try {
+            zooKeeper.multi(batch);
+            return batch.size();
+        } catch (KeeperException.NoNodeException e) {
+            // one of them went away in the meantime and failed the whole batch, go one by one
+            int deleted = 0;
+            for (Op op : batch) {
+                try {
+                    zooKeeper.delete(op.getPath(), -1);
+                    deleted++;
+                } catch (KeeperException.NoNodeException ignored) {
+                    // Ignore
+                }
+            }
+            return deleted;
+        }
+    }
+
+}
@@ -0,0 +1,130 @@
+package dict.attack;
+import com.google.common.base.Joiner;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Layout of /result. Each result lives under a parent named after the first two characters
+ * of its digest, /result/ab/&lt;hash&gt;, so no single znode collects every result ever found.
+ * The data of a result is the password, or empty if the dictionary doesn't contain it.
+ *
+ * A result is committed together with the deletion of its /jobs/&lt;hash&gt; node in one multi(),
+ * so there is never a result with its job still running or a finished job without a result.
+ */
+public class Results {
+
+    static final String ZK_RESULT = "/result";
+    static final int SHARD_CHARS = 2;
+
+    /* shard parent name for hash, from the digest after any dictionary and algorithm name so
+       every algorithm spreads evenly; anything that isn't a letter or digit maps to '_' */
+    static String shard(String hash) {
+        StringBuilder shard = new StringBuilder(SHARD_CHARS);
+        int from = Math.max(hash.indexOf('@'), hash.indexOf(':')) + 1;
+        for (int i = 0; i < SHARD_CHARS; i++) {
+            char c = from + i < hash.length() ? hash.charAt(from + i) : '_';
+            shard.append(Character.isLetterOrDigit(c) ? Character.toLowerCase(c) : '_');
+        }
+        return shard.toString();
+    }
+
+    static String shardPath(String hash) {
+        return Joiner.on("/").join(ZK_RESULT, shard(hash));
+    }
+
+    static String path(String hash) {
+        return Joiner.on("/").join(ZK_RESULT, shard(hash), hash);
+    }
+
+    // the hash of a /result/<shard>/<hash> path, null for any other path
+    static String hashOf(String path) {
+        if (!path.startsWith(ZK_RESULT + "/"))
+            return null;
+        String[] parts = path.substring(ZK_RESULT.length() + 1).split("/");
+        return parts.length == 2 ? parts[1] : null;
+    }
+
+    // create the shard parent of hash if it doesn't exist yet
+    static void ensureShard(ZooKeeper zooKeeper, String hash) throws KeeperException, InterruptedException {
+        try {
+            zooKeeper.create(shardPath(hash), null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        } catch (KeeperException.NodeExistsException e) {
+            // Ignore
+        }
+    }
+
+    /* Create the result of hash, along with its shard parent if needed. Returns false if the
+       result was already there, e.g. found by another worker */
+    static boolean create(ZooKeeper zooKeeper, String hash, byte[] result) throws KeeperException, InterruptedException {
+        while (true) {
+            try {
+                zooKeeper.create(path(hash), result, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+                return true;
+            } catch (KeeperException.NodeExistsException e) {
+                return false;
+            } catch (KeeperException.NoNodeException e) {
+                ensureShard(zooKeeper, hash);
+            }
+        }
+    }
+
+    /* Create the result of hash and delete job (at jobVersion, -1 for any) in one transaction.
+       Idempotent: if the result is already there, e.g. found by another worker, only the job is
+       deleted and false is returned. A password whose job is already gone is still recorded.
+       Throws BadVersion when job changed since it was read at jobVersion, and NoNode when
+       it is gone while committing a versioned (not found) result */
+    static boolean commit(ZooKeeper zooKeeper, String hash, byte[] result, String job, int jobVersion)
+            throws KeeperException, InterruptedException {
+        List<Op> ops = Arrays.asList(
+                Op.create(path(hash), result, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT),
+                Op.delete(job, jobVersion));
+        while (true) {
+            try {
+                zooKeeper.multi(ops);
+                return true;
+            } catch (KeeperException e) {
+                int failed = failedOp(e);
+                if (failed == 0 && e.code() == KeeperException.Code.NONODE) {
+                    // first result in this shard
+                    ensureShard(zooKeeper, hash);
+                } else if (failed == 0 && e.code() == KeeperException.Code.NODEEXISTS) {
+                    try {
+                        zooKeeper.delete(job, -1);
+                    } catch (KeeperException.NoNodeException ignored) {
+                        // Ignore
+                    }
+                    return false;
+                } else if (failed == 1 && e.code() == KeeperException.Code.NONODE && jobVersion == -1) {
+                    return create(zooKeeper, hash, result);
+                } else {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    // index of the op that failed a multi(), the ones after it report RUNTIMEINCONSISTENCY
+    private static int failedOp(KeeperException e) {
+        List<OpResult> results = e.getResults();
+        if (results != null) {
+            for (int i = 0; i < results.size(); i++) {
+                OpResult result = results.get(i);
+                if (result instanceof OpResult.ErrorResult) {
+                    int err = ((OpResult.ErrorResult) result).getErr();
+                    if (err != KeeperException.Code.OK.intValue()
+                            && err != KeeperException.Code.RUNTIMEINCONSISTENCY.intValue())
+                        return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+}
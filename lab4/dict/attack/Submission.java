@@ -0,0 +1,72 @@
+package dict.attack;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hashes accepted by the tracker in one client request, persisted as the json data of a
+ * sequential /submissions/q-&lt;seq&gt; znode before the client is told they were accepted.
+ * The znode is deleted once every hash in it has been written to /jobs, so a tracker that
+ * takes over replays whatever is left. A later submission of one of its hashes that raises its
+ * priority or extends its deadline is written back as an override for that hash.
+ */
+public class Submission {
+
+    private ArrayList<String> hashes = new ArrayList<String>();
+    private int priority = JobPacket.PRIORITY_NORMAL;
+    private long submitted = 0;
+    private long deadline = 0;
+    // per hash, where a merged submission changed it; null in data written before there were any
+    private Map<String, Integer> priorities = null;
+    private Map<String, Long> deadlines = null;
+
+    Submission(ArrayList<String> hashes, int priority, long submitted) {
+        this.hashes = hashes;
+        this.priority = priority;
+        this.submitted = submitted;
+    }
+
+    Submission(ArrayList<String> hashes, int priority, long submitted, long deadline) {
+        this(hashes, priority, submitted);
+        this.deadline = deadline;
+    }
+
+    ArrayList<String> getHashes() {
+        return hashes;
+    }
+
+    int getPriority() {
+        return priority;
+    }
+
+    long getSubmitted() {
+        return submitted;
+    }
+
+    long getDeadline() {
+        return deadline;
+    }
+
+    int getPriority(String hash) {
+        Integer override = priorities == null ? null : priorities.get(hash);
+        return override == null ? priority : override;
+    }
+
+    long getDeadline(String hash) {
+        Long override = deadlines == null ? null : deadlines.get(hash);
+        return override == null ? deadline : override;
+    }
+
+    void setPriority(String hash, int priority) {
+        if (priorities == null)
+            priorities = new HashMap<String, Integer>();
+        priorities.put(hash, priority);
+    }
+
+    void setDeadline(String hash, long deadline) {
+        if (deadlines == null)
+            deadlines = new HashMap<String, Long>();
+        deadlines.put(hash, deadline);
+    }
+
+}
@@ -0,0 +1,200 @@
+package dict.attack;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Timestamped spans for each stage of a job, tagged with the job's hash, so a slow job's
+ * time can be split between tracker queueing, ZooKeeper writes, worker pickup, partition
+ * fetches and hashing. Spans go to an in-memory ring (the oldest are overwritten) and are
+ * exported as Chrome trace-event json, viewable in chrome://tracing or Perfetto.
+ *
+ * Run with -Ddict.trace=[file] to turn it on; the ring is written to the file on exit and
+ * served on /trace next to /metrics. Guard call sites with if (Trace.ENABLED). Timestamps
+ * are wall clock microseconds, so files from processes on one host line up when merged:
+ *
+ *   java dict.attack.Trace [out.json] [hash|all] [trace files...]
+ */
+public class Trace {
+
+    public static final boolean ENABLED = System.getProperty("dict.trace") != null;
+    private static final int CAPACITY = Integer.getInteger("dict.trace.capacity", 1 << 17);
+
+    // wall clock microseconds at EPOCH_NANOS, taken on a millisecond tick
+    private static final long EPOCH_MICROS;
+    private static final long EPOCH_NANOS;
+    static {
+        long millis = System.currentTimeMillis();
+        long now;
+        while ((now = System.currentTimeMillis()) == millis)
+            ;
+        EPOCH_NANOS = System.nanoTime();
+        EPOCH_MICROS = now * 1000;
+    }
+
+    static class Span {
+        String name;
+        String hash;
+        long ts;
+        long dur;
+        long tid;
+        String thread;
+    }
+
+    private static final AtomicReferenceArray<Span> ring = new AtomicReferenceArray<Span>(ENABLED ? CAPACITY : 1);
+    private static final AtomicLong next = new AtomicLong();
+    private static String process = "dict";
+    private static Gson gson = new Gson();
+
+    // a span from startNanos (System.nanoTime) until now
+    public static void span(String name, String hash, long startNanos) {
+        long now = System.nanoTime();
+        record(name, hash, micros(startNanos), (now - startNanos) / 1000);
+    }
+
+    // a span from startMillis (System.currentTimeMillis, possibly another process's) until now
+    public static void spanFromMillis(String name, String hash, long startMillis) {
+        long now = micros(System.nanoTime());
+        long start = Math.min(startMillis * 1000, now);
+        record(name, hash, start, now - start);
+    }
+
+    // a point in time, e.g. a result arriving
+    public static void instant(String name, String hash) {
+        record(name, hash, micros(System.nanoTime()), -1);
+    }
+
+    private static long micros(long nanos) {
+        return EPOCH_MICROS + (nanos - EPOCH_NANOS) / 1000;
+    }
+
+    private static void record(String name, String hash, long ts, long dur) {
+        Span span = new Span();
+        span.name = name;
+        span.hash = hash;
+        span.ts = ts;
+        span.dur = dur;
+        Thread thread = Thread.currentThread();
+        span.tid = thread.getId();
+        span.thread = thread.getName();
+        ring.set((int) (next.getAndIncrement() % ring.length()), span);
+    }
+
+    // name this process in the trace and write the ring to the dict.trace file on exit
+    public static void start(String name) {
+        if (!ENABLED)
+            return;
+        process = name;
+        final File file = new File(System.getProperty("dict.trace"));
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Files.write(toJson(), file, Charsets.UTF_8);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        System.out.println("Tracing to " + file);
+    }
+
+    // the ring as Chrome trace-event json, oldest span first
+    public static String toJson() {
+        int pid = pid();
+        List<Map<String, Object>> events = new ArrayList<Map<String, Object>>();
+        events.add(metadata("process_name", pid, 0, process));
+        Set<Long> threads = new HashSet<Long>();
+
+        long end = next.get();
+        for (long i = Math.max(0, end - ring.length()); i < end; i++) {
+            Span span = ring.get((int) (i % ring.length()));
+            if (span == null)
+                continue;
+            if (threads.add(span.tid))
+                events.add(metadata("thread_name", pid, span.tid, span.thread));
+            Map<String, Object> event = new LinkedHashMap<String, Object>();
+            event.put("name", span.name);
+            event.put("cat", span.name.substring(0, Math.max(0, span.name.indexOf('.'))));
+            event.put("ph", span.dur < 0 ? "i" : "X");
+            event.put("ts", span.ts);
+            if (span.dur >= 0)
+                event.put("dur", span.dur);
+            else
+                event.put("s", "t");
+            event.put("pid", pid);
+            event.put("tid", span.tid);
+            Map<String, Object> args = new LinkedHashMap<String, Object>();
+            args.put("hash", span.hash);
+            event.put("args", args);
+            events.add(event);
+        }
+        return wrap(events);
+    }
+
+    private static Map<String, Object> metadata(String kind, int pid, long tid, String name) {
+        Map<String, Object> event = new LinkedHashMap<String, Object>();
+        event.put("name", kind);
+        event.put("ph", "M");
+        event.put("pid", pid);
+        event.put("tid", tid);
+        Map<String, Object> args = new LinkedHashMap<String, Object>();
+        args.put("name", name);
+        event.put("args", args);
+        return event;
+    }
+
+    private static String wrap(List<Map<String, Object>> events) {
+        Map<String, Object> trace = new LinkedHashMap<String, Object>();
+        trace.put("traceEvents", events);
+        trace.put("displayTimeUnit", "ms");
+        return gson.toJson(trace);
+    }
+
+    private static int pid() {
+        // "pid@host" on the usual JVMs
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        try {
+            return Integer.parseInt(name.substring(0, name.indexOf('@')));
+        } catch (Exception e) {
+            return name.hashCode() & 0x7fffffff;
+        }
+    }
+
+    /* Merge the trace files of the client, tracker, workers and fileservers into one,
+       keeping only the spans of one job unless the hash is "all" */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage trace [out.json] [hash|all] [trace files...]");
+            System.exit(-1);
+        }
+        String hash = args[1];
+        JsonArray events = new JsonArray();
+        for (int i = 2; i < args.length; i++) {
+            JsonObject trace = new JsonParser().parse(Files.toString(new File(args[i]), Charsets.UTF_8)).getAsJsonObject();
+            for (JsonElement element : trace.getAsJsonArray("traceEvents")) {
+                JsonObject event = element.getAsJsonObject();
+                JsonElement eventHash = event.getAsJsonObject("args").get("hash");
+                if (hash.equals("all") || event.get("ph").getAsString().equals("M")
+                        || (eventHash != null && !eventHash.isJsonNull() && hash.equals(eventHash.getAsString())))
+                    events.add(event);
+            }
+        }
+        JsonObject merged = new JsonObject();
+        merged.add("traceEvents", events);
+        merged.addProperty("displayTimeUnit", "ms");
+        Files.write(gson.toJson(merged), new File(args[0]), Charsets.UTF_8);
+        System.out.println("Wrote " + events.size() + " events to " + args[0]);
+    }
+
+}
@@ -0,0 +1,90 @@
+package dict.attack;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The messaging the cluster runs on: request/reply (REQ or DEALER to ROUTER), pub/sub and
+ * push/pull, with multipart messages as lists of frames. A ROUTER puts the sender's identity in
+ * front of every message it receives and routes what it sends by that first frame, so a server
+ * replies by sending back everything before the last frame followed by its reply.
+ *
+ * Two implementations, picked with -Ddict.transport=[zmq|nio]: ZeroMQ through jzmq (the
+ * default, needs the native library) and a pure Java one on NIO channels. Both ends of a
+ * connection have to use the same one.
+ *
+ * Sockets belong to one thread at a time, as in ZeroMQ, except that a ROUTER can be sent on
+ * from any thread while another is receiving on it.
+ */
+public abstract class Transport {
+
+    public static final int REQ = 1;
+    public static final int ROUTER = 2;
+    public static final int DEALER = 3;
+    public static final int PUB = 4;
+    public static final int SUB = 5;
+    public static final int PUSH = 6;
+    public static final int PULL = 7;
+
+    static final String TRANSPORT = System.getProperty("dict.transport", "zmq");
+
+    // the transport chosen by dict.transport
+    public static Transport open() {
+        return open(TRANSPORT);
+    }
+
+    public static Transport open(String name) {
+        if (name.equals("zmq"))
+            return new ZmqTransport();
+        if (name.equals("nio"))
+            return new NioTransport();
+        throw new IllegalArgumentException("Unknown transport " + name);
+    }
+
+    public abstract Socket socket(int type);
+
+    // close the transport, its sockets are unusable afterwards
+    public abstract void close();
+
+    // the last frame of a message, the body after any envelope
+    public static byte[] body(List<byte[]> message) {
+        return message.get(message.size() - 1);
+    }
+
+    public static abstract class Socket {
+
+        // listen on all interfaces
+        public abstract void bind(int port);
+
+        // connect to host:port, in the background; messages sent meanwhile are queued
+        public abstract void connect(String hostPort);
+
+        // recv() returns null after millis without a message, -1 (the default) waits forever
+        public abstract void setReceiveTimeOut(int millis);
+
+        // messages queued per peer before offer() starts dropping them
+        public abstract void setHWM(int hwm);
+
+        // SUB only, receive messages whose first frame starts with prefix
+        public abstract void subscribe(byte[] prefix);
+
+        // queue a message for sending
+        public abstract void send(List<byte[]> message);
+
+        // queue a message unless the peer is at its high water mark, returns false if dropped
+        public abstract boolean offer(List<byte[]> message);
+
+        // next message, or null on timeout
+        public abstract List<byte[]> recv();
+
+        public abstract void close();
+
+        public void send(byte[]... frames) {
+            send(Arrays.asList(frames));
+        }
+
+        public boolean offer(byte[]... frames) {
+            return offer(Arrays.asList(frames));
+        }
+    }
+
+}
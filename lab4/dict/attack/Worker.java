@@ -1,21 +1,28 @@
 package dict.attack;
+import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
-import com.google.common.base.Throwables;
 import com.google.gson.Gson;
 import org.apache.commons.lang.SerializationUtils;
 import org.apache.zookeeper.*;
-import org.zeromq.ZMQ;
+import org.apache.zookeeper.data.Stat;
 
-import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created with IntelliJ IDEA.
@@ -35,21 +42,81 @@ public class Worker {
     private static final int ZK_TIMEOUT = 5000;
     private static String ZK_WORKER = "/worker";
     private static String ZK_JOBS = "/jobs";
-    private static String ZK_RESULT = "/result";
     private static String ZK_FILESERVER = "/fileserver";
+    private static String ZK_TRACKER = "/tracker";
+    private static String ZK_REPLICAS = "/fileserver_replica";
+    private static final int FETCH_TIMEOUT = 2000;
+    // frames of a partition in flight from the fileserver at any time
+    private static final int STREAM_WINDOW = 4;
+    private static long streamId = 0;
     private static CountDownLatch nodeDelSignal = new CountDownLatch(1);
+    private static final int BENCH_MILLIS = 200;
+    private static final int CAPACITY_REFRESH = 60000;
+    // how often the partitions in my digest cache are re-advertised, if they changed
+    private static final int CACHE_ADVERTISE = 5000;
+
+    // words hashed and time spent hashing since the last capacity refresh
+    private static long hashCount = 0;
+    private static long hashNanos = 0;
+
+    // partitions finished per job since the last progress report, and words hashed for the report's rate
+    private static final int PROGRESS_INTERVAL = 1000;
+    private static HashMap<String, ArrayList<Integer>> progressDone = new HashMap<String, ArrayList<Integer>>();
+    private static long progressHashes = 0;
+    private static volatile String trackerId = null;
+
+    /* Metrics */
+    private static final Histogram zkLatency = Metrics.histogram("zk.latency");
+    private static final Histogram fetchLatency = Metrics.histogram("worker.fetch.latency");
+    private static final AtomicLong hashesDone = Metrics.counter("worker.hashes");
+    private static final AtomicLong partitionsSkipped = Metrics.counter("worker.partitions.cached");
+    private static volatile double recentHashRate = 0;
 
     // hashmap to store already calculated hash:passwd
     private static HashMap<String, String> cacheJobs = new HashMap<String, String>();
+    // partitions finished per job, by WorkerStore.progressKey
     private static HashMap<String, List<Integer>> cachePartId = new HashMap<String, List<Integer>>();
     private static Map<String, String> currJobs = new ConcurrentHashMap<String, String>();
-
-    /* ZeroMQ */
-    private static ZMQ.Context context;
-    private static ZMQ.Socket socket;
+    // children of /jobs as of the last watch, a job missing from here has its result
+    private static volatile Set<String> liveJobs = new HashSet<String>();
+    // jobs a partition of which no fileserver replica could serve, queued again by periodCheck
+    private static Map<String, String> retryJobs = new ConcurrentHashMap<String, String>();
+    // when each queued job was picked up from /jobs, for tracing
+    private static Map<String, Long> jobSeen = new ConcurrentHashMap<String, Long>();
+    // frames already hashed of partitions left unfinished, by WorkerStore.frameKey
+    private static HashMap<String, Integer> cacheFrames = new HashMap<String, Integer>();
+    // by Dictionaries.scope, partitions every word of which is in cacheJobs, a hash missing from cacheJobs isn't in them
+    private static final Map<String, BitSet> cachedPartitions = new HashMap<String, BitSet>();
+    // what /worker/<id> last said about me
+    private static final Object advertiseLock = new Object();
+    private static volatile double advertisedRate = WorkerCapacity.DEFAULT_HASH_RATE;
+    private static volatile Map<String, BitSet> advertisedPartitions = new HashMap<String, BitSet>();
+    // caches above persisted to local disk, reloaded on restart (null when not persisting, e.g. in benchmarks)
+    private static WorkerStore store = null;
+
+    /* Transport */
+    private static Transport transport;
+
+    /* FileServer replicas, endpoints are refreshed by the watcher while the ring and
+       sockets are only touched by the worker processor thread */
+    private static volatile List<String> replicaEndpoints = new ArrayList<String>();
+    private static List<String> ringEndpoints = null;
+    private static ReplicaRing ring = null;
+    private static HashMap<String, Transport.Socket> replicaSockets = new HashMap<String, Transport.Socket>();
 
     private static ArrayBlockingQueue<String> jobQueue = new ArrayBlockingQueue<String>(100);
 
+    // results waiting to be committed to ZooKeeper by the result committer, off the hashing thread
+    private static LinkedBlockingQueue<PendingResult> resultQueue = new LinkedBlockingQueue<PendingResult>();
+
+    static class PendingResult {
+        String hash;
+        String result;
+        // partitions I searched without finding the password, null if I found it
+        List<Integer> partIdList;
+        long queued;
+    }
+
     private static Gson gson = new Gson();
 
     public Worker(){
@@ -80,24 +147,29 @@ public class Worker {
                         CreateMode.PERSISTENT
                 );
             }
-            // create myself
-            zooKeeper.create(
-                    Joiner.on("/").join(ZK_WORKER, myID),
-                    "primary".getBytes(),
-                    ZooDefs.Ids.OPEN_ACL_UNSAFE,
-                    CreateMode.EPHEMERAL
-            );
+            // create myself, advertising my capacity for weighted assignment and my cached partitions
+            advertisedRate = benchmark();
+            advertisedPartitions = cachedPartitions();
+            byte[] capacity = gson.toJson(new WorkerCapacity(advertisedRate, advertisedPartitions)).getBytes();
+            try {
+                zooKeeper.create(Joiner.on("/").join(ZK_WORKER, myID), capacity, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+            } catch (KeeperException.NodeExistsException e){
+                // left by my previous run whose session hasn't expired yet
+                System.out.println("Replacing stale " + Joiner.on("/").join(ZK_WORKER, myID));
+                zooKeeper.delete(Joiner.on("/").join(ZK_WORKER, myID), -1);
+                zooKeeper.create(Joiner.on("/").join(ZK_WORKER, myID), capacity, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+            }
             // set a data watch on myself
             zooKeeper.getData(Joiner.on("/").join(ZK_WORKER, myID), zkWatcher , null );
 
-            // initialize ZMQ
-            context = ZMQ.context(1);
+            // initialize the transport
+            transport = Transport.open();
 
-            // setup socket with zmq
-            setSocket(new String(zooKeeper.getData(ZK_FILESERVER, zkWatcher, null)));
+            // find the fileserver replicas to read from
+            refreshReplicas();
 
-            // set watch on /jobs's children
-            zooKeeper.getChildren(ZK_JOBS, zkWatcher);
+            // pick up jobs that are already running (answering from the cache if I can), and watch for new ones
+            checkJobs();
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -110,17 +182,17 @@ public class Worker {
         public void process(WatchedEvent event) {
             Event.EventType type = event.getType();
             String path = event.getPath();
-            System.out.println("Path: " + path + ", Event type:" + type);
+            if (Log.DEBUG) System.out.println("Path: " + path + ", Event type:" + type);
 
             switch (type) {
                 case NodeDataChanged:
                     try {
                         if (path.equals(ZK_FILESERVER)){
-                            try{
-                                setSocket(new String(zooKeeper.getData(ZK_FILESERVER,false,null)));
-                            } catch (Exception e) {
-                                e.printStackTrace();
-                            }
+                            refreshReplicas();
+                        }
+                        // tracker failed over, the progress reporter reconnects on its own thread
+                        if (path.equals(ZK_TRACKER)){
+                            trackerId = new String(zooKeeper.getData(ZK_TRACKER, zkWatcher, null));
                         }
 
                     } catch (Exception e) {
@@ -129,32 +201,25 @@ public class Worker {
                     }
                     break;
 
+                case NodeCreated:
+                    if (path.equals(ZK_REPLICAS) || path.equals(ZK_FILESERVER)){
+                        refreshReplicas();
+                    }
+                    break;
+
                 case NodeChildrenChanged:
-                    /* get children of /jobs, which are currently active jobs
-                    *  check in your local data structure if you have already worked
-                    *  on that job, if not work on it else leave it*/
+                    if (path.equals(ZK_REPLICAS)){
+                        refreshReplicas();
+                    }
                     try {
                         if (path.equals(ZK_JOBS)){
-                            List<String> nodeList = zooKeeper.getChildren(ZK_JOBS, false);
-                            for ( String node : nodeList){
-                                // checking cache
-                                System.out.println("node" + node);
-                                if (cacheJobs.containsKey(node)){
-                                    setResult(node, cacheJobs.get(node));
-                                }
-                                else if ( !currJobs.containsKey(node)){
-                                    String data = new String(zooKeeper.getData(Joiner.on("/").join(ZK_JOBS, node), false, null));
-
-                                    System.out.println("data "+data);
-                                    jobQueue.add(data);
-                                    currJobs.put(node, data);
-                                }
-                            }
+                            checkJobs();
+                        }
+                        else {
+                            // re-set watch on /jobs for new jobs to come
+                            if (Log.DEBUG) System.out.println("Re-set watch on existing jobs");
+                            zooKeeper.getChildren(ZK_JOBS, zkWatcher);
                         }
-
-                        // re-set watch on /jobs for new jobs to come
-                        System.out.println("Re-set watch on existing jobs");
-                        zooKeeper.getChildren(ZK_JOBS, zkWatcher);
 
                     } catch (Exception e) {
                         e.printStackTrace();
@@ -171,89 +236,263 @@ public class Worker {
         }
     }
 
-    private void setSocket (String fileServerId){
-        // setup socket with zmq
-        socket = context.socket(ZMQ.REQ);
-        socket.connect("tcp://"+ fileServerId);
-        System.out.println("Connection re-set");
+    /* get children of /jobs, which are currently active jobs
+    *  check in your local data structure if you have already worked
+    *  on that job, if not work on it else leave it. Re-sets the watch on /jobs */
+    private void checkJobs () throws Exception {
+        List<String> nodeList = zooKeeper.getChildren(ZK_JOBS, zkWatcher);
+        liveJobs = new HashSet<String>(nodeList);
+        for ( String node : nodeList){
+            // checking cache
+            if (Log.DEBUG) System.out.println("node" + node);
+            // the digest cache goes by the hash alone, whatever dictionary the job is on
+            String cached = cacheJobs.get(Dictionaries.hash(node));
+            if (cached != null){
+                setResult(node, cached);
+            }
+            else if ( !currJobs.containsKey(node)){
+                Stat stat = new Stat();
+                String data = new String(zooKeeper.getData(Joiner.on("/").join(ZK_JOBS, node), false, stat));
+                if (Trace.ENABLED){
+                    // from the tracker creating /jobs/<hash> until I noticed it
+                    Trace.spanFromMillis("worker.discover", node, stat.getCtime());
+                    jobSeen.put(node, System.nanoTime());
+                }
 
+                if (Log.DEBUG) System.out.println("data "+data);
+                jobQueue.add(data);
+                currJobs.put(node, data);
+            }
+        }
     }
 
-    private void setResult (String hash , String result){
+    // read the endpoints of all live fileserver replicas and keep watching them
+    private void refreshReplicas (){
         try {
-            byte[] res = null;
-            if (result != null)
-                res = result.getBytes();
-
-            // Create znode in /result with results and delete it from /jobs
-            if ( zooKeeper.exists(Joiner.on("/").join(ZK_RESULT, hash), false) == null )
-                zooKeeper.create(
-                        Joiner.on("/").join(ZK_RESULT, hash) ,
-                        res,
-                        ZooDefs.Ids.OPEN_ACL_UNSAFE,
-                        CreateMode.PERSISTENT
-                );
-
-            //zooKeeper.setData(Joiner.on("/").join(ZK_JOBS, hash), null , -1);
-            zooKeeper.delete(
-                   Joiner.on("/").join(ZK_JOBS, hash) ,
-                    -1
-            );
-        } catch ( Exception e) {
+            List<String> endpoints = new ArrayList<String>();
+            if (zooKeeper.exists(ZK_REPLICAS, zkWatcher) != null){
+                for (String replica : zooKeeper.getChildren(ZK_REPLICAS, zkWatcher)){
+                    try {
+                        endpoints.add(new String(zooKeeper.getData(Joiner.on("/").join(ZK_REPLICAS, replica), false, null)));
+                    } catch (KeeperException.NoNodeException e){
+                        // replica went away in the meantime
+                    }
+                }
+            }
+            // fileservers that don't register as replicas only publish the primary in /fileserver
+            if (endpoints.isEmpty() && zooKeeper.exists(ZK_FILESERVER, zkWatcher) != null)
+                endpoints.add(new String(zooKeeper.getData(ZK_FILESERVER, zkWatcher, null)));
+            replicaEndpoints = endpoints;
+            System.out.println("Fileserver replicas " + endpoints);
+        } catch (Exception e) {
             e.printStackTrace();
         }
     }
-    // not found on this worker
 
-    private void resultNotFound (String hash, List<Integer> partIdList) {
-        try {
-            while (true){
+    /* Stream partition partID from the replica that owns it on the consistent hash ring and
+       hash each frame as it arrives, granting the fileserver one more frame of credit per frame
+       hashed so at most STREAM_WINDOW frames are buffered. If the replica stops answering, the
+       remaining frames are requested from the next replica on the ring. Starts at fromFrame, the
+       frames before it having been hashed by an earlier run of the same layout. Returns the password
+       if found in this partition, null if not. Throws CancellationException if the job goes away meanwhile */
+    private String searchPartition (String hash, String layout, int partID, int fromFrame) throws IOException {
+        List<String> endpoints = replicaEndpoints;
+        if (endpoints != ringEndpoints){
+            ring = new ReplicaRing(endpoints);
+            ringEndpoints = endpoints;
+            // close sockets to replicas that are gone
+            Iterator<Map.Entry<String, Transport.Socket>> it = replicaSockets.entrySet().iterator();
+            while (it.hasNext()){
+                Map.Entry<String, Transport.Socket> entry = it.next();
+                if (!endpoints.contains(entry.getKey())){
+                    entry.getValue().close();
+                    it.remove();
+                }
+            }
+        }
 
-                // no such job therefore exit
-                if ( zooKeeper.exists(Joiner.on("/").join(ZK_JOBS, hash), false) == null)
+        int nextFrame = fromFrame;
+        for (String endpoint : ring.candidates(partID)){
+            Transport.Socket replica = replicaSockets.get(endpoint);
+            if (replica == null){
+                replica = transport.socket(Transport.DEALER);
+                replica.setReceiveTimeOut(FETCH_TIMEOUT);
+                replica.connect(endpoint);
+                replicaSockets.put(endpoint, replica);
+            }
+
+            FilePacket filePacket = new FilePacket();
+            filePacket.type = FilePacket.FILE_STREAM_REQ;
+            filePacket.id = partID;
+            filePacket.dictionary = Dictionaries.of(hash);
+            filePacket.encoding = FilePacket.ENCODING_FRONT_CODED;
+            filePacket.stream = ++streamId;
+            filePacket.frame = nextFrame;
+            filePacket.credit = STREAM_WINDOW;
+            filePacket.hash = hash;
+            if (Log.DEBUG) System.out.println("To fileserver " + endpoint + " " + partID + " from frame " + nextFrame);
+            long start = System.nanoTime();
+            replica.send(SerializationUtils.serialize(filePacket));
+
+            while (true){
+                List<byte[]> reply = replica.recv();
+                if (reply == null){
+                    System.out.println("Fileserver " + endpoint + " timed out, failing over");
                     break;
+                }
+                FilePacket frame = (FilePacket) SerializationUtils.deserialize(Transport.body(reply));
+                // frames of a stream we gave up on
+                if (frame.stream != filePacket.stream)
+                    continue;
+                if (frame.type == FilePacket.FILE_ERROR)
+                    throw new IOException("Fileserver has no partition " + partID);
+                if (frame.frame == filePacket.frame){
+                    fetchLatency.recordSince(start);
+                    if (Trace.ENABLED) Trace.span("worker.fetch", hash, start);
+                }
 
-                String currData = new String(zooKeeper.getData(Joiner.on("/").join(ZK_JOBS, hash), false, null));
-                int currVersion = zooKeeper.exists(Joiner.on("/").join(ZK_JOBS, hash), false).getVersion();
-                System.out.println("Version curr" + currVersion);
+                long hashStart = System.nanoTime();
+                String result = findHash(hash, frame.partition);
+                if (Trace.ENABLED) Trace.span("worker.hash", hash, hashStart);
+                nextFrame = frame.frame + 1;
+                if (result != null || nextFrame >= frame.frames){
+                    if (result != null){
+                        filePacket.type = FilePacket.FILE_BYE;
+                        replica.offer(SerializationUtils.serialize(filePacket));
+                    }
+                    return result;
+                }
+                // cancelled, or found by another worker
+                if (!liveJobs.contains(hash)){
+                    filePacket.type = FilePacket.FILE_BYE;
+                    replica.offer(SerializationUtils.serialize(filePacket));
+                    throw new CancellationException(hash + " is gone from " + ZK_JOBS);
+                }
+                if (store != null)
+                    store.frame(hash, layout, partID, nextFrame);
+                filePacket.type = FilePacket.FILE_CREDIT;
+                filePacket.credit = 1;
+                replica.offer(SerializationUtils.serialize(filePacket));
+            }
+        }
+        throw new IOException("No fileserver replica could serve partition " + partID);
+    }
 
-                // de-serialize
-                WorkerInfo workerInfo = gson.fromJson(currData, WorkerInfo.class);
-                HashMap<String, List<Integer>> newMap = workerInfo.getWorkerInfo();
+    // found the password, committed in the background
+    private void setResult (String hash , String result){
+        PendingResult pending = new PendingResult();
+        pending.hash = hash;
+        pending.result = result;
+        pending.queued = System.nanoTime();
+        resultQueue.add(pending);
+    }
 
-                // if the original list is updated then do not do any thing
-                if(!newMap.get(myID).equals(partIdList))
-                   break;
-                // delete myself
-                newMap.remove(myID);
+    // not found on this worker, committed in the background
+    private void resultNotFound (String hash, List<Integer> partIdList) {
+        PendingResult pending = new PendingResult();
+        pending.hash = hash;
+        pending.partIdList = new ArrayList<Integer>(partIdList);
+        pending.queued = System.nanoTime();
+        resultQueue.add(pending);
+    }
+
+    private void commitResult (String hash, String result) throws KeeperException, InterruptedException {
+        byte[] res = null;
+        if (result != null)
+            res = result.getBytes();
+
+        // Create znode in /result/<shard> with results and delete it from /jobs, in one transaction
+        long start = System.nanoTime();
+        boolean created = Results.commit(zooKeeper, hash, res, Joiner.on("/").join(ZK_JOBS, hash), -1);
+        zkLatency.recordSince(start);
+        if (Log.DEBUG && !created) System.out.println("Result of " + hash + " was already there");
+    }
 
+    /* Remove myself from the job. The last worker to do so commits the empty result, deleting
+       the job at the version it read so a concurrent update from another worker is not lost */
+    private void commitNotFound (String hash, List<Integer> partIdList) throws KeeperException, InterruptedException {
+        String job = Joiner.on("/").join(ZK_JOBS, hash);
+        while (true){
+            Stat stat = new Stat();
+            String currData;
+            try {
+                long start = System.nanoTime();
+                currData = new String(zooKeeper.getData(job, false, stat));
+                zkLatency.recordSince(start);
+            } catch (KeeperException.NoNodeException e){
+                // no such job therefore exit
+                break;
+            }
+            int currVersion = stat.getVersion();
+            if (Log.DEBUG) System.out.println("Version curr" + currVersion);
+
+            // de-serialize
+            WorkerInfo workerInfo = gson.fromJson(currData, WorkerInfo.class);
+            HashMap<String, List<Integer>> newMap = workerInfo.getWorkerInfo();
+
+            // if the original list is updated (or I already removed myself) then do not do any thing
+            List<Integer> assigned = newMap.get(myID);
+            if (assigned == null || !assigned.equals(partIdList))
+               break;
+            // delete myself
+            newMap.remove(myID);
+
+            try {
+                long start = System.nanoTime();
                 if (newMap.isEmpty()){
-                    // set result with data as null and break
-                    setResult(hash, null);
-                    break;
+                    // set result with data as null and delete the job, unless someone changed it since
+                    Results.commit(zooKeeper, hash, null, job, currVersion);
                 }
                 else {
                     // update the work assigned to the current worker
                     WorkerInfo newWorkerInfo = new WorkerInfo(newMap, hash);
+                    newWorkerInfo.setDeadline(workerInfo.getDeadline());
 
                     // serialize
                     String newData = gson.toJson(newWorkerInfo);
 
                     // setdata on the znode /jobs/<hash>
+                    zooKeeper.setData(job, newData.getBytes(), currVersion);
+                    System.out.println("Update data removed " + myID);
+                }
+                zkLatency.recordSince(start);
+                break;
+            } catch (KeeperException.BadVersionException e){
+                // changed under me, read it again
+            } catch (KeeperException.NoNodeException e){
+                // finished by someone else
+                break;
+            }
+        }
+    }
 
+    // commit queued results one at a time, in the order they were found
+    public Runnable resultCommitter(){
+        return new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    PendingResult pending;
                     try {
-                        if ( zooKeeper.setData(Joiner.on("/").join(ZK_JOBS, hash), newData.getBytes() , currVersion) != null) {
-                            System.out.println("Update data removed " + myID);
-                            break;
-                        }
-                    } catch (KeeperException e){
-                        // Ignore
+                        pending = resultQueue.take();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    try {
+                        if (pending.partIdList == null)
+                            commitResult(pending.hash, pending.result);
+                        else
+                            commitNotFound(pending.hash, pending.partIdList);
+                        if (Trace.ENABLED) Trace.span("worker.result", pending.hash, pending.queued);
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (Exception e) {
+                        // the job stays on /jobs, periodCheck or the tracker will bring it back
+                        e.printStackTrace();
                     }
                 }
             }
-        } catch ( Exception e){
-            throw Throwables.propagate(e);
-        }
+        };
     }
 
     // connect with fileserver and get dict partition to work on
@@ -273,6 +512,8 @@ public class Worker {
 
                         // Update current jobs
                         currJobs.remove(hash);
+                        Long seen = jobSeen.remove(hash);
+                        if (Trace.ENABLED && seen != null) Trace.span("worker.queue", hash, seen);
 
                         List<Integer> partIdList = workerInfo.getWorkerInfo().get(myID);
 
@@ -280,52 +521,90 @@ public class Worker {
                         if (partIdList == null)
                             continue;
 
+                        // hashed it before, from any dictionary, no need to look at any partition
+                        String cached = cacheJobs.get(Dictionaries.hash(hash));
+                        if (cached != null){
+                            setResult(hash, cached);
+                            continue;
+                        }
+
+                        // partition ids only mean the same words under the layout they were hashed in
+                        DictionaryManifest manifest = Dictionaries.manifest(zooKeeper, hash);
+                        String layout = manifest == null ? null : manifest.getLayout();
+                        String progress = WorkerStore.progressKey(hash, layout);
+                        dropStaleProgress(hash, progress);
+
                         List<Integer> alreadySeen = new ArrayList<Integer>();
 
-                        if ( cachePartId.containsKey(hash))
-                            alreadySeen = cachePartId.get(hash);
+                        if ( cachePartId.containsKey(progress))
+                            alreadySeen = cachePartId.get(progress);
                         else
-                            cachePartId.put(hash, alreadySeen);
+                            cachePartId.put(progress, alreadySeen);
 
                         // get dict partition from fileserver
                         String result = null;
+                        boolean failed = false;
 
                         for ( Integer partID : partIdList ){
 
+                            // cancelled or found by another worker, don't search the rest
+                            if (!liveJobs.contains(hash))
+                                break;
+
                             if ( alreadySeen.contains(partID))
                                 continue;
                             else
                                 alreadySeen.add(partID);
-                                cachePartId.put(hash, alreadySeen);
+                                cachePartId.put(progress, alreadySeen);
+
+                            // every word of it is in the digest cache, and the hash wasn't
+                            if (isPartitionCached(manifest, hash, partID)){
+                                partitionsSkipped.incrementAndGet();
+                                recordProgress(hash, partID);
+                                if (store != null)
+                                    store.partition(hash, layout, partID);
+                                continue;
+                            }
 
                             //Thread.sleep(5000);
-                            // send packet to tracker
-                            FilePacket filePacket = new FilePacket();
-                            filePacket.type = FilePacket.FILE_REQ;
-                            filePacket.id = partID;
-                            System.out.println("To fileserver " + filePacket.id);
-                            socket.send(SerializationUtils.serialize(filePacket),0);
-
-                            // reply from fileserver
-                            FilePacket packetFromServer = (FilePacket) SerializationUtils.deserialize(socket.recv(0));
-                            System.out.println("Packet from tracker ");
-                            if (packetFromServer.type == FilePacket.FILE_ERROR){
-                                System.out.println("Fileserver ERROR!");
+                            // stream the partition from the fileserver, hashing it as it arrives
+                            long partStart = System.nanoTime();
+                            String frameKey = WorkerStore.frameKey(progress, partID);
+                            Integer fromFrame = cacheFrames.remove(frameKey);
+                            try {
+                                result = searchPartition(hash, layout, partID, fromFrame == null ? 0 : fromFrame);
+                            } catch (IOException e){
+                                System.out.println("Fileserver ERROR! " + e.getMessage());
+                                // not searched, it and the ones after it are tried again later
+                                alreadySeen.remove(partID);
+                                if (fromFrame != null)
+                                    cacheFrames.put(frameKey, fromFrame);
+                                currJobs.put(hash, data);
+                                retryJobs.put(hash, data);
+                                failed = true;
+                                break;
+                            } catch (CancellationException e){
+                                // not searched to the end, so not seen if the hash is ever submitted again
+                                alreadySeen.remove(partID);
+                                if (Log.DEBUG) System.out.println("Dropped " + e.getMessage());
                                 break;
                             }
-                            List<String> dataList = packetFromServer.result;
-                            // perform md5 hash and return result
-                            result = findHash(hash, dataList);
-                            System.out.println("Result " + result);
+                            if (Log.DEBUG) System.out.println("Result " + result);
+                            if (Trace.ENABLED) Trace.span("worker.partition", hash, partStart);
+                            recordProgress(hash, partID);
+                            if (store != null)
+                                store.partition(hash, layout, partID);
+                            if (result == null)
+                                partitionCached(manifest, hash, partID);
                             if ( result != null) {
                                 setResult(hash, result);
                                 break;
                             }
                         }
 
-                        // call this method if passwd not found on this worker
-                        if (result == null){
-                            resultNotFound(hash , cachePartId.get(hash));
+                        // call this method if passwd not found on this worker, and the job is still there
+                        if (result == null && !failed && liveJobs.contains(hash)){
+                            resultNotFound(hash , cachePartId.get(progress));
                         }
 
                     }
@@ -345,6 +624,15 @@ public class Worker {
                 try {
                     while(true) {
                         Thread.sleep(10000);
+
+                        for (Map.Entry<String, String> retry : retryJobs.entrySet()){
+                            retryJobs.remove(retry.getKey());
+                            if (liveJobs.contains(retry.getKey()))
+                                jobQueue.add(retry.getValue());
+                            else
+                                currJobs.remove(retry.getKey());
+                        }
+
                         if (currJobs.isEmpty() )
                             continue;
 
@@ -383,26 +671,294 @@ public class Worker {
         };
     }
 
-    public String findHash(String hash, List<String> dataList){
+    // periodically re-publish my capacity, measured from real work when there was some
+    public Runnable capacityRefresh(){
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while(true) {
+                        Thread.sleep(CAPACITY_REFRESH);
+                        double hashRate;
+                        synchronized (Worker.class) {
+                            hashRate = hashNanos > 0 ? hashCount * 1e9 / hashNanos : 0;
+                            hashCount = 0;
+                            hashNanos = 0;
+                        }
+                        if (hashRate == 0)
+                            hashRate = benchmark();
 
-        for ( String word : dataList){
-            String hashCal = null;
+                        advertise(hashRate, cachedPartitions());
+                        System.out.println("Capacity refreshed " + hashRate + " hashes/s");
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    System.exit(1);
+                }
+            }
+        };
+    }
+
+    // tell the tracker about partitions newly in my digest cache, so it sends me jobs on them
+    public Runnable cacheAdvertiser(){
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while(true) {
+                        Thread.sleep(CACHE_ADVERTISE);
+                        Map<String, BitSet> cached = cachedPartitions();
+                        if (!cached.equals(advertisedPartitions)){
+                            advertise(advertisedRate, cached);
+                            if (Log.DEBUG) System.out.println("Advertised cached partitions " + cached);
+                        }
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    System.exit(1);
+                }
+            }
+        };
+    }
+
+    private static void advertise(double hashRate, Map<String, BitSet> cached) throws KeeperException, InterruptedException {
+        synchronized (advertiseLock) {
+            WorkerCapacity capacity = new WorkerCapacity(hashRate, cached);
+            zooKeeper.setData(Joiner.on("/").join(ZK_WORKER, myID), gson.toJson(capacity).getBytes(), -1);
+            advertisedRate = hashRate;
+            advertisedPartitions = cached;
+        }
+    }
+
+    private static Map<String, BitSet> cachedPartitions(){
+        synchronized (cachedPartitions) {
+            Map<String, BitSet> copy = new HashMap<String, BitSet>();
+            for (Map.Entry<String, BitSet> entry : cachedPartitions.entrySet())
+                copy.put(entry.getKey(), (BitSet) entry.getValue().clone());
+            return copy;
+        }
+    }
 
+    // manifest is the job's dictionary as the job started, null if it had none
+    private static boolean isPartitionCached(DictionaryManifest manifest, String hash, int partID){
+        if (manifest == null)
+            return false;
+        String scope = Dictionaries.scope(manifest.getName(), HashAlgorithm.of(hash), manifest.getLayout());
+        synchronized (cachedPartitions) {
+            BitSet cached = cachedPartitions.get(scope);
+            return cached != null && cached.get(partID);
+        }
+    }
+
+    /* every word of partID of the job's dictionary has been hashed into cacheJobs with its algorithm.
+       Partitions cached under an older layout of the dictionary are dropped */
+    private static void partitionCached(DictionaryManifest manifest, String hash, int partID){
+        // a dictionary from before the catalog, don't know what the partition was
+        if (manifest == null)
+            return;
+        String scope = Dictionaries.scope(manifest.getName(), HashAlgorithm.of(hash), manifest.getLayout());
+        String prefix = Dictionaries.scopePrefix(manifest.getName(), HashAlgorithm.of(hash));
+        synchronized (cachedPartitions) {
+            Iterator<String> it = cachedPartitions.keySet().iterator();
+            while (it.hasNext()){
+                String other = it.next();
+                if (other.startsWith(prefix) && !other.equals(scope))
+                    it.remove();
+            }
+            BitSet cached = cachedPartitions.get(scope);
+            if (cached == null){
+                cached = new BitSet();
+                cachedPartitions.put(scope, cached);
+            }
+            if (cached.get(partID))
+                return;
+            cached.set(partID);
+        }
+        if (store != null){
             try {
-                MessageDigest md5 = MessageDigest.getInstance("MD5");
-                BigInteger hashint = new BigInteger(1, md5.digest(word.getBytes()));
-                hashCal = hashint.toString(16);
-                while (hashCal.length() < 32) hashCal = "0" + hashCal;
-            } catch (NoSuchAlgorithmException e) {
+                store.cached(manifest.getName(), HashAlgorithm.of(hash), manifest.getLayout(), partID);
+            } catch (IOException e){
                 e.printStackTrace();
             }
+        }
+    }
+
+    // forget partitions finished and frames hashed for hash under any layout other than progress's
+    private static void dropStaleProgress(String hash, String progress){
+        String prefix = WorkerStore.progressKey(hash, "");
+        Iterator<String> it = cachePartId.keySet().iterator();
+        while (it.hasNext()){
+            String other = it.next();
+            if (other.startsWith(prefix) && !other.equals(progress))
+                it.remove();
+        }
+        it = cacheFrames.keySet().iterator();
+        while (it.hasNext()){
+            String other = it.next();
+            if (other.startsWith(prefix) && !other.startsWith(progress + "/"))
+                it.remove();
+        }
+    }
+
+    // hash synthetic words for a short while and return the measured hashes per second
+    static double benchmark(){
+        long count = 0;
+        long start = System.nanoTime();
+        long end = start + BENCH_MILLIS * 1000000L;
+        long now = start;
+        while (now < end) {
+            for (int i = 0; i < 1000; i++)
+                md5Hex("bench" + count++);
+            now = System.nanoTime();
+        }
+        return count * 1e9 / (now - start);
+    }
+
+    static String md5Hex(String word){
+        return HashAlgorithm.MD5.key(word);
+    }
+
+    public static String findHash(String hash, List<String> dataList){
+        long start = System.nanoTime();
+        int count = 0;
+        String found = null;
+        HashAlgorithm algorithm = HashAlgorithm.of(hash);
+        HashAlgorithm.Kernel kernel = algorithm.kernel();
+        byte[] target = algorithm.decode(hash);
+        byte[] digest = new byte[algorithm.getDigestLength()];
+
+        for ( String word : dataList){
+            byte[] bytes = word.getBytes(Charsets.UTF_8);
+            kernel.digest(bytes, 0, bytes.length, digest);
+            count++;
+            // add hashes onto the cache
+            if (cacheJobs.put(algorithm.key(digest), word) == null && store != null)
+                persistDigest(algorithm, digest, bytes, bytes.length);
+            if (Arrays.equals(target, digest)){
+                found = word;
+                break;
+            }
+        }
+        countHashes(count, start);
+        return found;
+    }
+
+    // hash a front-coded partition word by word as it is decoded, comparing raw digests
+    public static String findHash(String hash, FrontCodedPartition partition){
+        long start = System.nanoTime();
+        int count = 0;
+        String found = null;
+        HashAlgorithm algorithm = HashAlgorithm.of(hash);
+        HashAlgorithm.Kernel kernel = algorithm.kernel();
+        byte[] target = algorithm.decode(hash);
+        byte[] digest = new byte[algorithm.getDigestLength()];
+
+        FrontCodedPartition.Decoder decoder = partition.decoder();
+        while (decoder.next()){
+            kernel.digest(decoder.word(), 0, decoder.length(), digest);
+            count++;
+            String word = decoder.wordString();
             // add hashes onto the cache
-            cacheJobs.put(hashCal, word);
-            if ( hash.equals(hashCal)){
-                return word;
+            if (cacheJobs.put(algorithm.key(digest), word) == null && store != null)
+                persistDigest(algorithm, digest, decoder.word(), decoder.length());
+            if (Arrays.equals(target, digest)){
+                found = word;
+                break;
             }
         }
-        return null;
+        countHashes(count, start);
+        return found;
+    }
+
+    private static void persistDigest(HashAlgorithm algorithm, byte[] digest, byte[] word, int len){
+        try {
+            store.digest(algorithm, digest, word, len);
+        } catch (IOException e){
+            // the in-memory cache still has it, only a restart would miss it
+            e.printStackTrace();
+        }
+    }
+
+    private static void countHashes(int count, long start){
+        synchronized (Worker.class) {
+            hashCount += count;
+            hashNanos += System.nanoTime() - start;
+            progressHashes += count;
+        }
+        hashesDone.addAndGet(count);
+    }
+
+    private static void recordProgress(String hash, int partID){
+        synchronized (Worker.class) {
+            ArrayList<Integer> parts = progressDone.get(hash);
+            if (parts == null){
+                parts = new ArrayList<Integer>();
+                progressDone.put(hash, parts);
+            }
+            parts.add(partID);
+        }
+    }
+
+    /* Push batched progress to the tracker over a side channel (tracker port + PROGRESS_PORT_OFFSET).
+       Reports are best effort: they are dropped rather than block if the tracker is unreachable */
+    public Runnable progressReporter(){
+        return new Runnable() {
+            @Override
+            public void run() {
+                Transport.Socket pusher = null;
+                String connectedTo = null;
+                long lastReport = System.nanoTime();
+                try {
+                    while(true) {
+                        Thread.sleep(PROGRESS_INTERVAL);
+                        HashMap<String, ArrayList<Integer>> done;
+                        long hashes;
+                        synchronized (Worker.class) {
+                            done = progressDone;
+                            progressDone = new HashMap<String, ArrayList<Integer>>();
+                            hashes = progressHashes;
+                            progressHashes = 0;
+                        }
+                        long now = System.nanoTime();
+                        double hashRate = hashes * 1e9 / (now - lastReport);
+                        lastReport = now;
+                        recentHashRate = hashRate;
+
+                        if (trackerId == null && zooKeeper.exists(ZK_TRACKER, false) != null)
+                            trackerId = new String(zooKeeper.getData(ZK_TRACKER, zkWatcher, null));
+                        if (trackerId == null)
+                            continue;
+                        if (!trackerId.equals(connectedTo)){
+                            if (pusher != null)
+                                pusher.close();
+                            connectedTo = trackerId;
+                            String[] hostPort = connectedTo.split(":");
+                            pusher = transport.socket(Transport.PUSH);
+                            pusher.setHWM(PROGRESS_INTERVAL);
+                            pusher.connect(hostPort[0] + ":" + (Integer.parseInt(hostPort[1]) + JobTracker.PROGRESS_PORT_OFFSET));
+                        }
+
+                        // the rate goes out every interval, or it expires on the tracker during a long partition
+                        if (done.isEmpty()){
+                            ProgressPacket progressPacket = new ProgressPacket();
+                            progressPacket.workerId = myID;
+                            progressPacket.hashRate = hashRate;
+                            pusher.offer(SerializationUtils.serialize(progressPacket));
+                        }
+                        for (Map.Entry<String, ArrayList<Integer>> entry : done.entrySet()){
+                            ProgressPacket progressPacket = new ProgressPacket();
+                            progressPacket.workerId = myID;
+                            progressPacket.hash = entry.getKey();
+                            progressPacket.partsDone = entry.getValue();
+                            progressPacket.hashRate = hashRate;
+                            pusher.offer(SerializationUtils.serialize(progressPacket));
+                        }
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
     }
 
     public static void main (String[] args){
@@ -424,9 +980,63 @@ public class Worker {
             System.exit(-1);
         }
 
+        // reload the digest cache and job progress of my previous runs before joining
+        File storeDir = new File(System.getProperty("dict.worker.dir", "worker-state"));
+        storeDir.mkdirs();
+        store = new WorkerStore(new File(storeDir, myID + ".log"));
+        try {
+            long start = System.nanoTime();
+            int records = store.load(cacheJobs, cachePartId, cacheFrames, cachedPartitions);
+            System.out.println("Restored " + records + " records (" + cacheJobs.size() + " digests, "
+                    + cachedPartitions + " partitions) in "
+                    + (System.nanoTime() - start) / 1000000 + " ms");
+        } catch (IOException e){
+            e.printStackTrace();
+            store = null;
+        }
+        // flush the store and close the session on the way out so my partitions are reassigned right away
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    if (store != null)
+                        store.close();
+                    if (zooKeeper != null)
+                        zooKeeper.close();
+                } catch (Exception e) {
+                    // Ignore
+                }
+            }
+        });
+
         Worker worker = new Worker();
+
+        Metrics.gauge("worker.queue.depth", new Metrics.Gauge() {
+            @Override
+            public double value() {
+                return jobQueue.size();
+            }
+        });
+        Metrics.gauge("worker.commit.queue", new Metrics.Gauge() {
+            @Override
+            public double value() {
+                return resultQueue.size();
+            }
+        });
+        Metrics.gauge("worker.hash_rate", new Metrics.Gauge() {
+            @Override
+            public double value() {
+                return recentHashRate;
+            }
+        });
+        Metrics.start("worker-" + myID);
+        Trace.start("worker-" + myID);
         new Thread(worker.workerProcessor()).start();
+        new Thread(worker.resultCommitter()).start();
         new Thread(worker.periodCheck()).start();
+        new Thread(worker.capacityRefresh()).start();
+        new Thread(worker.cacheAdvertiser()).start();
+        new Thread(worker.progressReporter()).start();
         try{
             nodeDelSignal.await();
         } catch ( Exception e){
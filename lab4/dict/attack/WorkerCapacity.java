@@ -0,0 +1,48 @@
+package dict.attack;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Capacity advertised by a worker in the data of its /worker/&lt;id&gt; znode.
+ * Serialized with Gson; the tracker uses hashRate to weight partition assignment (a worker hashes
+ * on one thread, so its core count doesn't come into it and isn't advertised), and
+ * cachedPartitions (by Dictionaries.scope, the bitset of partition ids already in the worker's
+ * digest cache, as longs) to hand each worker the partitions it can answer without a fetch.
+ */
+public class WorkerCapacity {
+
+    // weight of every worker when none advertises a capacity (e.g. legacy "primary" data)
+    static final double DEFAULT_HASH_RATE = 1.0;
+
+    private double hashRate = DEFAULT_HASH_RATE;
+    private long updated = 0;
+    private Map<String, long[]> cachedPartitions = null;
+
+    WorkerCapacity(double hashRate) {
+        this.hashRate = hashRate;
+        this.updated = System.currentTimeMillis();
+    }
+
+    WorkerCapacity(double hashRate, Map<String, BitSet> partitions) {
+        this(hashRate);
+        this.cachedPartitions = new HashMap<String, long[]>();
+        for (Map.Entry<String, BitSet> entry : partitions.entrySet())
+            this.cachedPartitions.put(entry.getKey(), entry.getValue().toLongArray());
+    }
+
+    double getHashRate() {
+        return hashRate;
+    }
+
+    long getUpdated() {
+        return updated;
+    }
+
+    // empty for workers that don't advertise their cache of scope, and for no scope
+    BitSet getPartitions(String scope) {
+        long[] partitions = cachedPartitions == null || scope == null ? null : cachedPartitions.get(scope);
+        return partitions == null ? new BitSet() : BitSet.valueOf(partitions);
+    }
+
+}
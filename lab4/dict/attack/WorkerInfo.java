@@ -13,6 +13,8 @@ public class WorkerInfo {
 
     private HashMap<String, List<Integer>> workerInfo = new HashMap<String, List<Integer>>();
     private String hash  = null;
+    // wall clock millis after which the tracker cancels the job, 0 for none
+    private long deadline = 0;
 
     WorkerInfo(HashMap<String, List<Integer>> workerInfo, String hash) {
         this.workerInfo = workerInfo;
@@ -27,4 +29,12 @@ public class WorkerInfo {
         return hash;
     }
 
+    long getDeadline() {
+        return deadline;
+    }
+
+    void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
 }
@@ -0,0 +1,279 @@
+package dict.attack;
+import com.google.common.base.Charsets;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A worker's digest cache and job progress kept in an append-only log on local disk, so a
+ * restarted worker picks up what it had already hashed instead of starting over. Records:
+ *
+ *   'D' digest(16 bytes) length word     a dictionary word and its md5
+ *   'G' algorithm digest length word     a dictionary word and its digest in another algorithm
+ *   'R' hash layout partition frame      frames of a partition hashed so far for a job
+ *   'Q' hash layout partition            a partition finished for a job
+ *   'L' dictionary algorithm layout partition
+ *                                        every word of a partition is in the digest cache for an algorithm
+ *   'F' hash partition frame             'R' before dictionaries had a layout
+ *   'P' hash partition                   'Q' before then
+ *   'K' dictionary algorithm partition   'L' before then
+ *   'C' partition                        'K' for md5 on the default dictionary of the time
+ *   'B' algorithm partition              'K' for another algorithm on it
+ *
+ * The layout is that of the job's dictionary when the record was written (see DictionaryManifest);
+ * progress and cached partitions are replayed under it, so none of it matches once the dictionary
+ * is partitioned differently. The older records are no longer written and skipped on replay, as
+ * which layout (or dictionary) they meant is not known.
+ *
+ * Lengths, partitions, frames and algorithm ids are varints, words, job hashes, layouts and dictionaries UTF-8, and
+ * digests as long as their algorithm's. The log is read
+ * back through a memory map on startup; a record torn by the worker dying mid-write is cut off. A
+ * record type or algorithm this version doesn't know ends the replay there but is kept, along with
+ * everything after it, for the newer version that wrote it.
+ */
+public class WorkerStore {
+
+    private static final byte DIGEST = 'D';
+    private static final byte FRAME = 'F';
+    private static final byte PARTITION = 'P';
+    private static final byte CACHED = 'C';
+    private static final byte ALGORITHM_DIGEST = 'G';
+    private static final byte ALGORITHM_CACHED = 'B';
+    private static final byte DICTIONARY_CACHED = 'K';
+    private static final byte LAYOUT_FRAME = 'R';
+    private static final byte LAYOUT_PARTITION = 'Q';
+    private static final byte LAYOUT_CACHED = 'L';
+    private static final int DIGEST_BYTES = 16;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final File file;
+    private OutputStream out = null;
+
+    WorkerStore(File file) {
+        this.file = file;
+    }
+
+    /* Replay the log into the worker's caches: digests by job key, finished partitions by progressKey
+       and hashed frames by frameKey, and by Dictionaries.scope the partitions fully in the digest cache.
+       Returns the number of records read */
+    synchronized int load(Map<String, String> digests, Map<String, List<Integer>> partitions,
+                          Map<String, Integer> frames, Map<String, BitSet> cached) throws IOException {
+        int records = 0;
+        if (file.exists()) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                FileChannel channel = raf.getChannel();
+                MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                int good = 0;
+                // stopped at a record of a newer version, which isn't torn and must be kept
+                boolean newer = false;
+                try {
+                    while (buf.hasRemaining()) {
+                        byte type = buf.get();
+                        if (type == DIGEST) {
+                            byte[] digest = new byte[DIGEST_BYTES];
+                            buf.get(digest);
+                            digests.put(HashAlgorithm.MD5.key(digest), readString(buf));
+                        } else if (type == ALGORITHM_DIGEST) {
+                            HashAlgorithm algorithm = readAlgorithm(buf);
+                            if (algorithm == null) {
+                                newer = true;
+                                break;
+                            }
+                            byte[] digest = new byte[algorithm.getDigestLength()];
+                            buf.get(digest);
+                            digests.put(algorithm.key(digest), readString(buf));
+                        } else if (type == LAYOUT_FRAME) {
+                            String progress = progressKey(readString(buf), readString(buf));
+                            int partID = readVarInt(buf);
+                            frames.put(frameKey(progress, partID), readVarInt(buf));
+                        } else if (type == LAYOUT_PARTITION) {
+                            String progress = progressKey(readString(buf), readString(buf));
+                            int partID = readVarInt(buf);
+                            List<Integer> done = partitions.get(progress);
+                            if (done == null) {
+                                done = new ArrayList<Integer>();
+                                partitions.put(progress, done);
+                            }
+                            if (!done.contains(partID))
+                                done.add(partID);
+                            frames.remove(frameKey(progress, partID));
+                        } else if (type == LAYOUT_CACHED) {
+                            String dictionary = readString(buf);
+                            HashAlgorithm algorithm = readAlgorithm(buf);
+                            if (algorithm == null) {
+                                newer = true;
+                                break;
+                            }
+                            cachedSet(cached, Dictionaries.scope(dictionary, algorithm, readString(buf))).set(readVarInt(buf));
+                        } else if (type == FRAME) {
+                            readString(buf);
+                            readVarInt(buf);
+                            readVarInt(buf);
+                        } else if (type == PARTITION) {
+                            readString(buf);
+                            readVarInt(buf);
+                        } else if (type == CACHED) {
+                            readVarInt(buf);
+                        } else if (type == ALGORITHM_CACHED) {
+                            if (readAlgorithm(buf) == null) {
+                                newer = true;
+                                break;
+                            }
+                            readVarInt(buf);
+                        } else if (type == DICTIONARY_CACHED) {
+                            readString(buf);
+                            if (readAlgorithm(buf) == null) {
+                                newer = true;
+                                break;
+                            }
+                            readVarInt(buf);
+                        } else {
+                            newer = true;
+                            break;
+                        }
+                        good = buf.position();
+                        records++;
+                    }
+                } catch (BufferUnderflowException e) {
+                    // torn record at the end
+                }
+                if (newer) {
+                    System.out.println("Stopped replaying " + file + " at a record of a newer version, "
+                            + (channel.size() - good) + " bytes left as they are");
+                } else if (good < channel.size()) {
+                    System.out.println("Dropping " + (channel.size() - good) + " torn bytes from " + file);
+                    channel.truncate(good);
+                }
+            } finally {
+                raf.close();
+            }
+        }
+        out = new BufferedOutputStream(new FileOutputStream(file, true), BUFFER_SIZE);
+        return records;
+    }
+
+    // a newly hashed word and its raw digest; md5 keeps the shorter record it always had
+    synchronized void digest(HashAlgorithm algorithm, byte[] digest, byte[] word, int len) throws IOException {
+        // closed on shutdown
+        if (out == null)
+            return;
+        if (algorithm == HashAlgorithm.MD5) {
+            out.write(DIGEST);
+        } else {
+            out.write(ALGORITHM_DIGEST);
+            writeVarInt(algorithm.getId());
+        }
+        out.write(digest, 0, algorithm.getDigestLength());
+        writeVarInt(len);
+        out.write(word, 0, len);
+    }
+
+    // frames [0, frame) of partID in layout are hashed for hash, flushed so a restart resumes after them
+    synchronized void frame(String hash, String layout, int partID, int frame) throws IOException {
+        // closed on shutdown
+        if (out == null)
+            return;
+        out.write(LAYOUT_FRAME);
+        writeString(hash);
+        writeString(layout == null ? "" : layout);
+        writeVarInt(partID);
+        writeVarInt(frame);
+        out.flush();
+    }
+
+    synchronized void partition(String hash, String layout, int partID) throws IOException {
+        // closed on shutdown
+        if (out == null)
+            return;
+        out.write(LAYOUT_PARTITION);
+        writeString(hash);
+        writeString(layout == null ? "" : layout);
+        writeVarInt(partID);
+        out.flush();
+    }
+
+    // all of partID of dictionary in layout is hashed, flushed along with the digests written before it
+    synchronized void cached(String dictionary, HashAlgorithm algorithm, String layout, int partID) throws IOException {
+        // closed on shutdown
+        if (out == null)
+            return;
+        out.write(LAYOUT_CACHED);
+        writeString(dictionary);
+        writeVarInt(algorithm.getId());
+        writeString(layout == null ? "" : layout);
+        writeVarInt(partID);
+        out.flush();
+    }
+
+    synchronized void close() throws IOException {
+        if (out != null)
+            out.close();
+        out = null;
+    }
+
+    // a job's progress on its dictionary as partitioned in layout
+    static String progressKey(String hash, String layout) {
+        return hash + "#" + (layout == null ? "" : layout);
+    }
+
+    static String frameKey(String progress, int partID) {
+        return progress + "/" + partID;
+    }
+
+    private static BitSet cachedSet(Map<String, BitSet> cached, String scope) {
+        BitSet set = cached.get(scope);
+        if (set == null) {
+            set = new BitSet();
+            cached.put(scope, set);
+        }
+        return set;
+    }
+
+    private void writeString(String s) throws IOException {
+        byte[] bytes = s.getBytes(Charsets.UTF_8);
+        writeVarInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private void writeVarInt(int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static String readString(MappedByteBuffer buf) {
+        int len = readVarInt(buf);
+        if (len < 0 || len > buf.remaining())
+            throw new BufferUnderflowException();
+        byte[] bytes = new byte[len];
+        buf.get(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+    // null for an id this version doesn't know, which ends the replay there
+    private static HashAlgorithm readAlgorithm(MappedByteBuffer buf) {
+        return HashAlgorithm.forId(readVarInt(buf));
+    }
+
+    private static int readVarInt(MappedByteBuffer buf) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buf.get();
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+}
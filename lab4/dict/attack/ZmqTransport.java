@@ -0,0 +1,171 @@
+package dict.attack;
+import org.zeromq.ZMQ;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Transport on ZeroMQ sockets, one context per transport. A ROUTER owns a PULL socket on an
+ * inproc address next to it: sends from any thread other than the one receiving are pushed
+ * there and passed on to the ROUTER by the receiving thread, which waits on both.
+ */
+public class ZmqTransport extends Transport {
+
+    private static final AtomicInteger routers = new AtomicInteger();
+
+    private final ZMQ.Context context = ZMQ.context(1);
+
+    @Override
+    public Socket socket(int type) {
+        return new ZmqSocket(type);
+    }
+
+    @Override
+    public void close() {
+        context.term();
+    }
+
+    private static int zmqType(int type) {
+        switch (type) {
+            case REQ: return ZMQ.REQ;
+            case ROUTER: return ZMQ.ROUTER;
+            case DEALER: return ZMQ.DEALER;
+            case PUB: return ZMQ.PUB;
+            case SUB: return ZMQ.SUB;
+            case PUSH: return ZMQ.PUSH;
+            case PULL: return ZMQ.PULL;
+            default: throw new IllegalArgumentException("Unknown socket type " + type);
+        }
+    }
+
+    // send a multipart message, stopping at the first part that can't be sent
+    private static boolean send(ZMQ.Socket socket, List<byte[]> message, int flags) {
+        for (int i = 0; i < message.size() - 1; i++) {
+            if (!socket.send(message.get(i), flags | ZMQ.SNDMORE))
+                return false;
+        }
+        return socket.send(message.get(message.size() - 1), flags);
+    }
+
+    // a whole multipart message, null on timeout
+    private static List<byte[]> recv(ZMQ.Socket socket) {
+        byte[] part = socket.recv(0);
+        if (part == null)
+            return null;
+        List<byte[]> message = new ArrayList<byte[]>(2);
+        message.add(part);
+        while (socket.hasReceiveMore())
+            message.add(socket.recv(0));
+        return message;
+    }
+
+    private class ZmqSocket extends Socket {
+
+        private final ZMQ.Socket socket;
+        private int timeout = -1;
+
+        // ROUTER only
+        private ZMQ.Socket replies;
+        private String replyAddress;
+        private ZMQ.Poller poller;
+        private volatile Thread receiver;
+        private ThreadLocal<ZMQ.Socket> replySocket;
+
+        ZmqSocket(int type) {
+            socket = context.socket(zmqType(type));
+            socket.setLinger(0);
+            if (type == ROUTER) {
+                // bound before any sending thread connects to it
+                replyAddress = "inproc://router-" + routers.incrementAndGet();
+                replies = context.socket(ZMQ.PULL);
+                replies.bind(replyAddress);
+                poller = new ZMQ.Poller(2);
+                poller.register(socket, ZMQ.Poller.POLLIN);
+                poller.register(replies, ZMQ.Poller.POLLIN);
+                replySocket = new ThreadLocal<ZMQ.Socket>() {
+                    @Override
+                    protected ZMQ.Socket initialValue() {
+                        ZMQ.Socket push = context.socket(ZMQ.PUSH);
+                        push.setLinger(0);
+                        push.connect(replyAddress);
+                        return push;
+                    }
+                };
+            }
+        }
+
+        @Override
+        public void bind(int port) {
+            socket.bind("tcp://*:" + port);
+        }
+
+        @Override
+        public void connect(String hostPort) {
+            socket.connect("tcp://" + hostPort);
+        }
+
+        @Override
+        public void setReceiveTimeOut(int millis) {
+            timeout = millis;
+            socket.setReceiveTimeOut(millis);
+        }
+
+        @Override
+        public void setHWM(int hwm) {
+            socket.setHWM(hwm);
+        }
+
+        @Override
+        public void subscribe(byte[] prefix) {
+            socket.subscribe(prefix);
+        }
+
+        @Override
+        public void send(List<byte[]> message) {
+            ZmqTransport.send(target(), message, 0);
+        }
+
+        @Override
+        public boolean offer(List<byte[]> message) {
+            return ZmqTransport.send(target(), message, ZMQ.NOBLOCK);
+        }
+
+        // the socket this thread may send on
+        private ZMQ.Socket target() {
+            if (replySocket == null || Thread.currentThread() == receiver)
+                return socket;
+            return replySocket.get();
+        }
+
+        @Override
+        public List<byte[]> recv() {
+            if (poller == null)
+                return ZmqTransport.recv(socket);
+            receiver = Thread.currentThread();
+            long deadline = System.currentTimeMillis() + timeout;
+            while (true) {
+                long wait = timeout < 0 ? -1 : deadline - System.currentTimeMillis();
+                if (timeout >= 0 && wait <= 0)
+                    return null;
+                poller.poll(wait);
+                if (poller.pollin(1)) {
+                    // sent from another thread, pass it on as is
+                    List<byte[]> message = ZmqTransport.recv(replies);
+                    if (message != null)
+                        ZmqTransport.send(socket, message, 0);
+                }
+                if (poller.pollin(0))
+                    return ZmqTransport.recv(socket);
+            }
+        }
+
+        @Override
+        public void close() {
+            socket.close();
+            if (replies != null)
+                replies.close();
+        }
+    }
+
+}